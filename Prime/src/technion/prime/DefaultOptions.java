@@ -1,5 +1,7 @@
 package technion.prime;
 
+import technion.prime.history.edgeset.CompactEdgeHistory;
+import technion.prime.history.edgeset.CompactEdgeHistoryCollection;
 import technion.prime.history.edgeset.EdgeHistory;
 
 import technion.prime.history.History;
@@ -12,6 +14,7 @@ import technion.prime.analysis.soot.SootMethodAnalyzer;
 import technion.prime.history.ExteriorMatcher;
 import technion.prime.history.Matcher;
 import technion.prime.analysis.MethodAnalyzer;
+import technion.prime.analysis.MethodSummaries;
 import technion.prime.history.edgeset.EdgeHistoryCollection;
 import technion.prime.history.HistoryCollection;
 import technion.prime.retrieval.googlecodesearch.GoogleCodeSearchGatherer;
@@ -32,6 +35,7 @@ public class DefaultOptions implements Options {
 	protected String defaultOutputFolder = System.getProperty("user.home") + "/prime/output";
 	protected Matcher matcher = new ExteriorMatcher(1);
 	protected AnalysisDetails details = new AnalysisDetails(this);
+	private transient MethodSummaries summaries;
 
 	protected Pattern JSL_TYPES =
 			Pattern.compile("((java|javax|sun|com\\.sun|org\\.w3c|org\\.xml)\\.\\S+)|" + // Built-in Java types
@@ -54,6 +58,16 @@ public class DefaultOptions implements Options {
 	public String getOutputDir() {
 		return defaultOutputFolder;
 	}
+
+	@Override
+	public String getAnalysisCacheDir() {
+		return null;
+	}
+
+	@Override
+	public long getAnalysisCacheMaxSize() {
+		return 1L << 30;
+	}
 	
 	/* (non-Javadoc)
 	 * @see technion.prime.Options#getBaseTrackedTypeFilter()
@@ -139,11 +153,69 @@ public class DefaultOptions implements Options {
 		return 2;
 	}
 
+	@Override
+	public int getFlowStepBudgetPerStatement() {
+		return 100;
+	}
+
+	@Override
+	public int getMethodSummaryCacheSize() {
+		return 1000;
+	}
+
+	@Override
+	public synchronized MethodSummaries getMethodSummaries() {
+		if (summaries == null && getMethodSummaryCacheSize() > 0) {
+			summaries = new MethodSummaries(this, getMethodSummaryCacheSize());
+		}
+		return summaries;
+	}
+
+	@Override
+	public boolean summarizesReachableStateOnly() {
+		return false;
+	}
+
 	@Override
 	public int getParallelOperationsThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public boolean useLightweightTaskThreads() {
+		return false;
+	}
+
+	@Override
+	public int getCpuBoundTaskLimit() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public boolean usePersistentSootScene() {
+		return false;
+	}
+
+	@Override
+	public int getSootSceneResetInterval() {
 		return 200;
 	}
 
+	@Override
+	public boolean usePipelinedAnalysis() {
+		return false;
+	}
+
+	@Override
+	public int getPipelineQueueCapacity() {
+		return 4;
+	}
+
+	@Override
+	public long getHistoryMemoryBudget() {
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
 	@Override
 	public String getGitExecutablePath() {
 		return null;
@@ -166,7 +238,8 @@ public class DefaultOptions implements Options {
 
 	@Override
 	public Class<? extends HistoryCollection> getHistoryCollectionType() {
-		return EdgeHistoryCollection.class;
+		return useCompactHistories() ?
+				CompactEdgeHistoryCollection.class : EdgeHistoryCollection.class;
 	}
 
 	@Override
@@ -176,7 +249,8 @@ public class DefaultOptions implements Options {
 
 	@Override
 	public HistoryCollection newHistoryCollection() {
-		return new EdgeHistoryCollection(this);
+		return useCompactHistories() ?
+				new CompactEdgeHistoryCollection(this) : new EdgeHistoryCollection(this);
 	}
 
 	@Override
@@ -201,7 +275,7 @@ public class DefaultOptions implements Options {
 
 	@Override
 	public History newHistory() {
-		return new EdgeHistory(this);
+		return useCompactHistories() ? new CompactEdgeHistory(this) : new EdgeHistory(this);
 	}
 
 	@Override
@@ -213,6 +287,16 @@ public class DefaultOptions implements Options {
 	public boolean useHistoryInvariant() {
 		return false;
 	}
+
+	@Override
+	public int getHistoryInvariantSamplingRate() {
+		return 1;
+	}
+
+	@Override
+	public boolean useCompactHistories() {
+		return false;
+	}
 	
 	@Override
 	public boolean isSameTypeRequiredForReceiver() {
@@ -8,6 +8,7 @@ import java.io.Serializable;
 
 import technion.prime.history.Matcher;
 import technion.prime.analysis.MethodAnalyzer;
+import technion.prime.analysis.MethodSummaries;
 import technion.prime.history.HistoryCollection;
 import technion.prime.retrieval.Gatherer;
 import technion.prime.statistics.AnalysisDetails;
@@ -25,6 +26,18 @@ public interface Options extends Serializable {
 	 * @return Output folder where the Prime results will be saved.
 	 */
 	String getOutputDir();
+
+	/**
+	 * @return Folder of the analysis cache, shared between runs, or null to analyze everything
+	 * anew.
+	 */
+	String getAnalysisCacheDir();
+
+	/**
+	 * Only relevant if {@link #getAnalysisCacheDir()} is not null.
+	 * @return Size in bytes above which the least recently used cache entries are deleted.
+	 */
+	long getAnalysisCacheMaxSize();
 	
 	/**
 	 * @return Filter determining which types will have their histories tracked.
@@ -89,11 +102,81 @@ public interface Options extends Serializable {
 	 */
 	int getInterproceduralDepth();
 
+	/**
+	 * @return Flow steps allowed per statement of an analyzed method. Once a method uses up its
+	 * budget, loops in it are no longer iterated to a fixed point.
+	 */
+	int getFlowStepBudgetPerStatement();
+
+	/**
+	 * @return Maximum number of method summaries kept during inter-procedural analysis. 0
+	 * disables summaries, so that a method is analyzed anew at every call.
+	 */
+	int getMethodSummaryCacheSize();
+
+	/**
+	 * @return The method summaries shared by all the method analyzers, or null if disabled.
+	 * The returned value should maintain its state throughout the analysis.
+	 */
+	MethodSummaries getMethodSummaries();
+
+	/**
+	 * @return Whether a called method is analyzed, and its summary keyed, on only the part of the
+	 * incoming state it may reach. More calls then share a summary, but the results change:
+	 * objects the method cannot reach no longer take part in the joins made while analyzing it.
+	 * If false, the whole incoming state is used, and summaries do not change the results.
+	 */
+	boolean summarizesReachableStateOnly();
+
 	/**
 	 * @return The number of threads which should be used for parallel operations.
 	 */
 	int getParallelOperationsThreadCount();
 
+	/**
+	 * @return Whether parallel operations should run on many more threads than there are
+	 * processors, with only {@link #getCpuBoundTaskLimit()} of them doing CPU-heavy work at any
+	 * time. Helps when tasks spend much of their time blocked, e.g. while loading method bodies.
+	 */
+	boolean useLightweightTaskThreads();
+
+	/**
+	 * Only relevant if {@link #useLightweightTaskThreads()} is true.
+	 * @return The maximum number of tasks doing CPU-heavy work at the same time.
+	 */
+	int getCpuBoundTaskLimit();
+
+	/**
+	 * @return Whether Soot should keep the JDK classes it has resolved between loads, instead of
+	 * being reset and reading the JDK again before every load.
+	 */
+	boolean usePersistentSootScene();
+
+	/**
+	 * Only relevant if {@link #usePersistentSootScene()} is true.
+	 * @return Number of loads after which Soot is reset anyway, to reclaim the memory it holds.
+	 */
+	int getSootSceneResetInterval();
+
+	/**
+	 * @return Whether compiling, loading and analyzing, and merging the results should run at the
+	 * same time, each chunk of classes moving on to the next stage as soon as it is ready.
+	 */
+	boolean usePipelinedAnalysis();
+
+	/**
+	 * Only relevant if {@link #usePipelinedAnalysis()} is true.
+	 * @return Number of chunks of classes which may wait between two stages; a stage which gets
+	 * this far ahead of the next one waits for it.
+	 */
+	int getPipelineQueueCapacity();
+
+	/**
+	 * @return Estimated size in bytes above which analyzed histories are spilled to disk, to be
+	 * merged back when the analysis is done.
+	 */
+	long getHistoryMemoryBudget();
+
 	/**
 	 * @return Full path to where git can be found, or null if git isn't supported.
 	 */
@@ -162,6 +245,20 @@ public interface Options extends Serializable {
 	 */
 	boolean useHistoryInvariant();
 
+	/**
+	 * Only relevant if {@link #useHistoryInvariant()} is true.
+	 * @return Verify the structural integrity of a history after only one in this many updates.
+	 * 1 verifies after every update, and 0 or less disables verification.
+	 */
+	int getHistoryInvariantSamplingRate();
+
+	/**
+	 * @return Whether new histories and history collections should keep histories in a compact
+	 * representation while they are not being worked on. Saves memory at the cost of expanding
+	 * a history whenever it is modified.
+	 */
+	boolean useCompactHistories();
+
 	/**
 	 * @return True if upon encountering x.f() we only consider abstract objects with the type of
 	 * x as one of their seen types as candidates for update.
@@ -15,13 +15,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FilenameUtils;
 
+import technion.prime.analysis.AnalysisCache;
 import technion.prime.analysis.AppAnalyzer;
 import technion.prime.analysis.soot.SootAppLoader;
 import technion.prime.dom.App;
+import technion.prime.dom.AppClass;
 import technion.prime.history.HistoryCollection;
+import technion.prime.history.HistorySpiller;
 import technion.prime.history.converters.AutomataInclusionClusterer;
 import technion.prime.history.converters.AutomataSameClusterer;
 import technion.prime.history.converters.ConverterStack;
@@ -46,6 +53,7 @@ import technion.prime.utils.CompiledItem;
 import technion.prime.utils.ConcurrencyUtils;
 import technion.prime.utils.Logger;
 import technion.prime.utils.Logger.CanceledException;
+import technion.prime.utils.Logger.ConcurrentStage;
 import technion.prime.utils.OutputHider;
 import technion.prime.utils.PrecompiledClassFile;
 import technion.prime.utils.Stage;
@@ -70,12 +78,32 @@ public class PrimeAnalyzer {
 		}
 	}
 
-	private static final int NUM_HISTORY_THRESHOLD = 100;
-
 	private static final int COMPILATION_BATCH_SIZE = 10;
 
+	private static final int ANALYSIS_CHUNK_SIZE = 5;
+
 	private static final long MB = 1048576;
 
+	/**
+	 * A chunk of classes passing through the analysis pipeline.
+	 */
+	private static class Chunk {
+		// Null if the chunk only carries cached results
+		final List<CompiledItem> classes;
+		final Map<String, HistoryCollection> classResults =
+				new HashMap<String, HistoryCollection>();
+		final Map<String, Integer> classMethods = new HashMap<String, Integer>();
+		HistoryCollection result;
+
+		Chunk(List<CompiledItem> classes, HistoryCollection result) {
+			this.classes = classes;
+			this.result = result;
+		}
+	}
+
+	// Passed after the last chunk, to end the next stage
+	private static final Chunk END_OF_CHUNKS = new Chunk(null, null);
+
 	private static ConverterStack converterStack;
 	private String converterStackFile; 
 	
@@ -88,6 +116,10 @@ public class PrimeAnalyzer {
 
 	private String identifier;
 	private long duration = -1;
+	// Keeps the analyzed histories within the memory budget
+	private HistorySpiller spiller;
+	// Null if there is no analysis cache
+	private AnalysisCache analysisCache;
 
 	private boolean compileOnly;
 	private boolean forceClustering;
@@ -187,21 +219,39 @@ public class PrimeAnalyzer {
 	public HistoryCollection produceHistoryCollection() throws CanceledException {
 		// Anything which isn't already in compiled form should be converted:
 		downloadQueries();
-		compileSources();
+		boolean pipelined = options.usePipelinedAnalysis() && compileOnly == false;
+		if (pipelined == false) compileSources();
 		if (compileOnly) return null;
+		if (identifier == null) identifier = calculateTimestampString();
 
 		AppAnalyzer analyzer = new AppAnalyzer(options);
 		HistoryCollection analyzed = options.newHistoryCollection();
+		if (options.getAnalysisCacheDir() != null) analysisCache = new AnalysisCache(options);
+		spiller = new HistorySpiller(options,
+				FilenameUtils.concat(options.getTempDir(), identifier + "_spill"));
 
 		// Load and analyze one jar at a time:
 		analyzeJars(analyzer, analyzed);
 
-		// Load and analyze a chunk of classes at a time:
-		analyzeClassChunks(analyzer, analyzed);
+		if (pipelined) {
+			// Compile, analyze and merge chunks of classes at the same time:
+			analyzeInPipeline(analyzer, analyzed);
+		} else {
+			// Load and analyze a chunk of classes at a time:
+			analyzeClassChunks(analyzer, analyzed);
+		}
 
 		// Merge all cached history collections:
 		mergeCachedHistoryCollections(analyzed);
 
+		// Merge back whatever was spilled to disk:
+		try {
+			analyzed = spiller.finish(analyzed);
+		} catch (InterruptedException e) {
+			Logger.warn("Interrupted while merging spilled histories, some are lost");
+		}
+		spiller = null;
+
 		Logger.log("Total of " + analyzed.getNumHistories() + " histories.");
 
 		return analyzed;
@@ -298,36 +348,30 @@ public class PrimeAnalyzer {
 	 */
 	private void analyzeClassChunks(AppAnalyzer analyzer,
 			HistoryCollection analyzed) throws CanceledException {
+		// Cache keys of the classes to analyze, by class name
+		Map<String, String> cacheKeys = new HashMap<String, String>();
+		List<CompiledItem> items = getUncachedItems(analyzed, cacheKeys);
 		List<CompiledItem> itemsInChunk = new LinkedList<CompiledItem>();
 		int counter = 0;
-		int saveCounter = 0;
-		for (CompiledItem item : compiledItems) {
+		for (CompiledItem item : items) {
 			itemsInChunk.add(item);
 			counter++;
 			if (counter % 100 == 0) {
 				Logger.log(String.format("---Analyzed %d classes.\n", counter));
 			}
 			//change this to 1 at a time
-			if (itemsInChunk.size() >= 5/* options.getAnalysisChunkSize() */
-					|| counter == compiledItems.size()) {
+			if (itemsInChunk.size() >= ANALYSIS_CHUNK_SIZE
+					|| counter == items.size()) {
 				try {
 					ConcurrencyUtils.checkState();
-					analyzeClasses(analyzer, analyzed, itemsInChunk);
-					if (analyzed.getNumHistories() > NUM_HISTORY_THRESHOLD) {
-						// The HistoryCollection is growing too much for us to handle.
-						// Save an intermediate result, then clear it.
-						Logger.log(String.format("Accumulated %d>%d histories, flushing...",
-								analyzed.getNumHistories(),
-								NUM_HISTORY_THRESHOLD));
-						saveToCache(analyzed, "_" + saveCounter++);
-						analyzed.clear();
-
-					}
+					analyzeClasses(analyzer, analyzed, itemsInChunk, cacheKeys);
 				} catch (InterruptedException e) {
 					// Swallow. Yes, this means we lose the whole chunk.
 				} catch (RuntimeException e) {
 					// We could not process this batch
 					Logger.exception(e);
+					// Do not let whatever broke it affect the next ones
+					SootAppLoader.invalidateScene();
 				} finally {
 					itemsInChunk.clear();
 				}
@@ -335,18 +379,92 @@ public class PrimeAnalyzer {
 		}
 	}
 
+	/**
+	 * Merge the cached results of compiled items into the analyzed collection.
+	 * @param analyzed
+	 * @param cacheKeys The cache keys of the returned items are put here, by class name.
+	 * @return The compiled items which have no cached results, and so need to be analyzed.
+	 * @throws CanceledException
+	 */
+	private List<CompiledItem> getUncachedItems(HistoryCollection analyzed,
+			Map<String, String> cacheKeys) throws CanceledException {
+		List<CompiledItem> result = new LinkedList<CompiledItem>();
+		if (analysisCache == null) {
+			result.addAll(compiledItems);
+			return result;
+		}
+		for (CompiledItem item : compiledItems) {
+			HistoryCollection hc = getCachedResult(item, cacheKeys);
+			if (hc == null) {
+				result.add(item);
+				continue;
+			}
+			try {
+				mergedIntoAnalyzed(analyzed, hc);
+			} catch (InterruptedException e) {
+				// Swallow
+			}
+		}
+		Logger.log(String.format("Found cached results for %d/%d classes",
+				compiledItems.size() - result.size(), compiledItems.size()));
+		return result;
+	}
+
+	/**
+	 * @param item
+	 * @param cacheKeys If the item has no cached results, its cache key is put here, by class name.
+	 * @return The cached results of the item, or null if it needs to be analyzed.
+	 */
+	private HistoryCollection getCachedResult(CompiledItem item, Map<String, String> cacheKeys) {
+		if (analysisCache == null) return null;
+		String key;
+		try {
+			key = analysisCache.getKey(item);
+		} catch (IOException e) {
+			Logger.warn("Could not read " + item);
+			return null;
+		}
+		HistoryCollection hc = analysisCache.get(key);
+		if (hc == null) cacheKeys.put(item.getClassName(), key);
+		return hc;
+	}
+
+	/**
+	 * Store the results of analyzed classes in the analysis cache. Must happen before the results
+	 * are merged, which may change them.
+	 * @param classes
+	 * @param cacheKeys Cache keys of classes whose results should be cached, by class name.
+	 * @param classResults Results of the classes, by class name.
+	 * @param classMethods Number of methods of the classes, by class name.
+	 */
+	private void cacheClassResults(List<CompiledItem> classes, Map<String, String> cacheKeys,
+			Map<String, HistoryCollection> classResults, Map<String, Integer> classMethods) {
+		if (analysisCache == null) return;
+		for (CompiledItem item : classes) {
+			String key = cacheKeys.get(item.getClassName());
+			HistoryCollection classResult = classResults.get(item.getClassName());
+			if (key != null && classResult != null) {
+				analysisCache.put(key, classResult, classMethods.get(item.getClassName()));
+			}
+		}
+	}
+
 	/**
 	 * @param analyzer
 	 * @param analyzed
 	 * @param classes
+	 * @param cacheKeys Cache keys of classes whose results should be cached, by class name.
 	 * @throws CanceledException
 	 * @throws InterruptedException
 	 */
 	private void analyzeClasses(AppAnalyzer analyzer, HistoryCollection analyzed,
-			List<CompiledItem> classes)
+			List<CompiledItem> classes, Map<String, String> cacheKeys)
 			throws CanceledException, InterruptedException {
 		App a = loadClasses(classes);
-		HistoryCollection hc = analyzer.analyzeApp(a);
+		Map<String, HistoryCollection> classResults = new HashMap<String, HistoryCollection>();
+		Map<String, Integer> classMethods = new HashMap<String, Integer>();
+		HistoryCollection hc = analyzer.analyzeApp(a, classResults, classMethods);
+		cacheClassResults(classes, cacheKeys, classResults, classMethods);
 		Logger.log(String.format("Analyzed %d classes, produced %d histories", classes.size(),
 				hc.getNumHistories()));
 		mergedIntoAnalyzed(analyzed, hc);
@@ -362,13 +480,35 @@ public class PrimeAnalyzer {
 			throws CanceledException {
 		for (final String jar : jarFiles) {
 			try {
+				String key = null;
+				if (analysisCache != null) {
+					try {
+						key = analysisCache.getJarKey(jar);
+					} catch (IOException e) {
+						Logger.warn("Could not read " + jar);
+					}
+				}
+				HistoryCollection cached = key == null ? null : analysisCache.get(key);
+				if (cached != null) {
+					mergedIntoAnalyzed(analyzed, cached);
+					continue;
+				}
 				@SuppressWarnings("serial")
 				App a = loadJars(new LinkedList<String>() {
 					{
 						add(jar);
 					}
 				});
-				HistoryCollection hc = analyzer.analyzeApp(a);
+				Map<String, HistoryCollection> classResults =
+						new HashMap<String, HistoryCollection>();
+				Map<String, Integer> classMethods = new HashMap<String, Integer>();
+				HistoryCollection hc = analyzer.analyzeApp(a, classResults, classMethods);
+				// Only cache a jar whose classes were all analyzed successfully
+				if (key != null && classResults.size() == countAnalyzedClasses(analyzer, a)) {
+					int numMethods = 0;
+					for (int n : classMethods.values()) numMethods += n;
+					analysisCache.put(key, hc, numMethods);
+				}
 				mergedIntoAnalyzed(analyzed, hc);
 			} catch (InterruptedException e) {
 				// Swallow
@@ -376,7 +516,16 @@ public class PrimeAnalyzer {
 		}
 	}
 
+	private static int countAnalyzedClasses(AppAnalyzer analyzer, App a) {
+		int result = 0;
+		for (AppClass c : a.getClasses()) {
+			if (analyzer.shouldAnalyze(c)) result++;
+		}
+		return result;
+	}
+
 	/**
+	 * If the merged collection grows over the memory budget, it is spilled to disk and cleared.
 	 * @param into
 	 *            Merge into this history collection.
 	 * @param from
@@ -386,6 +535,240 @@ public class PrimeAnalyzer {
 			throws InterruptedException, CanceledException {
 		into.unionFrom(from);
 		into.filterEmptyHistories();
+		if (spiller != null) spiller.spillIfNeeded(into, from);
+		into.compact();
+	}
+
+	/**
+	 * Compile the sources and analyze them together with the compiled items, merging the results
+	 * into <code>analyzed</code>. Compiling, loading and analyzing, and merging run at the same
+	 * time, each in its own thread, and pass chunks of classes on through bounded queues, so that
+	 * a stage which gets ahead of the next one waits instead of piling up chunks in memory.
+	 *
+	 * Loading and analyzing are a single stage because Soot has a single global scene, which must
+	 * not be reloaded while the classes of the previous chunk are still analyzed.
+	 * @param analyzer
+	 * @param analyzed
+	 * @throws CanceledException
+	 */
+	private void analyzeInPipeline(final AppAnalyzer analyzer, final HistoryCollection analyzed)
+			throws CanceledException {
+		int capacity = options.getPipelineQueueCapacity();
+		final BlockingQueue<Chunk> compiled = new ArrayBlockingQueue<Chunk>(capacity);
+		final BlockingQueue<Chunk> results = new ArrayBlockingQueue<Chunk>(capacity);
+		final Map<String, String> cacheKeys = new ConcurrentHashMap<String, String>();
+		final AtomicBoolean canceled = new AtomicBoolean();
+		Thread compiler = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				compileStage(compiled, cacheKeys, canceled);
+			}
+		}, "prime-compile");
+		Thread merger = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				mergeStage(results, analyzed, cacheKeys, canceled);
+			}
+		}, "prime-merge");
+		compiler.setDaemon(true);
+		merger.setDaemon(true);
+		compiler.start();
+		merger.start();
+		analyzeStage(analyzer, compiled, results, canceled);
+		try {
+			compiler.join();
+			merger.join();
+		} catch (InterruptedException e) {
+			canceled.set(true);
+		}
+		if (canceled.get()) throw new CanceledException();
+	}
+
+	private void compileStage(BlockingQueue<Chunk> out, Map<String, String> cacheKeys,
+			AtomicBoolean canceled) {
+		ConcurrentStage stage = Logger.startConcurrentStage(Stage.COMPILING, sourceFiles.size());
+		List<CompiledItem> chunk = new LinkedList<CompiledItem>();
+		int count = 0;
+		int index = 0;
+		try {
+			for (CompiledItem item : compiledItems) {
+				if (canceled.get()) break;
+				chunk = addToChunk(out, chunk, item, cacheKeys);
+			}
+			if (sourceFiles.isEmpty() == false) PartialCompiler.startBatch();
+			for (String s : sourceFiles) {
+				if (canceled.get()) break;
+				index++;
+				if (index % COMPILATION_BATCH_SIZE == 0) {
+					PartialCompiler.endBatch();
+					PartialCompiler.cleanup();
+					PartialCompiler.startBatch();
+				}
+				try {
+					Collection<CompiledItem> classes = compile(s);
+					if (classes.isEmpty() == false) count++;
+					for (CompiledItem item : classes) {
+						chunk = addToChunk(out, chunk, item, cacheKeys);
+					}
+					stage.progress();
+				} catch (InterruptedException e) {
+					// Swallow
+				} catch (CanceledException e) {
+					canceled.set(true);
+				}
+			}
+			if (sourceFiles.isEmpty() == false) {
+				PartialCompiler.endBatch();
+				PartialCompiler.cleanup();
+			}
+			if (chunk.isEmpty() == false) put(out, new Chunk(chunk, null));
+		} catch (RuntimeException e) {
+			Logger.exception(e);
+		} finally {
+			put(out, END_OF_CHUNKS);
+			stage.end(String.format("Compiled %d/%d sources", count, sourceFiles.size()));
+		}
+	}
+
+	/**
+	 * Add an item to the chunk being filled, and pass the chunk on once it is full. An item with
+	 * cached results is passed on right away instead.
+	 * @return The chunk to fill next.
+	 */
+	private List<CompiledItem> addToChunk(BlockingQueue<Chunk> out, List<CompiledItem> chunk,
+			CompiledItem item, Map<String, String> cacheKeys) {
+		HistoryCollection cached = getCachedResult(item, cacheKeys);
+		if (cached != null) {
+			put(out, new Chunk(null, cached));
+			return chunk;
+		}
+		chunk.add(item);
+		if (chunk.size() < ANALYSIS_CHUNK_SIZE) return chunk;
+		put(out, new Chunk(chunk, null));
+		return new LinkedList<CompiledItem>();
+	}
+
+	private void analyzeStage(AppAnalyzer analyzer, BlockingQueue<Chunk> in,
+			BlockingQueue<Chunk> out, AtomicBoolean canceled) {
+		ConcurrentStage stage = Logger.startConcurrentStage(Stage.ANALYZING, 0);
+		int count = 0;
+		boolean done = false;
+		try {
+			for (Chunk c = take(in); c != END_OF_CHUNKS; c = take(in)) {
+				if (canceled.get()) continue;
+				if (c.classes != null) {
+					try {
+						ConcurrencyUtils.checkState();
+						App a = loadClasses(c.classes);
+						c.result = analyzer.analyzeApp(a, c.classResults, c.classMethods);
+						count += c.classes.size();
+						stage.progress();
+					} catch (InterruptedException e) {
+						// Swallow. Yes, this means we lose the whole chunk.
+						continue;
+					} catch (CanceledException e) {
+						canceled.set(true);
+						continue;
+					} catch (RuntimeException e) {
+						// We could not process this chunk
+						Logger.exception(e);
+						// Do not let whatever broke it affect the next ones
+						SootAppLoader.invalidateScene();
+						continue;
+					}
+				}
+				put(out, c);
+			}
+			done = true;
+		} finally {
+			if (done == false) {
+				// Let the previous stage finish
+				canceled.set(true);
+				drain(in);
+			}
+			put(out, END_OF_CHUNKS);
+			stage.end(String.format("analyzed %d classes", count));
+		}
+	}
+
+	private void mergeStage(BlockingQueue<Chunk> in, HistoryCollection analyzed,
+			Map<String, String> cacheKeys, AtomicBoolean canceled) {
+		ConcurrentStage stage = Logger.startConcurrentStage(Stage.MERGING, 0);
+		int count = 0;
+		boolean done = false;
+		try {
+			for (Chunk c = take(in); c != END_OF_CHUNKS; c = take(in)) {
+				if (canceled.get()) continue;
+				try {
+					if (c.classes != null) {
+						cacheClassResults(c.classes, cacheKeys, c.classResults, c.classMethods);
+					}
+					mergedIntoAnalyzed(analyzed, c.result);
+					count++;
+					stage.progress();
+				} catch (InterruptedException e) {
+					// Swallow
+				} catch (CanceledException e) {
+					canceled.set(true);
+				} catch (RuntimeException e) {
+					Logger.exception(e);
+				}
+			}
+			done = true;
+		} finally {
+			if (done == false) {
+				// Let the previous stage finish
+				canceled.set(true);
+				drain(in);
+			}
+			stage.end(String.format("merged %d chunks, got %d histories", count,
+					analyzed.getNumHistories()));
+		}
+	}
+
+	/**
+	 * Like {@link BlockingQueue#take()}, but waits even if interrupted, so that a stage always
+	 * gets to the end of its chunks. The interrupt is kept for later checks.
+	 */
+	private static Chunk take(BlockingQueue<Chunk> q) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return q.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Like {@link BlockingQueue#put(Object)}, but waits even if interrupted, so that the next
+	 * stage always gets to the end of its chunks. The interrupt is kept for later checks.
+	 */
+	private static void put(BlockingQueue<Chunk> q, Chunk c) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					q.put(c);
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void drain(BlockingQueue<Chunk> q) {
+		while (take(q) != END_OF_CHUNKS) {
+			// Discard
+		}
 	}
 
 	private void compileSources() throws CanceledException {
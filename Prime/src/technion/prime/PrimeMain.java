@@ -16,6 +16,10 @@ import technion.prime.utils.JavaFileUtils;
 import technion.prime.utils.Logger;
 import technion.prime.Options;
 
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -39,7 +43,15 @@ public class PrimeMain {
 		API_PATTERN("api-pattern"),
 		COMPILE_ONLY("compile-only"),
 		FORCE_CLUSTERING("force-clustering"),
-		CONVERTER_STACK_FILE("converter-stack"), ;
+		CONVERTER_STACK_FILE("converter-stack"),
+		COMPACT_HISTORIES("compact-histories"),
+		LIGHTWEIGHT_THREADS("lightweight-threads"),
+		ANALYSIS_CACHE("analysis-cache"),
+		PERSISTENT_SCENE("persistent-scene"),
+		WORKERS("workers"),
+		PIPELINE("pipeline"),
+		HISTORY_BUDGET("history-budget"),
+		SHARD("shard"), ;
 
 		String optionString;
 
@@ -48,6 +60,23 @@ public class PrimeMain {
 		}
 	}
 
+	// Options which are not passed on from a coordinator to its workers
+	private static final List<PrimeCommandLineOptions> COORDINATOR_ONLY = Arrays.asList(
+			PrimeCommandLineOptions.QUERY,
+			PrimeCommandLineOptions.COMPILED,
+			PrimeCommandLineOptions.COMPILED_IN_JAR,
+			PrimeCommandLineOptions.CACHED,
+			PrimeCommandLineOptions.CACHED_DIR,
+			PrimeCommandLineOptions.SOURCE,
+			PrimeCommandLineOptions.QUERY_SIZE,
+			PrimeCommandLineOptions.OUTPUT_DIR,
+			PrimeCommandLineOptions.TEMP_DIR,
+			PrimeCommandLineOptions.COMPILE_ONLY,
+			PrimeCommandLineOptions.FORCE_CLUSTERING,
+			PrimeCommandLineOptions.CONVERTER_STACK_FILE,
+			PrimeCommandLineOptions.WORKERS,
+			PrimeCommandLineOptions.SHARD);
+
 	public static void main(String[] args) {
 		analyze(args, null);
 	}
@@ -75,11 +104,26 @@ public class PrimeMain {
 				.hasOption(PrimeCommandLineOptions.FORCE_CLUSTERING.optionString);
 		String converterStackFile = line
 				.getOptionValue(PrimeCommandLineOptions.CONVERTER_STACK_FILE.optionString);
+		String numWorkersStr = line
+				.getOptionValue(PrimeCommandLineOptions.WORKERS.optionString);
+		String shardList = line
+				.getOptionValue(PrimeCommandLineOptions.SHARD.optionString);
+		int numWorkers = parseNumWorkers(numWorkersStr);
+		if (numWorkers < 1) {
+			System.out.println("Incorrect usage: the number of workers must be a positive " +
+					"integer, got " + numWorkersStr);
+			return null;
+		}
 
 		Options primeOptions = overrideWith != null ? overrideWith :
 				createOptionsFromCommandLineArgs(line);
 
 		PrimeAnalyzer analyzer = new PrimeAnalyzer(primeOptions);
+		if (shardList != null) {
+			// Forked by a coordinator, exits when done
+			runShardWorker(analyzer, shardList);
+			return null;
+		}
 		HistoryCollection hc;
 		try {
 			// Calculate the HistoryCollection
@@ -105,6 +149,17 @@ public class PrimeMain {
 				files.addAll(JavaFileUtils.getCachedFilesInFolder(cacheFolder, true));
 				loadedCacheFiles = true;
 			}
+			int numProcessors = Runtime.getRuntime().availableProcessors();
+			if (numWorkers > numProcessors) {
+				Logger.warn(String.format("Using %d workers, one per processor, instead of %d",
+						numProcessors, numWorkers));
+				numWorkers = numProcessors;
+			}
+			if (numWorkers > 1 && overrideWith == null && compileOnly == false) {
+				// Analyze in worker processes, then only merge their results here
+				files = new ShardCoordinator(primeOptions, createWorkerArgs(line), numWorkers)
+						.run(files);
+			}
 
 			if (converterStackFile != null) {
 				analyzer.setConverterStackFile(converterStackFile);
@@ -123,7 +178,7 @@ public class PrimeMain {
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			Logger.exception(e);
 			return null;
 		}
 
@@ -133,6 +188,72 @@ public class PrimeMain {
 		return hc;
 	}
 
+	/**
+	 * Analyze the files listed in a shard, save the results and exit. The exit status is 0 only if
+	 * the results were saved.
+	 * @param analyzer
+	 * @param shardList File listing the files to analyze, one per line.
+	 */
+	private static void runShardWorker(PrimeAnalyzer analyzer, String shardList) {
+		int status = 1;
+		try {
+			@SuppressWarnings("unchecked")
+			List<String> files = FileUtils.readLines(new File(shardList));
+			for (String f : files)
+				analyzer.addInputFile(f);
+			HistoryCollection hc = analyzer.produceHistoryCollection();
+			hc.save(ShardCoordinator.getResultFile(shardList));
+			status = 0;
+		} catch (Exception e) {
+			Logger.exception(e);
+		}
+		System.exit(status);
+	}
+
+	/**
+	 * @param numWorkersStr Value of the workers option, or null if it was not given.
+	 * @return The number of worker processes, or 0 if the value is not a positive integer.
+	 */
+	private static int parseNumWorkers(String numWorkersStr) {
+		if (numWorkersStr == null) return 1;
+		try {
+			return Math.max(0, Integer.parseInt(numWorkersStr.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param line
+	 * @return The arguments in <code>line</code> which should be passed on to workers.
+	 */
+	private static List<String> createWorkerArgs(CommandLine line) {
+		List<String> result = new LinkedList<String>();
+		for (Option o : line.getOptions()) {
+			boolean passed = true;
+			for (PrimeCommandLineOptions excluded : COORDINATOR_ONLY) {
+				if (excluded.optionString.equals(o.getLongOpt())) passed = false;
+			}
+			if (passed == false) continue;
+			result.add(o.getLongOpt() != null ? "--" + o.getLongOpt() : "-" + o.getOpt());
+			if (o.hasArg()) result.add(o.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * @param shardList File listing the files to analyze, one per line.
+	 * @param outputDir
+	 * @param tempDir
+	 * @return Arguments making a worker analyze a shard.
+	 */
+	static List<String> createShardArgs(String shardList, String outputDir, String tempDir) {
+		return Arrays.asList(
+				"--" + PrimeCommandLineOptions.SHARD.optionString, shardList,
+				"--" + PrimeCommandLineOptions.OUTPUT_DIR.optionString, outputDir,
+				"--" + PrimeCommandLineOptions.TEMP_DIR.optionString, tempDir);
+	}
+
 	public static Options createOptionsFromCommandLineArgs(CommandLine line) {
 		final String outputDir = line.getOptionValue(
 				PrimeCommandLineOptions.OUTPUT_DIR.optionString,
@@ -140,8 +261,20 @@ public class PrimeMain {
 		final String tempDir = line.getOptionValue(
 				PrimeCommandLineOptions.TEMP_DIR.optionString,
 				System.getProperty("java.io.tmpdir") + "/prime/temp");
+		final String analysisCacheDir = line.getOptionValue(
+				PrimeCommandLineOptions.ANALYSIS_CACHE.optionString);
 		final boolean partialMerge = line
 				.hasOption(PrimeCommandLineOptions.MERGE_PARTIAL.optionString);
+		final boolean compactHistories = line
+				.hasOption(PrimeCommandLineOptions.COMPACT_HISTORIES.optionString);
+		final boolean lightweightThreads = line
+				.hasOption(PrimeCommandLineOptions.LIGHTWEIGHT_THREADS.optionString);
+		final boolean persistentScene = line
+				.hasOption(PrimeCommandLineOptions.PERSISTENT_SCENE.optionString);
+		final boolean pipeline = line
+				.hasOption(PrimeCommandLineOptions.PIPELINE.optionString);
+		final String historyBudget = line
+				.getOptionValue(PrimeCommandLineOptions.HISTORY_BUDGET.optionString);
 		String apiPatternString = line
 				.getOptionValue(PrimeCommandLineOptions.API_PATTERN.optionString);
 		StringFilter apiFilter = null;
@@ -164,6 +297,11 @@ public class PrimeMain {
 				return outputDir;
 			}
 
+			@Override
+			public String getAnalysisCacheDir() {
+				return analysisCacheDir;
+			}
+
 			@Override
 			public boolean isMethodSimilarityUnionPartial() {
 				return partialMerge;
@@ -205,6 +343,32 @@ public class PrimeMain {
 			public boolean isMayAnalysis() {
 				return false;
 			}
+
+			@Override
+			public boolean useCompactHistories() {
+				return compactHistories;
+			}
+
+			@Override
+			public boolean useLightweightTaskThreads() {
+				return lightweightThreads;
+			}
+
+			@Override
+			public boolean usePersistentSootScene() {
+				return persistentScene;
+			}
+
+			@Override
+			public boolean usePipelinedAnalysis() {
+				return pipeline;
+			}
+
+			@Override
+			public long getHistoryMemoryBudget() {
+				if (historyBudget == null) return super.getHistoryMemoryBudget();
+				return Long.valueOf(historyBudget) * 1048576;
+			}
 		};
 	}
 
@@ -243,6 +407,11 @@ public class PrimeMain {
 				.withArgName("folder").hasArg()
 				.withDescription("Folder containing cache files")
 				.create('u');
+		Option shard = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.SHARD.optionString)
+				.withArgName("file").hasArg()
+				.withDescription("File listing the files to analyze, used by worker processes")
+				.create();
 		Option converterStackFile = OptionBuilder
 				.withLongOpt(PrimeCommandLineOptions.CONVERTER_STACK_FILE.optionString)
 				.withArgName("file").hasArg()
@@ -255,6 +424,7 @@ public class PrimeMain {
 		input.addOption(jars);
 		input.addOption(cached);
 		input.addOption(cached_dir);
+		input.addOption(shard);
 		
 		Option querySize = OptionBuilder
 				.withLongOpt(PrimeCommandLineOptions.QUERY_SIZE.optionString)
@@ -280,6 +450,14 @@ public class PrimeMain {
 						"Directory to use as a temporary folder")
 				.create('t');
 
+		Option analysisCache = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.ANALYSIS_CACHE.optionString)
+				.withArgName("folder")
+				.hasArg()
+				.withDescription(
+						"Directory in which analysis results are cached between runs")
+				.create('k');
+
 		Option partialMerge = OptionBuilder
 				.withLongOpt(PrimeCommandLineOptions.MERGE_PARTIAL.optionString)
 				.withDescription("Use partial merge during")
@@ -303,14 +481,60 @@ public class PrimeMain {
 				.withDescription("If present, will force clustering")
 				.create("l");
 
+		Option compactHistoriesOption = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.COMPACT_HISTORIES.optionString)
+				.withDescription("If present, will keep histories compact to save memory")
+				.create("p");
+
+		Option lightweightThreadsOption = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.LIGHTWEIGHT_THREADS.optionString)
+				.withDescription("If present, will run many analysis tasks at once, but only " +
+						"as many CPU-heavy ones as there are processors")
+				.create("w");
+
+		Option pipelineOption = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.PIPELINE.optionString)
+				.withDescription("If present, will compile, analyze and merge results at the " +
+						"same time")
+				.create("e");
+
+		Option workersOption = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.WORKERS.optionString)
+				.withArgName("integer")
+				.hasArg()
+				.withDescription("If more than 1, will analyze in this many worker processes " +
+						"at once, which split the heap between them, and merge their results")
+				.create('x');
+
+		Option historyBudgetOption = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.HISTORY_BUDGET.optionString)
+				.withArgName("megabytes")
+				.hasArg()
+				.withDescription("Estimated memory analyzed histories may take up before they " +
+						"are spilled to disk; a quarter of the heap by default")
+				.create('b');
+
+		Option persistentSceneOption = OptionBuilder
+				.withLongOpt(PrimeCommandLineOptions.PERSISTENT_SCENE.optionString)
+				.withDescription("If present, will keep the JDK loaded in Soot between " +
+						"chunks of analyzed classes instead of reloading it every time")
+				.create("r");
+
 		options.addOptionGroup(input);
 		options.addOption(querySize);
 		options.addOption(outputDir);
 		options.addOption(tempDir);
+		options.addOption(analysisCache);
 		options.addOption(partialMerge);
 		options.addOption(apiPattern);
 		options.addOption(compileOnlyOption);
 		options.addOption(forceClusteringOption);
+		options.addOption(compactHistoriesOption);
+		options.addOption(lightweightThreadsOption);
+		options.addOption(persistentSceneOption);
+		options.addOption(workersOption);
+		options.addOption(pipelineOption);
+		options.addOption(historyBudgetOption);
 		options.addOption(converterStackFile);
 		
 		return options;
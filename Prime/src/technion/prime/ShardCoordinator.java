@@ -0,0 +1,263 @@
+package technion.prime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import technion.prime.PrimeAnalyzer.Extension;
+import technion.prime.utils.Logger;
+
+/**
+ * Splits the files to analyze between several worker processes. Each worker runs Prime on its
+ * share of the files and saves the histories it produced as a cached result, to be merged by the
+ * caller.
+ *
+ * Soot keeps its state in JVM-wide singletons, so a single process can only load one app at a
+ * time; separate processes are what lets loading use more than one processor. A worker which
+ * fails, for instance by running out of memory, is retried with its files split into two smaller
+ * shards, until a single file which still fails is given up on. If all the workers of a round
+ * fail, something is wrong beyond any single file, and the analysis is aborted instead.
+ *
+ * The maximum heap size of the coordinator is split between the workers, so that together they
+ * take up no more than that, unless it would leave each of them less than 64 MB.
+ */
+class ShardCoordinator {
+	private static final int SHARDS_PER_WORKER = 4;
+	private static final long MIN_WORKER_HEAP = 64 * 1048576L;
+	// Options of the coordinator's JVM which set its heap size, and are not passed on to workers
+	private static final String[] HEAP_SIZE_ARGS = new String[] {
+			"-Xmx", "-Xms", "-XX:MaxHeapSize=", "-XX:InitialHeapSize=",
+			"-XX:MaxRAMPercentage=", "-XX:InitialRAMPercentage=", "-XX:MinRAMPercentage=" };
+
+	private static class Shard {
+		final int id;
+		final List<String> files;
+
+		Shard(int id, List<String> files) {
+			this.id = id;
+			this.files = files;
+		}
+	}
+
+	private final List<String> workerArgs;
+	private final int numWorkers;
+	private final File folder;
+	// Maximum heap size of each worker in bytes, or 0 to leave it to the JVM
+	private final long workerHeap;
+	// Worker processes which are running, destroyed if the coordinator stops early. Guarded by
+	// itself, as is stopped.
+	private final Set<Process> processes = new HashSet<Process>();
+	private boolean stopped;
+	private int nextShardId;
+
+	/**
+	 * @param options Prime options.
+	 * @param workerArgs Command-line arguments passed on to every worker, without any input,
+	 * output folder or temporary folder arguments.
+	 * @param numWorkers Maximum number of workers running at the same time.
+	 */
+	public ShardCoordinator(Options options, List<String> workerArgs, int numWorkers) {
+		this.workerArgs = workerArgs;
+		this.numWorkers = numWorkers;
+		folder = new File(options.getOutputDir(), "shards");
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		workerHeap = maxHeap == Long.MAX_VALUE ? 0 :
+				Math.max(MIN_WORKER_HEAP, maxHeap / numWorkers);
+	}
+
+	/**
+	 * @param shardList File listing the files of a shard, one per line.
+	 * @return The file in which the worker analyzing the shard saves its results.
+	 */
+	public static String getResultFile(String shardList) {
+		return FilenameUtils.removeExtension(shardList) + "." + Extension.CACHED_RESULT.get();
+	}
+
+	/**
+	 * Analyze files in worker processes.
+	 * @param files The files to analyze. Cached results are not analyzed, only returned.
+	 * @return The cached results of the analysis, including those given in <code>files</code>.
+	 * @throws IOException If all the workers of the first round failed.
+	 * @throws InterruptedException
+	 */
+	public List<String> run(List<String> files) throws IOException, InterruptedException {
+		List<String> result = new LinkedList<String>();
+		List<String> analyzed = new ArrayList<String>();
+		for (String f : files) {
+			if (FilenameUtils.getExtension(f).equals(Extension.CACHED_RESULT.get())) result.add(f);
+			else analyzed.add(f);
+		}
+		if (analyzed.isEmpty()) return result;
+		folder.mkdirs();
+
+		List<Shard> pending = createShards(analyzed,
+				Math.min(analyzed.size(), numWorkers * SHARDS_PER_WORKER));
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+		boolean firstRound = true;
+		try {
+			while (pending.isEmpty() == false) {
+				Logger.log(String.format("Analyzing %d shards in %d worker processes",
+						pending.size(), numWorkers));
+				List<Future<Boolean>> futures = new LinkedList<Future<Boolean>>();
+				for (final Shard s : pending) {
+					futures.add(executor.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							return runWorker(s);
+						}
+					}));
+				}
+				List<Shard> failed = new LinkedList<Shard>();
+				for (int i = 0; i < pending.size(); i++) {
+					Shard s = pending.get(i);
+					if (succeeded(futures.get(i))) {
+						result.add(getResultFile(getListFile(s).getPath()));
+					} else {
+						failed.add(s);
+					}
+				}
+				// If nothing worked at all, something is wrong with the workers rather than with
+				// some of the files. Retries only fail entirely if all their files are bad.
+				if (firstRound && failed.size() == pending.size()) {
+					throw new IOException(String.format(
+							"All %d workers failed, see their logs in %s",
+							pending.size(), folder.getPath()));
+				}
+				firstRound = false;
+				pending = retry(failed);
+			}
+		} finally {
+			executor.shutdownNow();
+			// Workers still running are not waited for, and must not outlive the coordinator
+			synchronized (processes) {
+				stopped = true;
+				for (Process p : processes) p.destroy();
+			}
+		}
+		return result;
+	}
+
+	private List<Shard> createShards(List<String> files, int numShards) {
+		List<List<String>> split = new ArrayList<List<String>>();
+		for (int i = 0; i < numShards; i++) split.add(new LinkedList<String>());
+		// Round-robin, so that files from the same folder are spread between the shards
+		for (int i = 0; i < files.size(); i++) split.get(i % numShards).add(files.get(i));
+		List<Shard> result = new LinkedList<Shard>();
+		for (List<String> l : split) result.add(new Shard(nextShardId++, l));
+		return result;
+	}
+
+	private List<Shard> retry(List<Shard> failed) {
+		List<Shard> result = new LinkedList<Shard>();
+		for (Shard s : failed) {
+			if (s.files.size() == 1) {
+				Logger.warn("Giving up on analyzing " + s.files.get(0));
+				continue;
+			}
+			Logger.warn(String.format("Shard %d failed, retrying its %d files in two shards",
+					s.id, s.files.size()));
+			result.addAll(createShards(s.files, 2));
+		}
+		return result;
+	}
+
+	private static boolean succeeded(Future<Boolean> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Logger.exception(e.getCause());
+			return false;
+		}
+	}
+
+	private File getListFile(Shard s) {
+		return new File(folder, "shard-" + s.id + ".txt");
+	}
+
+	/**
+	 * Analyze a shard in a new worker process, and wait for it to end.
+	 * @param s
+	 * @return True if the worker saved its results.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean runWorker(Shard s) throws IOException, InterruptedException {
+		File listFile = getListFile(s);
+		FileUtils.writeLines(listFile, s.files);
+		File resultFile = new File(getResultFile(listFile.getPath()));
+		resultFile.delete();
+		File workFolder = new File(folder, "shard-" + s.id);
+		File logFile = new File(folder, "shard-" + s.id + ".log");
+
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			// A debugger can only be attached to one process
+			if (arg.startsWith("-agentlib:jdwp") || arg.startsWith("-Xrunjdwp")) continue;
+			if (isHeapSizeArg(arg)) continue;
+			command.add(arg);
+		}
+		if (workerHeap > 0) command.add("-Xmx" + (workerHeap >> 20) + "m");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(PrimeMain.class.getName());
+		command.addAll(workerArgs);
+		command.addAll(PrimeMain.createShardArgs(listFile.getPath(),
+				workFolder.getPath(), new File(workFolder, "temp").getPath()));
+
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		synchronized (processes) {
+			if (stopped) {
+				p.destroy();
+				throw new InterruptedException();
+			}
+			processes.add(p);
+		}
+		int status;
+		try {
+			OutputStream log = new FileOutputStream(logFile);
+			try {
+				IOUtils.copy(p.getInputStream(), log);
+				status = p.waitFor();
+			} finally {
+				log.close();
+			}
+		} finally {
+			p.destroy();
+			synchronized (processes) {
+				processes.remove(p);
+			}
+		}
+		FileUtils.deleteQuietly(new File(workFolder, "temp"));
+		if (status != 0 || resultFile.exists() == false) {
+			Logger.warn(String.format("Worker of shard %d failed with status %d, see %s",
+					s.id, status, logFile.getPath()));
+			return false;
+		}
+		Logger.log(String.format("Shard %d done, %d files analyzed", s.id, s.files.size()));
+		return true;
+	}
+
+	private static boolean isHeapSizeArg(String arg) {
+		for (String prefix : HEAP_SIZE_ARGS) {
+			if (arg.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+}
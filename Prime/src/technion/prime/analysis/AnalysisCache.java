@@ -0,0 +1,488 @@
+package technion.prime.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import technion.prime.Options;
+import technion.prime.history.HistoryCollection;
+import technion.prime.statistics.AnalysisDetails;
+import technion.prime.utils.CompiledItem;
+import technion.prime.utils.Logger;
+
+/**
+ * An on-disk cache of analysis results, shared between runs.
+ *
+ * Results are stored by a key made of the hash of the analyzed bytecode and of the options
+ * affecting the analysis, so identical classes are only analyzed once, wherever they come from.
+ * When called methods are analyzed as well (see {@link Options#getInterproceduralDepth()}), the
+ * key of a class also covers the bytecode of the classes it may call into, up to that depth. These
+ * are looked up next to the class, in the same folder or jar; classes found elsewhere, such as
+ * libraries, are not covered.
+ *
+ * Along with the results, an entry keeps the number of methods they cover, so a hit counts in the
+ * analysis statistics as if the methods were analyzed.
+ *
+ * Entries are written to a temporary file which is then renamed, so several processes may share
+ * the same cache folder. Once the folder grows beyond {@link Options#getAnalysisCacheMaxSize()},
+ * the least recently used entries are deleted.
+ */
+public class AnalysisCache {
+	// Change whenever the analysis changes in a way that affects its results
+	private static final int FORMAT_VERSION = 2;
+	private static final String ENTRY_SUFFIX = ".hc";
+	// Once over its maximum size, the cache is cut down to this percentage of it
+	private static final int EVICTION_TARGET_PERCENT = 90;
+	// Stands for a class which could not be found
+	private static final ClassInfo MISSING = new ClassInfo(null, null, null);
+
+	/**
+	 * What keying needs to know of a class file.
+	 */
+	private static class ClassInfo {
+		final byte[] digest;
+		// Names of the classes the class refers to, other than itself and its superclass
+		final Set<String> references;
+		// Null if there is none
+		final String superclass;
+
+		ClassInfo(byte[] digest, Set<String> references, String superclass) {
+			this.digest = digest;
+			this.references = references;
+			this.superclass = superclass;
+		}
+	}
+
+	/**
+	 * An entry file, with its length and last use as they were when the folder was listed.
+	 */
+	private static class Entry {
+		final File file;
+		final long length;
+		final long lastModified;
+
+		Entry(File file) {
+			this.file = file;
+			length = file.length();
+			lastModified = file.lastModified();
+		}
+	}
+
+	private final Options options;
+	private final File folder;
+	private final String optionsFingerprint;
+	// Classes read while calculating keys, by the location they were looked up in and name
+	private final Map<String, ClassInfo> classInfos = new ConcurrentHashMap<String, ClassInfo>();
+	// The size of the folder when it was last listed, plus whatever was stored since
+	private long size;
+
+	public AnalysisCache(Options options) {
+		this.options = options;
+		folder = new File(options.getAnalysisCacheDir());
+		folder.mkdirs();
+		optionsFingerprint = calculateOptionsFingerprint(options);
+		evict();
+	}
+
+	private static String calculateOptionsFingerprint(Options options) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(FORMAT_VERSION).append('\n');
+		sb.append(options.getFilterAnalyzed()).append('\n');
+		sb.append(options.getFilterBaseTracked()).append('\n');
+		sb.append(options.getFilterReported()).append('\n');
+		sb.append(options.getFilterOpaqueTypes()).append('\n');
+		sb.append(options.getInterproceduralDepth()).append('\n');
+		sb.append(options.getFlowStepBudgetPerStatement()).append('\n');
+		sb.append(options.isMayAnalysis()).append('\n');
+		sb.append(options.isSameTypeRequiredForReceiver()).append('\n');
+		sb.append(options.separateUnknownSources()).append('\n');
+		sb.append(options.getHistoryCollectionType().getName()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * @param item A compiled class, either a class file or a class inside a jar.
+	 * @return The cache key of the analysis results of the class.
+	 * @throws IOException If the bytecode of the class could not be read.
+	 */
+	public String getKey(CompiledItem item) throws IOException {
+		byte[] bytecode = readBytecode(item);
+		MessageDigest digest = createDigest(item.getClassName());
+		digest.update(bytecode);
+		int depth = options.getInterproceduralDepth();
+		if (depth > 0) {
+			// Calls are stepped into from the analyzed method and from up to depth callees below it
+			Map<String, ClassInfo> callees = new TreeMap<String, ClassInfo>();
+			collectCallees(item, parse(bytecode), depth + 1, new HashMap<String, Integer>(),
+					callees);
+			for (Map.Entry<String, ClassInfo> e : callees.entrySet()) {
+				digest.update(getBytes(e.getKey()));
+				digest.update(e.getValue().digest);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param jar Path to a jar file.
+	 * @return The cache key of the analysis results of all the classes in the jar.
+	 * @throws IOException If the jar could not be read.
+	 */
+	public String getJarKey(String jar) throws IOException {
+		MessageDigest digest = createDigest("");
+		digest.update(readStream(new FileInputStream(jar)));
+		return toHex(digest.digest());
+	}
+
+	private MessageDigest createDigest(String name) {
+		MessageDigest digest = newDigest();
+		digest.update(getBytes(optionsFingerprint));
+		digest.update(getBytes(name));
+		return digest;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] getBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Find the classes whose methods may be analyzed along with those of a class.
+	 * A method resolved in some class may be declared in any of its superclasses, so these
+	 * are followed without using up the depth.
+	 * @param item The analyzed class.
+	 * @param c A class found so far.
+	 * @param depth How many more levels of calls may be stepped into from the methods of
+	 * <code>c</code>.
+	 * @param visited The largest depth each class was already visited with, by class name.
+	 * @param result The classes found, by class name.
+	 */
+	private void collectCallees(CompiledItem item, ClassInfo c, int depth,
+			Map<String, Integer> visited, Map<String, ClassInfo> result) {
+		if (c.superclass != null) addCallee(item, c.superclass, depth, visited, result);
+		if (depth == 0) return;
+		for (String name : c.references) {
+			addCallee(item, name, depth - 1, visited, result);
+		}
+	}
+
+	private void addCallee(CompiledItem item, String name, int depth,
+			Map<String, Integer> visited, Map<String, ClassInfo> result) {
+		if (name.equals(item.getClassName())) return;
+		Integer previous = visited.get(name);
+		if (previous != null && previous >= depth) return;
+		visited.put(name, depth);
+		ClassInfo info = getClassInfo(item.getBasePath(), name);
+		if (info == MISSING) return;
+		result.put(name, info);
+		collectCallees(item, info, depth, visited, result);
+	}
+
+	private ClassInfo getClassInfo(String basePath, String className) {
+		String key = basePath + '!' + className;
+		ClassInfo result = classInfos.get(key);
+		if (result != null) return result;
+		try {
+			byte[] bytecode = readClass(basePath, className);
+			result = bytecode == null ? MISSING : parse(bytecode);
+		} catch (IOException e) {
+			result = MISSING;
+		}
+		classInfos.put(key, result);
+		return result;
+	}
+
+	/**
+	 * @param bytecode The contents of a class file.
+	 * @return The digest of the class, and the classes it refers to.
+	 * @throws IOException If the class file is malformed.
+	 */
+	private static ClassInfo parse(byte[] bytecode) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytecode));
+		if (in.readInt() != 0xCAFEBABE) throw new IOException("not a class file");
+		// Minor and major versions
+		in.readUnsignedShort();
+		in.readUnsignedShort();
+		int count = in.readUnsignedShort();
+		String[] strings = new String[count];
+		// For each class constant, the index of its name
+		int[] classNames = new int[count];
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1: // Utf8
+				strings[i] = in.readUTF();
+				break;
+			case 7: // Class
+				classNames[i] = in.readUnsignedShort();
+				break;
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				in.readUnsignedShort();
+				break;
+			case 15: // MethodHandle
+				in.readUnsignedByte();
+				in.readUnsignedShort();
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.readInt();
+				break;
+			case 5: // Long
+			case 6: // Double
+				in.readLong();
+				// Takes up two entries
+				i++;
+				break;
+			default:
+				throw new IOException("unknown constant pool tag " + tag);
+			}
+		}
+		// Access flags
+		in.readUnsignedShort();
+		int thisClass = in.readUnsignedShort();
+		int superClass = in.readUnsignedShort();
+		Set<String> references = new HashSet<String>();
+		for (int i = 1; i < count; i++) {
+			if (classNames[i] == 0 || i == thisClass || i == superClass) continue;
+			String name = toClassName(strings[classNames[i]]);
+			if (name != null) references.add(name);
+		}
+		String superclass = superClass == 0 ? null : toClassName(strings[classNames[superClass]]);
+		return new ClassInfo(newDigest().digest(bytecode), references, superclass);
+	}
+
+	/**
+	 * @param internalName A class name as it appears in a class file, e.g. "a/b/C" or "[La/b/C;".
+	 * @return The class name, e.g. "a.b.C", or null for an array of primitives.
+	 */
+	private static String toClassName(String internalName) {
+		if (internalName == null) return null;
+		String name = internalName;
+		if (name.startsWith("[")) {
+			name = name.substring(name.lastIndexOf('[') + 1);
+			if (name.startsWith("L") == false) return null;
+			name = name.substring(1, name.length() - 1);
+		}
+		return name.replace('/', '.');
+	}
+
+	private static byte[] readBytecode(CompiledItem item) throws IOException {
+		if (item.getFilename().endsWith(".class")) {
+			return readStream(new FileInputStream(item.getFilename()));
+		}
+		byte[] result = readClass(item.getFilename(), item.getClassName());
+		if (result == null) {
+			throw new IOException(item.getClassName() + " not found in " + item.getFilename());
+		}
+		return result;
+	}
+
+	/**
+	 * @param basePath A classpath entry, either a folder or a jar.
+	 * @param className
+	 * @return The bytecode of the class, or null if it is not there.
+	 * @throws IOException
+	 */
+	private static byte[] readClass(String basePath, String className) throws IOException {
+		String entryName = className.replace('.', '/') + ".class";
+		if (new File(basePath).isDirectory()) {
+			File f = new File(basePath, entryName);
+			return f.isFile() ? readStream(new FileInputStream(f)) : null;
+		}
+		JarFile jar = new JarFile(basePath);
+		try {
+			JarEntry entry = jar.getJarEntry(entryName);
+			return entry == null ? null : readStream(jar.getInputStream(entry));
+		} finally {
+			jar.close();
+		}
+	}
+
+	private static byte[] readStream(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private File getEntryFile(String key) {
+		return new File(folder, key + ENTRY_SUFFIX);
+	}
+
+	/**
+	 * @param key
+	 * @return The cached results for the key, or null if there are none.
+	 */
+	public HistoryCollection get(String key) {
+		AnalysisDetails details = options.getOngoingAnalysisDetails();
+		File f = getEntryFile(key);
+		HistoryCollection result = null;
+		int numMethods = 0;
+		if (f.exists()) {
+			try {
+				ObjectInputStream in = new ObjectInputStream(new FileInputStream(f));
+				try {
+					numMethods = in.readInt();
+					result = (HistoryCollection) in.readObject();
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// Corrupt, or deleted by another process meanwhile
+				Logger.warn("Could not read cached analysis result " + f.getPath());
+				f.delete();
+			} catch (ClassNotFoundException e) {
+				Logger.warn("Could not read cached analysis result " + f.getPath());
+				f.delete();
+			}
+		}
+		if (result == null) {
+			details.incrementField(AnalysisDetails.ANALYSIS_CACHE_MISSES);
+			return null;
+		}
+		details.incrementField(AnalysisDetails.ANALYSIS_CACHE_HITS);
+		// Only results of methods which were all analyzed successfully are cached
+		details.addToField(AnalysisDetails.METHODS_SUCCEEDED, numMethods);
+		details.addToField(AnalysisDetails.TOTAL_METHODS, numMethods);
+		result.recursivelySetOptions(options);
+		// Mark as recently used
+		f.setLastModified(System.currentTimeMillis());
+		return result;
+	}
+
+	/**
+	 * Store results in the cache, replacing any existing results for the key.
+	 * @param key
+	 * @param hc
+	 * @param numMethods The number of methods the results cover, all of them successfully analyzed.
+	 */
+	public void put(String key, HistoryCollection hc, int numMethods) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", folder);
+			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmp));
+			try {
+				out.writeInt(numMethods);
+				out.writeObject(hc);
+			} finally {
+				out.close();
+			}
+			long length = tmp.length();
+			File f = getEntryFile(key);
+			long replaced = f.length();
+			if (tmp.renameTo(f) == false) {
+				// Some platforms do not replace existing files
+				f.delete();
+				if (tmp.renameTo(f) == false) throw new IOException("could not rename " + tmp);
+			}
+			tmp = null;
+			added(length - replaced);
+		} catch (IOException e) {
+			Logger.warn("Could not save analysis result to the cache");
+			Logger.exception(e);
+		} finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/**
+	 * Account for a change in the size of the cache, and evict entries if it is now too large.
+	 * Other processes sharing the folder are only noticed when it is listed again, on eviction.
+	 * @param length
+	 */
+	private synchronized void added(long length) {
+		size += length;
+		if (size > options.getAnalysisCacheMaxSize()) evict();
+	}
+
+	/**
+	 * If the cache is larger than its maximum size, delete the least recently used entries until
+	 * it is back below a fraction of it, so the folder is not listed again on the next store.
+	 */
+	private synchronized void evict() {
+		File[] files = folder.listFiles();
+		size = 0;
+		if (files == null) return;
+		List<Entry> entries = new ArrayList<Entry>();
+		for (File f : files) {
+			if (f.getName().endsWith(ENTRY_SUFFIX)) {
+				Entry e = new Entry(f);
+				entries.add(e);
+				size += e.length;
+			} else {
+				size += f.length();
+			}
+		}
+		long max = options.getAnalysisCacheMaxSize();
+		if (size <= max) return;
+		long target = max / 100 * EVICTION_TARGET_PERCENT;
+		// Sorted by the times taken above, as these may change while sorting
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				long m1 = e1.lastModified;
+				long m2 = e2.lastModified;
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		for (Entry e : entries) {
+			if (size <= target) break;
+			if (e.file.delete()) size -= e.length;
+		}
+	}
+}
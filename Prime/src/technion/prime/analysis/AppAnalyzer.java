@@ -1,7 +1,11 @@
 package technion.prime.analysis;
 
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import technion.prime.statistics.AnalysisDetails;
@@ -32,13 +36,27 @@ public class AppAnalyzer {
 	 * @throws CanceledException 
 	 */
 	public HistoryCollection analyzeApp(App a) throws CanceledException {
+		return analyzeApp(a, null, null);
+	}
+
+	/**
+	 * Analyze all the classes loaded into an application abstraction.
+	 * @param a The application abstraction in which the classes are loaded.
+	 * @param classResults If not null, the results of each class all of whose methods were
+	 * successfully analyzed are put here, by class name.
+	 * @param classMethods If not null, the number of methods of each class put in
+	 * <code>classResults</code> is put here, by class name.
+	 * @return A new history collection with all the typestate information.
+	 * @throws CanceledException 
+	 */
+	public HistoryCollection analyzeApp(App a, Map<String, HistoryCollection> classResults,
+			Map<String, Integer> classMethods) throws CanceledException {
 		int totalClassCount = a.getClasses().size();
 		// Prepare a list of eligible classes.
 		// Must appear before the stage starts because this is used to calculate the stage length.
 		LinkedList<AppClass> classes = new LinkedList<AppClass>();
 		for (AppClass c : a.getClasses()) {
-			if (c.isInterface() || c.isPhantom() || options.getFilterAnalyzed().failsFilter(c.getName())) continue;
-			classes.add(c);
+			if (shouldAnalyze(c)) classes.add(c);
 		}
 		int classCount = classes.size();
 		
@@ -49,19 +67,57 @@ public class AppAnalyzer {
 		Logger.debug("opaque types filter: " + options.getFilterOpaqueTypes().toString());
 		Logger.debug("found " + classCount + "/" + totalClassCount + " eligible classes.");
 		
-		// Analyze!
-		HistoryCollection hc = options.newHistoryCollection();
-		int analyzed = 0;
+		// Analyze! All the methods of all the classes are analyzed by a single scheduler, so
+		// threads never wait for the slowest method of some class. Every worker thread merges
+		// the results of its methods into a collection of its own, so workers never wait for
+		// each other to merge either.
+		final ConcurrentLinkedQueue<HistoryCollection> partials =
+				new ConcurrentLinkedQueue<HistoryCollection>();
+		ThreadLocal<HistoryCollection> partial = new ThreadLocal<HistoryCollection>() {
+			@Override
+			protected HistoryCollection initialValue() {
+				HistoryCollection result = options.newHistoryCollection();
+				partials.add(result);
+				return result;
+			}
+		};
+		LinkedList<ClassProgress> progresses = new LinkedList<ClassProgress>();
+		LinkedList<Callable<Void>> tasks = new LinkedList<Callable<Void>>();
 		for (AppClass c : classes) {
-			try {
-				Logger.progress();
-				HistoryCollection singleResult = analyzeClass(c, analyzed, classCount);
-				hc.unionFrom(singleResult);
-				analyzed++;
-				//a.unloadClass(c);
-			} catch (InterruptedException e) {
-				continue;
-			} 
+			LinkedList<AppMethodDecl> methods = new LinkedList<AppMethodDecl>();
+			for (AppMethodDecl m : c.getMethods()) methods.add(m);
+			ClassProgress progress = new ClassProgress(c, progresses.size(), methods.size(),
+					classResults != null);
+			progresses.add(progress);
+			for (AppMethodDecl m : methods) {
+				tasks.add(createMethodTask(m, progress, partial));
+			}
+		}
+		long methodTimeout = options.getSingleActionTimeout(Stage.ANALYZING);
+		long stageTimeout = options.getStageTimeout(Stage.ANALYZING);
+		int analyzed = 0;
+		HistoryCollection hc;
+		try {
+			if (options.isStageParallel(Stage.ANALYZING)) {
+				ConcurrencyUtils.callInParallel("parallel-method-analysis", tasks, methodTimeout, stageTimeout);
+			} else {
+				ConcurrencyUtils.callSequentially("sequential-method-analysis", tasks, methodTimeout);
+			}
+			for (ClassProgress progress : progresses) {
+				// Classes with methods which timed out, or were never started, count as done now
+				progress.reportDone();
+				if (progress.recordDetails(classCount)) analyzed++;
+				if (classResults != null && progress.allSucceeded()) {
+					classResults.put(progress.c.getName(), progress.results);
+					if (classMethods != null) classMethods.put(progress.c.getName(), progress.numMethods);
+				}
+			}
+			// Adding to a collection only appends, so the results are simply concatenated
+			hc = mergeAll(partials);
+		} finally {
+			// Worker threads may outlive this call, and so would the results they hold
+			clearAll(partials);
+			partial.remove();
 		}
 		// cleanup internal soot static info
 		SootApp.reset();
@@ -74,82 +130,190 @@ public class AppAnalyzer {
 		return hc;
 	}
 	
-	private HistoryCollection analyzeClass(AppClass c, int classNum, int classCount) throws CanceledException {
-		if (c.isInterface() || c.isPhantom() || options.getFilterAnalyzed().failsFilter(c.getName())) {
-			assert(false);
-			return null;
+	/**
+	 * Concatenate the results of the worker threads into a single collection.
+	 * Every collection is locked while it is read, since a method task which timed out may still
+	 * be adding to it.
+	 * @param hcs The results of the worker threads.
+	 * @return A new collection with all the histories of the given collections.
+	 */
+	private HistoryCollection mergeAll(Collection<HistoryCollection> hcs) {
+		HistoryCollection result = options.newHistoryCollection();
+		for (HistoryCollection hc : hcs) {
+			synchronized (hc) {
+				result.unionFrom(hc);
+			}
 		}
-		Logger.debug("analyzing class " + (classNum + 1) + "/" + classCount + " '" + c.getName() + "'",
-				false, false, false, true, true);
-		
-		final AtomicInteger methodCount = new AtomicInteger(0);
-		final AtomicInteger methodsSucceeded = new AtomicInteger(0);
-		LinkedList<Callable<HistoryCollection>> tasks = new LinkedList<Callable<HistoryCollection>>();
-		for (final AppMethodDecl m : c.getMethods()) {
-			tasks.add(new Callable<HistoryCollection>() {
-				@Override
-				public HistoryCollection call() throws CanceledException {
-					HistoryCollection hc = null;
-					ProgramState finalState = null;
+		return result;
+	}
+
+	/**
+	 * Empty the results of the worker threads, and forget them. Whatever a method task which
+	 * timed out adds to them later is dropped.
+	 * @param hcs The results of the worker threads.
+	 */
+	private static void clearAll(Collection<HistoryCollection> hcs) {
+		for (HistoryCollection hc : hcs) {
+			synchronized (hc) {
+				hc.clear();
+			}
+		}
+		hcs.clear();
+	}
+
+	/**
+	 * @param c
+	 * @return True if the methods of the class are analyzed by {@link #analyzeApp}.
+	 */
+	public boolean shouldAnalyze(AppClass c) {
+		return c.isInterface() == false && c.isPhantom() == false &&
+				options.getFilterAnalyzed().passesFilter(c.getName());
+	}
+
+	/**
+	 * Keeps track of the analysis of the methods of a single class.
+	 */
+	private class ClassProgress {
+		private final AppClass c;
+		private final int classNum;
+		private final int numMethods;
+		private final AtomicInteger methodCount = new AtomicInteger(0);
+		private final AtomicInteger methodsSucceeded = new AtomicInteger(0);
+		private final AtomicBoolean reported = new AtomicBoolean(false);
+		// The histories of this class alone, or null if they are not needed. Guarded by itself.
+		private final HistoryCollection results;
+
+		public ClassProgress(AppClass c, int classNum, int numMethods, boolean keepResults) {
+			this.c = c;
+			this.classNum = classNum;
+			this.numMethods = numMethods;
+			results = keepResults ? options.newHistoryCollection() : null;
+		}
+
+		/**
+		 * Call after each method of the class has been analyzed, whether successfully or not.
+		 * @param succeeded
+		 * @throws CanceledException
+		 */
+		public void methodDone(boolean succeeded) throws CanceledException {
+			if (succeeded) methodsSucceeded.getAndIncrement();
+			if (methodCount.incrementAndGet() == numMethods) reportDone();
+		}
+
+		/**
+		 * Advance the stage progress for this class, unless it was already advanced.
+		 * @throws CanceledException
+		 */
+		public void reportDone() throws CanceledException {
+			if (reported.getAndSet(true)) return;
+			try {
+				synchronized (AppAnalyzer.this) {
+					Logger.progress();
+				}
+			} catch (InterruptedException e) {
+				// Swallow, the progress was already counted
+			}
+		}
+
+		/**
+		 * @return True if all the methods of this class were analyzed successfully.
+		 */
+		public boolean allSucceeded() {
+			return methodsSucceeded.get() == numMethods;
+		}
+
+		/**
+		 * Add the results of this class to the ongoing analysis details.
+		 * @param classCount Total number of analyzed classes.
+		 * @return True if all the methods of this class were done.
+		 */
+		public boolean recordDetails(int classCount) {
+			Logger.debug("analyzed class " + (classNum + 1) + "/" + classCount + " '" + c.getName() +
+					"': " + methodsSucceeded.get() + "/" + methodCount.get() + " methods done.");
+			AnalysisDetails details = options.getOngoingAnalysisDetails();
+			details.addToField(AnalysisDetails.METHODS_SUCCEEDED, methodsSucceeded.get());
+			details.addToField(AnalysisDetails.TOTAL_METHODS, methodCount.get());
+			if (methodsSucceeded.get() == 0) details.addUnanalyzableClass(c);
+			return methodCount.get() == numMethods;
+		}
+	}
+
+	/**
+	 * @param m The method to analyze.
+	 * @param progress Progress of the class of the method. The histories found are added to its
+	 * results, if it keeps them.
+	 * @param partial The results of the current worker thread. The histories found are added to
+	 * them.
+	 * @return A task which analyzes the method.
+	 */
+	private Callable<Void> createMethodTask(
+			final AppMethodDecl m,
+			final ClassProgress progress,
+			final ThreadLocal<HistoryCollection> partial) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws CanceledException {
+				ProgramState finalState = null;
+				try {
+					finalState = analyze();
+				} finally {
+					progress.methodDone(finalState != null);
+				}
+				return null;
+			}
+
+			private ProgramState analyze() throws CanceledException {
+				HistoryCollection hc = null;
+				ProgramState finalState = null;
+				try {
+					ConcurrencyUtils.checkState();
+					finalState = options.newMethodAnalyzer().analyzeMethod(m, null, null);
+					ConcurrencyUtils.checkState();
+				} catch (InterruptedException e) {
+					// Swallow.
+				}
+				if (finalState == null) {
+					Logger.debug("*", true, false, false, false, false);
+				} else {
+					finalState.removeUntrackedHistories();
+					hc = finalState.toHistoryCollection();
 					try {
-						ConcurrencyUtils.checkState();
-						finalState = options.newMethodAnalyzer().analyzeMethod(m, null, null);
-						ConcurrencyUtils.checkState();
+						// Cluster together all identical histories.
+						// Do not increase weight - we assume that
+						// since they come from the same method, they very likely
+						// represent the same code.
+						// FIXME this actually hides a BUG which causes too many histories to
+						// appear on specific cases. To approach the bug, disable this
+						// and then re-run the project tests to pinpoint the issue.
+						hc = new AutomataSameClusterer(options) {
+							@Override protected String clusterName(
+									AutomataSameClusterer.Key key, int counter) {
+								return key.h.getTitle();
+							}
+							@Override protected History clusterHistories(History h1, History h2)
+									throws InterruptedException, CanceledException {
+								return h1;
+							}
+						}.convert(hc);
 					} catch (InterruptedException e) {
-						// Swallow.
+						// Nothing
 					}
-					if (finalState == null) {
-						Logger.debug("*", true, false, false, false, false);
-					} else {
-						methodsSucceeded.getAndIncrement();
-						finalState.removeUntrackedHistories();
-						hc = finalState.toHistoryCollection();
-						try {
-							// Cluster together all identical histories.
-							// Do not increase weight - we assume that
-							// since they come from the same method, they very likely
-							// represent the same code.
-							// FIXME this actually hides a BUG which causes too many histories to
-							// appear on specific cases. To approach the bug, disable this
-							// and then re-run the project tests to pinpoint the issue.
-							hc = new AutomataSameClusterer(options) {
-								@Override protected String clusterName(
-										AutomataSameClusterer.Key key, int counter) {
-									return key.h.getTitle();
-								}
-								@Override protected History clusterHistories(History h1, History h2)
-										throws InterruptedException, CanceledException {
-									return h1;
-								}
-							}.convert(hc);
-						} catch (InterruptedException e) {
-							// Nothing
+					hc.clearAllSources();
+					// Merge as soon as the method is done, rather than collecting all the results
+					// and merging them at the end
+					HistoryCollection results = partial.get();
+					synchronized (results) {
+						results.unionFrom(hc);
+					}
+					if (progress.results != null) {
+						synchronized (progress.results) {
+							progress.results.unionFrom(hc);
 						}
-						hc.clearAllSources();
-						Logger.debug(".", false, false, false, false, false);
 					}
-					methodCount.getAndIncrement();
-					return hc;
+					Logger.debug(".", false, false, false, false, false);
 				}
-			});
-		}
-		long methodTimeout = options.getSingleActionTimeout(Stage.ANALYZING);
-		long stageTimeout = options.getStageTimeout(Stage.ANALYZING);
-		LinkedList<HistoryCollection> hcs = options.isStageParallel(Stage.ANALYZING) ?
-			ConcurrencyUtils.callInParallel("parallel-method-analysis", tasks, methodTimeout, stageTimeout) :
-			ConcurrencyUtils.callSequentially("sequential-method-analysis", tasks, methodTimeout);
-		HistoryCollection result = options.newHistoryCollection();
-		for (HistoryCollection hc : hcs) {
-			if (hc == null) continue;
-			result.unionFrom(hc);
-		}
-		Logger.debug(" " + methodsSucceeded.get() + "/" + methodCount.get() + " methods done.", false, false, true, false, false);
-		AnalysisDetails details = options.getOngoingAnalysisDetails();
-		int oldMethodsSucceeded = details.getInteger(AnalysisDetails.METHODS_SUCCEEDED);
-		int oldMethodsTotal = details.getInteger(AnalysisDetails.TOTAL_METHODS);
-		details.setField(AnalysisDetails.METHODS_SUCCEEDED, oldMethodsSucceeded + methodsSucceeded.get());
-		details.setField(AnalysisDetails.TOTAL_METHODS, oldMethodsTotal + methodCount.get());
-		if (methodsSucceeded.get() == 0) details.addUnanalyzableClass(c);
-		return result;
+				return finalState;
+			}
+		};
 	}
 }
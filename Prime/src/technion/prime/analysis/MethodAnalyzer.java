@@ -6,6 +6,7 @@ import java.util.List;
 import javax.management.RuntimeErrorException;
 
 import technion.prime.dom.AppType;
+import technion.prime.statistics.AnalysisDetails;
 import technion.prime.dom.AppMethodDecl;
 import technion.prime.dom.AppObject;
 import technion.prime.utils.ConcurrencyUtils;
@@ -22,6 +23,8 @@ public abstract class MethodAnalyzer {
 	protected final Options options;
 	private LinkedList<StackFrame> stack = new LinkedList<StackFrame>();
 	private List<AppObject> lastReturned;
+	// Analyses made by this analyzer which used up their flow step budget, summarized ones included
+	private int overFlowBudget;
 
 	public MethodAnalyzer(Options options) {
 		this.options = options;
@@ -50,13 +53,43 @@ public abstract class MethodAnalyzer {
 			// recursion anyway.
 			return initialState;
 		}
+		MethodSummaries summaries = options.getMethodSummaries();
+		MethodSummaries.Key key = null;
+		ProgramState entryState = initialState;
+		if (initialState != null && summaries != null) {
+			// Only calls from another method are summarized. If so configured, the method is
+			// analyzed on the part of the state it may reach, whether or not there is a summary,
+			// so that calls which only differ elsewhere share a summary and get the same result.
+			if (options.summarizesReachableStateOnly()) entryState = initialState.reachableBy(args);
+			key = summaries.createKey(m, options.getInterproceduralDepth() - stack.size(),
+					entryState, args);
+			MethodSummaries.Summary summary = summaries.get(key);
+			if (summary != null) {
+				Logger.log(String.format("Using the summary of method %s", m.getSignature()));
+				options.getOngoingAnalysisDetails().incrementField(
+						AnalysisDetails.METHOD_SUMMARY_HITS);
+				for (int i = 0; i < summary.getOverFlowBudget(); i++) {
+					flowBudgetExhausted();
+				}
+				lastReturned = summary.getReturned();
+				ProgramState result = summary.getEndState();
+				result.addRemainderOf(initialState, entryState);
+				return result;
+			}
+		}
 		Logger.log(String.format("Analyzing method %s", m.getSignature()));
 		try {
+			int overFlowBudgetBefore = overFlowBudget;
 			enterMethod(m);
 			ProgramState result = null;
-			result = getEndResult(m, initialState, args);
+			result = getEndResult(m, entryState, args);
 			leaveMethod(m);
-			return result == null ? initialState : result;
+			if (result == null) result = entryState;
+			if (key != null) {
+				summaries.put(key, result, lastReturned, overFlowBudget - overFlowBudgetBefore);
+				result.addRemainderOf(initialState, entryState);
+			}
+			return result;
 		} catch (InterruptedException e) {
 			Logger.log("Seriously?");
 		} catch (CanceledException e) {
@@ -86,4 +119,12 @@ public abstract class MethodAnalyzer {
 	public List<AppObject> getLastReturned() {
 		return lastReturned;
 	}
+
+	/**
+	 * Record that a method analysis made by this analyzer used up its flow step budget.
+	 */
+	public void flowBudgetExhausted() {
+		overFlowBudget++;
+		options.getOngoingAnalysisDetails().incrementField(AnalysisDetails.METHODS_OVER_FLOW_BUDGET);
+	}
 }
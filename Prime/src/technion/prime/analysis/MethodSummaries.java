@@ -0,0 +1,189 @@
+package technion.prime.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import technion.prime.Options;
+import technion.prime.dom.AppMethodDecl;
+import technion.prime.dom.AppObject;
+import technion.prime.utils.Logger.CanceledException;
+
+/**
+ * A bounded store of method summaries, shared by all the method analyzers of an analysis.
+ *
+ * A summary records what analyzing a method as a callee did: the program state at its end, the
+ * objects it returned and how many of the analyses it involved used up their flow step budget. It
+ * is keyed by the method, the incoming program state (or only the part of it the method may reach,
+ * see {@link Options#summarizesReachableStateOnly()}), the arguments and the remaining
+ * inter-procedural depth, since all of these affect the result. A call with the same key can then
+ * use the summary instead of analyzing the method again.
+ *
+ * Summaries are shared by all the analysis threads, so the states they hold are deep copies, and
+ * a caller only ever gets a deep copy of them.
+ *
+ * When the store is full, the least recently used summary is dropped.
+ */
+public class MethodSummaries {
+	/**
+	 * Identifies a call of a method.
+	 */
+	public static class Key {
+		private final String signature;
+		private final int remainingDepth;
+		private final ProgramState state;
+		private final List<AppObject> args;
+		private final int hash;
+
+		private Key(String signature, int remainingDepth, ProgramState state, List<AppObject> args) {
+			this.signature = signature;
+			this.remainingDepth = remainingDepth;
+			this.state = state;
+			this.args = args;
+			int h = signature.hashCode();
+			h = 31 * h + remainingDepth;
+			h = 31 * h + state.hashCode();
+			h = 31 * h + (args == null ? 0 : args.hashCode());
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key == false) return false;
+			Key other = (Key) obj;
+			return hash == other.hash &&
+					remainingDepth == other.remainingDepth &&
+					signature.equals(other.signature) &&
+					(args == null ? other.args == null : args.equals(other.args)) &&
+					state.equals(other.state);
+		}
+	}
+
+	/**
+	 * The effect of a call of a method.
+	 */
+	public class Summary {
+		private final ProgramState endState;
+		private final List<AppObject> returned;
+		private final int overFlowBudget;
+
+		private Summary(ProgramState endState, List<AppObject> returned, int overFlowBudget) {
+			this.endState = endState;
+			this.returned = returned;
+			this.overFlowBudget = overFlowBudget;
+		}
+
+		/**
+		 * @return A deep copy of the state at the end of the call, which may be changed by the
+		 * caller.
+		 * @throws InterruptedException
+		 * @throws CanceledException
+		 */
+		public ProgramState getEndState() throws InterruptedException, CanceledException {
+			return copy(endState);
+		}
+
+		/**
+		 * @return The objects returned by the call, or null if it returned nothing.
+		 */
+		public List<AppObject> getReturned() {
+			return returned;
+		}
+
+		/**
+		 * @return How many method analyses made during the call, the called method's included,
+		 * used up their flow step budget.
+		 */
+		public int getOverFlowBudget() {
+			return overFlowBudget;
+		}
+	}
+
+	private final Options options;
+	private final Map<Key, Summary> summaries;
+
+	/**
+	 * @param options Prime options.
+	 * @param capacity Maximum number of summaries to keep.
+	 */
+	public MethodSummaries(Options options, final int capacity) {
+		this.options = options;
+		summaries = new LinkedHashMap<Key, Summary>(16, 0.75f, true) {
+			private static final long serialVersionUID = -3907374658713328317L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Summary> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param m The analyzed method.
+	 * @param remainingDepth How many more nested calls may be stepped into from <code>m</code>.
+	 * @param initialState The state when entering <code>m</code>, or the part of it which
+	 * <code>m</code> may reach. Copied, so it may later change, but must not be changed by
+	 * other threads.
+	 * @param args The arguments <code>m</code> is called with. May be null.
+	 * @return A key for looking up or storing the summary of this call.
+	 * @throws InterruptedException
+	 * @throws CanceledException
+	 */
+	public Key createKey(AppMethodDecl m, int remainingDepth, ProgramState initialState,
+			List<AppObject> args) throws InterruptedException, CanceledException {
+		ProgramState state = options.newProgramState();
+		state.copyFrom(initialState);
+		return new Key(
+				m.getSignature(),
+				remainingDepth,
+				state,
+				args == null ? null : new ArrayList<AppObject>(args));
+	}
+
+	/**
+	 * @param key
+	 * @return The summary of the call, or null if there is none.
+	 */
+	public Summary get(Key key) {
+		synchronized (summaries) {
+			return summaries.get(key);
+		}
+	}
+
+	/**
+	 * Store the summary of a call.
+	 * @param key A key made by the current thread.
+	 * @param endState The state at the end of the call. Copied, so it may later change.
+	 * @param returned The objects returned by the call. May be null.
+	 * @param overFlowBudget How many method analyses made during the call used up their flow step
+	 * budget.
+	 * @throws InterruptedException
+	 * @throws CanceledException
+	 */
+	public void put(Key key, ProgramState endState, List<AppObject> returned, int overFlowBudget)
+			throws InterruptedException, CanceledException {
+		// The state of the key may share objects with states of the current thread
+		Key stored = new Key(key.signature, key.remainingDepth, copy(key.state), key.args);
+		Summary s = new Summary(
+				copy(endState),
+				returned == null ? null :
+						Collections.unmodifiableList(new ArrayList<AppObject>(returned)),
+				overFlowBudget);
+		synchronized (summaries) {
+			summaries.put(stored, s);
+		}
+	}
+
+	private ProgramState copy(ProgramState ps) throws InterruptedException, CanceledException {
+		ProgramState result = options.newProgramState();
+		result.deepCopyFrom(ps);
+		return result;
+	}
+}
@@ -25,6 +25,15 @@ public interface ProgramState extends Cloneable {
 	void copyFrom(ProgramState ps)
 			 throws InterruptedException, CanceledException;
 	
+	/**
+	 * Like {@link #copyFrom(ProgramState)}, but also copies the objects of the other state and
+	 * their histories, so that this state shares nothing mutable with it and may be handed to
+	 * another thread.
+	 * @param ps The other ProgramState.
+	 */
+	void deepCopyFrom(ProgramState ps)
+			 throws InterruptedException, CanceledException;
+	
 	/**
 	 * Join a different ProgramState into this one, using the join operator of the analysis.
 	 * @param ps The other ProgramState
@@ -112,6 +121,11 @@ public interface ProgramState extends Cloneable {
 	 */
 	HistoryCollection toHistoryCollection();
 
+	/**
+	 * @return The number of abstract objects in this state.
+	 */
+	int size();
+
 	/**
 	 * Remove all histories that do not contain directly tracked types.
 	 */
@@ -159,4 +173,24 @@ public interface ProgramState extends Cloneable {
 	 */
 	void methodCallOnAll(AppMethodRef m) throws InterruptedException, CanceledException;
 
+	/**
+	 * Take the part of this state which a called method may reach: the objects which may be
+	 * pointed by its arguments or by their fields, or by a global access path.
+	 * 
+	 * @param args The arguments of the called method. If null, the whole state is taken.
+	 * @return A new state holding that part of this state.
+	 * @throws CanceledException 
+	 * @throws InterruptedException 
+	 */
+	ProgramState reachableBy(List<AppObject> args) throws InterruptedException, CanceledException;
+
+	/**
+	 * Add the objects of a state which are missing from a part of it, e.g. after a called method
+	 * was analyzed on the part returned by {@link #reachableBy(List)}.
+	 * 
+	 * @param whole The state the part was taken from.
+	 * @param part A state returned by <code>whole.reachableBy()</code>.
+	 */
+	void addRemainderOf(ProgramState whole, ProgramState part);
+
 }
@@ -5,6 +5,7 @@ import technion.prime.utils.ConcurrencyUtils;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import technion.prime.Options;
@@ -14,6 +15,7 @@ import technion.prime.dom.AppMethodRef;
 import technion.prime.dom.AppObject;
 import technion.prime.dom.AppType;
 import technion.prime.history.History;
+import technion.prime.utils.InternedSet;
 import technion.prime.utils.Logger.CanceledException;
 
 
@@ -34,6 +36,9 @@ import technion.prime.utils.Logger.CanceledException;
  * </ul>
  * Abstract objects are mutable. Equality and hash code are based on identity -
  * use sameContent() to check equality by content. 
+ * <br/>
+ * Access paths and types are interned in the {@link ObjectTables} of the analysis, and their sets
+ * are immutable bitsets of the interned ids, which clones share until they change.
  */
 public class AbstractObject implements Cloneable, Serializable {
 	private static final long serialVersionUID = -388418290412496994L;
@@ -41,14 +46,15 @@ public class AbstractObject implements Cloneable, Serializable {
 	private final Options options;
 	private final Label label;
 	
-	private HashSet<AppType> types = new HashSet<AppType>();
-	private HashSet<AppAccessPath> must = new HashSet<AppAccessPath>();
-	private HashSet<AppAccessPath> mustNot = new HashSet<AppAccessPath>();
+	private InternedSet<AppType> types;
+	private InternedSet<AppAccessPath> must;
+	private InternedSet<AppAccessPath> mustNot;
 	private boolean unique;
 	private boolean may;
 	private History h;
 	
 	private transient Integer contentHash;
+	private transient Integer contentHashWithoutHistory;
 
 	
 	/**
@@ -56,23 +62,30 @@ public class AbstractObject implements Cloneable, Serializable {
 	 */
 	private void prepareForUpdate() {
 		contentHash = null;
+		contentHashWithoutHistory = null;
 	}
 	
 	/**
 	 * @param options Prime options.
+	 * @param tables The tables of the current analysis, in which the access paths and types of the
+	 * object are interned.
 	 * @param label The label in which the abstract object first appears.
 	 * @param obj The initial app object represented by by this abstract object.
 	 * @param fromNew Whether this abstract object was created from a
 	 * <code>new T()</code> expression.
 	 * @param otherAccessPaths Other access paths currently known in the program.
 	 */
-	public AbstractObject(Options options, Label label, AppObject obj, boolean fromNew, Set<AppAccessPath> otherAccessPaths) {
+	public AbstractObject(Options options, ObjectTables tables, Label label, AppObject obj,
+			boolean fromNew, Set<AppAccessPath> otherAccessPaths) {
 		this.options = options;
 		this.label = label;
+		types = tables.getNoTypes();
+		must = tables.getNoAccessPaths();
+		mustNot = must;
 		addMustAccessPath(obj);
 		if (fromNew) {
 			unique = true;
-			mustNot.addAll(otherAccessPaths);
+			mustNot = mustNot.withAll(otherAccessPaths);
 		} else {
 			may = true;
 		}
@@ -116,9 +129,14 @@ public class AbstractObject implements Cloneable, Serializable {
 				(mustBe(receiver) == false && may &&
 				!(unique && noOtherLabelsForReceiver))
 				|| result.isEmpty()) {
-			AbstractObject newObject = clone();
-			newObject.addMustNotAccessPath(receiver);
-			result.add(newObject);
+			if (mustNot.contains(receiver.getAccessPath())) {
+				// Already known not to be the receiver
+				result.add(this);
+			} else {
+				AbstractObject newObject = clone();
+				newObject.addMustNotAccessPath(receiver);
+				result.add(newObject);
+			}
 		}
 		
 		return result;
@@ -148,7 +166,7 @@ public class AbstractObject implements Cloneable, Serializable {
 	 * @throws InterruptedException 
 	 */
 	public boolean mustBe(AppObject obj) throws InterruptedException, CanceledException {
-		return containedInAccessPathGroup(obj, must);
+		return must.contains(obj.getAccessPath());
 	}
 	
 	/**
@@ -160,22 +178,31 @@ public class AbstractObject implements Cloneable, Serializable {
 	 * @throws InterruptedException 
 	 */
 	public boolean mustNotBe(AppObject obj) throws InterruptedException, CanceledException {
-		return containedInAccessPathGroup(obj, mustNot);
+		return mustNot.contains(obj.getAccessPath());
 	}
 	
 	public boolean isUnique() {
 		return unique;
 	}
-	
-	private static boolean containedInAccessPathGroup(AppObject obj, Set<AppAccessPath> paths) throws InterruptedException, CanceledException {
-		for (AppAccessPath path : paths) {
-			ConcurrencyUtils.checkState();
-			if (obj.getAccessPath().equals(path)) return true;
+
+	/**
+	 * @param args The arguments of a called method.
+	 * @return False if the called method surely cannot reach this object: it is not pointed by
+	 * any of the arguments or by their fields, nor by a global access path.
+	 */
+	public boolean mayBeReachedBy(List<AppObject> args) {
+		if (may) return true;
+		for (AppAccessPath ap : must) {
+			if (ap.isLocal() == false) return true;
+		}
+		for (AppObject arg : args) {
+			if (arg == null || arg.isNull()) continue;
+			AppAccessPath argAp = arg.getAccessPath();
+			if (mustNot.contains(argAp) == false || mustPathsPrefixedBy(argAp)) return true;
 		}
 		return false;
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public AbstractObject clone() {
 		AbstractObject obj = null;
@@ -184,9 +211,7 @@ public class AbstractObject implements Cloneable, Serializable {
 		} catch (CloneNotSupportedException e) {
 			throw new InternalError();
 		}
-		obj.types = (HashSet<AppType>) types.clone();
-		obj.must = (HashSet<AppAccessPath>) must.clone();
-		obj.mustNot = (HashSet<AppAccessPath>) mustNot.clone();
+		// The sets are immutable, and shared with the clone
 		obj.may = may;
 		obj.unique = unique;
 		obj.h = h.clone();
@@ -208,27 +233,34 @@ public class AbstractObject implements Cloneable, Serializable {
 			return assignmentFromNull(lhs);
 		}
 		
-		AbstractObject result = clone();
-		result.prepareForUpdate();
-		
 		AppAccessPath lhsAp = lhs.getAccessPath();
 		AppAccessPath rhsAp = rhs.getAccessPath();
+		boolean mustNotBeRhs = mustNotBe(rhs);
+		if (mustNotBeRhs == mustNot.contains(lhsAp) &&
+				(lhsAp.getLength() > 1 && options.isMayAnalysis() && may == false) == false &&
+				mustPathsPrefixedBy(rhsAp) == false) {
+			// The assignment does not affect this object
+			return this;
+		}
+		
+		AbstractObject result = clone();
+		result.prepareForUpdate();
 		
 		for (AppAccessPath ap : must) {
 			ConcurrencyUtils.checkState();
 			if (ap.equals(rhsAp)) {
 				result.addMustAccessPath(lhs);
 			} else if (ap.prefixedBy(rhsAp)) {
-				result.must.add(lhsAp.concat(
+				result.must = result.must.with(lhsAp.concat(
 						ap.getSuffix(ap.getLength() - rhsAp.getLength())));
 			}
 		}
 		
-		if (mustNotBe(rhs) == false) {
-			result.mustNot.remove(lhsAp);
+		if (mustNotBeRhs == false) {
+			result.mustNot = result.mustNot.without(lhsAp);
 		} else {
 			// This is an extension of ISSTA'07
-			result.mustNot.add(lhsAp);
+			result.mustNot = result.mustNot.with(lhsAp);
 		}
 		
 		if (lhsAp.getLength() > 1 && options.isMayAnalysis()) result.setMay(true);
@@ -237,35 +269,56 @@ public class AbstractObject implements Cloneable, Serializable {
 	}
 	
 	private AbstractObject assignmentFromNull(AppObject lhs) throws InterruptedException, CanceledException {
+		AppAccessPath lhsAp = lhs.getAccessPath();
+		if (mustNot.contains(lhsAp) && mustPathsPrefixedBy(lhsAp) == false) {
+			// The assignment does not affect this object
+			return this;
+		}
+		
 		AbstractObject result = clone();
 		result.prepareForUpdate();
 		
-		AppAccessPath lhsAp = lhs.getAccessPath();
 		for (AppAccessPath ap : must) {
 			ConcurrencyUtils.checkState();
 			if (ap.prefixedBy(lhsAp)) {
-				result.must.remove(ap);
+				result.must = result.must.without(ap);
 			}
 		}
-		result.mustNot.add(lhsAp);
+		result.mustNot = result.mustNot.with(lhsAp);
 		
 		return result;
 	}
 
+	/**
+	 * @param ap
+	 * @return True if some path in the Must set starts with <code>ap</code>, or is equal to it.
+	 */
+	private boolean mustPathsPrefixedBy(AppAccessPath ap) {
+		for (AppAccessPath mustAp : must) {
+			if (mustAp.prefixedBy(ap)) return true;
+		}
+		return false;
+	}
+
 	void addMustAccessPath(AppObject obj) {
-		must.add(obj.getAccessPath());
-		types.add(obj.getType());
+		prepareForUpdate();
+		must = must.with(obj.getAccessPath());
+		types = types.with(obj.getType());
 	}
 	
 	void removeMustAccessPath(AppObject obj) {
-		must.remove(obj.getAccessPath());
+		prepareForUpdate();
+		must = must.without(obj.getAccessPath());
 	}
 	
 	void addMustNotAccessPath(AppObject obj) {
-		mustNot.add(obj.getAccessPath());
+		prepareForUpdate();
+		mustNot = mustNot.with(obj.getAccessPath());
 	}
 	
 	public AbstractObject newGlobalAccessPath(AppObject lhs) {
+		if (may || mustNot.contains(lhs.getAccessPath())) return this;
+		
 		AbstractObject result = clone();
 		
 		result.prepareForUpdate();
@@ -299,6 +352,7 @@ public class AbstractObject implements Cloneable, Serializable {
 	}
 
 	public void setUnique(boolean b) {
+		prepareForUpdate();
 		unique = b;
 	}
 	
@@ -342,6 +396,7 @@ public class AbstractObject implements Cloneable, Serializable {
 	 * @param h
 	 */
 	public void setHistory(History h) {
+		prepareForUpdate();
 		this.h = h;
 	}
 
@@ -350,6 +405,7 @@ public class AbstractObject implements Cloneable, Serializable {
 	 * @param may
 	 */
 	public void setMay(boolean may) {
+		prepareForUpdate();
 		this.may = may;
 	}
 
@@ -382,6 +438,8 @@ public class AbstractObject implements Cloneable, Serializable {
 	 * @return True if both abstract objects are identical except for their history.
 	 */
 	public boolean sameContentWithoutHistory(AbstractObject obj) {
+		if (this == obj) return true;
+		if (contentHashCodeWithoutHistory() != obj.contentHashCodeWithoutHistory()) return false;
 		return
 				label.equals(obj.label) &&
 				must.equals(obj.must) &&
@@ -390,6 +448,21 @@ public class AbstractObject implements Cloneable, Serializable {
 				unique == obj.unique;
 	}
 
+	/**
+	 * @return A hash code which agrees with {@link #sameContentWithoutHistory(AbstractObject)}.
+	 */
+	public int contentHashCodeWithoutHistory() {
+		if (contentHashWithoutHistory == null) {
+			contentHashWithoutHistory = 31;
+			contentHashWithoutHistory += 31 * label.hashCode();
+			contentHashWithoutHistory += 31 * must.hashCode();
+			contentHashWithoutHistory += may ? 31 : 0;
+			contentHashWithoutHistory += 31 * mustNot.hashCode();
+			contentHashWithoutHistory += unique ? 31 : 0;
+		}
+		return contentHashWithoutHistory;
+	}
+
 	public boolean morePreciseWithoutHistoryThan(AbstractObject obj) {
 		return
 				label.equals(obj.label) &&
@@ -0,0 +1,39 @@
+package technion.prime.analysis.issta07;
+
+import technion.prime.dom.AppAccessPath;
+import technion.prime.dom.AppType;
+import technion.prime.utils.InternTable;
+import technion.prime.utils.InternedSet;
+
+/**
+ * The tables in which the abstract objects of a single analysis intern their access paths and
+ * types. All the program states derived from the same initial state share one instance, so the
+ * tables only live as long as the analysis does. Objects using different tables may still be
+ * compared, only more slowly.
+ *
+ * The tables are created when first used. Thread-safe.
+ */
+public class ObjectTables {
+	private InternedSet<AppAccessPath> noAccessPaths;
+	private InternedSet<AppType> noTypes;
+
+	/**
+	 * @return The empty set of access paths.
+	 */
+	public synchronized InternedSet<AppAccessPath> getNoAccessPaths() {
+		if (noAccessPaths == null) {
+			noAccessPaths = InternedSet.empty(new InternTable<AppAccessPath>());
+		}
+		return noAccessPaths;
+	}
+
+	/**
+	 * @return The empty set of types.
+	 */
+	public synchronized InternedSet<AppType> getNoTypes() {
+		if (noTypes == null) {
+			noTypes = InternedSet.empty(new InternTable<AppType>());
+		}
+		return noTypes;
+	}
+}
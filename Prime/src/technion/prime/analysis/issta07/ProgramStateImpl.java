@@ -2,8 +2,10 @@ package technion.prime.analysis.issta07;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import technion.prime.analysis.soot.SootFlowAnalysis;
@@ -29,42 +31,134 @@ import technion.prime.analysis.ProgramState;
 import technion.prime.analysis.Label;
 
 
+/**
+ * The abstract objects of a state are never modified once they are in it; operations replace them
+ * with updated copies instead. This allows states to share abstract objects, and copyFrom() to
+ * share the sets themselves until one of the states changes.
+ */
 public class ProgramStateImpl implements ProgramState {
 	private final Options options;
 	private Set<AbstractObject> objects;
 	private Set<AppAccessPath> seenAccessPaths;
+	// False if the above sets may be shared with other states, and must be copied before changing
+	private boolean ownsObjects;
+	private boolean ownsSeenAccessPaths;
+	// States with the same content id have the same content. Replaced whenever the content changes.
+	private Object contentId = new Object();
+	private Integer hash;
 	private AppMethodDecl method;
+	// Shared by all the states derived from the same initial state
+	private ObjectTables tables = new ObjectTables();
 
 	public ProgramStateImpl(Options options) {
 		this.options = options;
 		objects = createObjectSet();
 		seenAccessPaths = new HashSet<AppAccessPath>();
+		ownsObjects = true;
+		ownsSeenAccessPaths = true;
 	}
 
 	@Override
 	public void copyFrom(ProgramState ps) {
 		ProgramStateImpl psi = downcast(ps);
-		objects = createObjectSet();
-		objects.addAll(psi.objects);
+		if (psi == this) return;
+		objects = psi.objects;
+		seenAccessPaths = psi.seenAccessPaths;
+		ownsObjects = false;
+		ownsSeenAccessPaths = false;
+		psi.ownsObjects = false;
+		psi.ownsSeenAccessPaths = false;
+		contentId = psi.contentId;
+		hash = psi.hash;
+		tables = psi.tables;
+	}
+
+	@Override
+	public void deepCopyFrom(ProgramState ps) {
+		ProgramStateImpl psi = downcast(ps);
+		if (psi == this) return;
+		Set<AbstractObject> newObjects = createObjectSet();
+		for (AbstractObject obj : psi.objects) {
+			newObjects.add(obj.clone());
+		}
+		objects = newObjects;
 		seenAccessPaths = new HashSet<AppAccessPath>(psi.seenAccessPaths);
+		ownsObjects = true;
+		ownsSeenAccessPaths = true;
+		// The copies have the same content
+		contentId = psi.contentId;
+		hash = psi.hash;
+		tables = psi.tables;
 	}
 
 	@Override
 	public void joinFrom(ProgramState ps) throws InterruptedException, CanceledException {
 		ProgramStateImpl psi = downcast(ps);
-		objects.addAll(psi.objects);
-		seenAccessPaths.addAll(psi.seenAccessPaths);
+		// A state which is still empty joins the analysis of the other state
+		if (objects.isEmpty()) tables = psi.tables;
+		if (psi.objects != objects) {
+			Set<AbstractObject> union = createObjectSet();
+			union.addAll(objects);
+			union.addAll(psi.objects);
+			updateObjects(union);
+		}
+		for (AppAccessPath ap : psi.seenAccessPaths) {
+			addSeenAccessPath(ap);
+		}
 		mergeHistoriesForMatchingObjects();
 		removeRedundantObjects();
 	}
 
+	private void contentChanged() {
+		contentId = new Object();
+		hash = null;
+	}
+
+	/**
+	 * Replace the objects of this state, unless the new objects are exactly the current ones.
+	 * @param newObjects A set which is not used anywhere else.
+	 */
+	private void updateObjects(Set<AbstractObject> newObjects) {
+		if (newObjects.size() == objects.size() && objects.containsAll(newObjects)) return;
+		objects = newObjects;
+		ownsObjects = true;
+		contentChanged();
+	}
+
+	private void addObject(AbstractObject obj) {
+		if (ownsObjects == false) {
+			Set<AbstractObject> copy = createObjectSet();
+			copy.addAll(objects);
+			objects = copy;
+			ownsObjects = true;
+		}
+		objects.add(obj);
+		contentChanged();
+	}
+
+	private void addSeenAccessPath(AppAccessPath ap) {
+		if (seenAccessPaths.contains(ap)) return;
+		if (ownsSeenAccessPaths == false) {
+			seenAccessPaths = new HashSet<AppAccessPath>(seenAccessPaths);
+			ownsSeenAccessPaths = true;
+		}
+		seenAccessPaths.add(ap);
+		contentChanged();
+	}
+
 	private void mergeHistoriesForMatchingObjects() throws InterruptedException, CanceledException {
 		Set<AbstractObject> newObjects = createObjectSet();
 		MultiMap<AbstractObject, History> buckets = createMergeBuckets();
 		for (AbstractObject obj : buckets.keySet()) {
 			ConcurrencyUtils.checkState();
+			Set<History> histories = buckets.getAll(obj);
+			if (histories.size() == 1) {
+				// Nothing to merge, obj already has the only history in its bucket
+				newObjects.add(obj);
+				continue;
+			}
 			History merged = null;
-			for (History h : buckets.getAll(obj)) {
+			for (History h : histories) {
 				if (merged == null) merged = h.clone();
 				else merged.joinFrom(h);
 			}
@@ -72,61 +166,78 @@ public class ProgramStateImpl implements ProgramState {
 			newObject.setHistory(merged);
 			newObjects.add(newObject);
 		}
-		objects = newObjects;
+		updateObjects(newObjects);
 	}
 
 	private MultiMap<AbstractObject, History> createMergeBuckets() throws InterruptedException,
 			CanceledException {
 		MultiMap<AbstractObject, History> result = new MultiMap<AbstractObject, History>();
+		// The first object of each bucket, by its content without history
+		Map<MergeKey, AbstractObject> representatives = new HashMap<MergeKey, AbstractObject>();
 		for (AbstractObject obj1 : objects) {
 			ConcurrencyUtils.checkState();
-			boolean found = false;
-			for (AbstractObject obj2 : result.keySet()) {
-				ConcurrencyUtils.checkState();
-				if (shouldBeMerged(obj1, obj2)) {
-					result.put(obj2, obj1.getHistory());
-					found = true;
-					break;
-				}
-			}
-			if (found == false) {
-				result.put(obj1, obj1.getHistory());
+			MergeKey key = new MergeKey(obj1);
+			AbstractObject obj2 = representatives.get(key);
+			if (obj2 == null) {
+				obj2 = obj1;
+				representatives.put(key, obj1);
 			}
+			result.put(obj2, obj1.getHistory());
 		}
 		return result;
 	}
 
-	private boolean shouldBeMerged(AbstractObject obj1, AbstractObject obj2)
-			throws InterruptedException, CanceledException {
-		// return obj1.morePreciseWithoutHistoryThan(obj2) ||
-		// obj2.morePreciseWithoutHistoryThan(obj1);
-		return obj1.sameContentWithoutHistory(obj2);
+	/**
+	 * Abstract objects which should be merged have equal merge keys.
+	 */
+	private static class MergeKey {
+		private final AbstractObject obj;
+
+		public MergeKey(AbstractObject obj) {
+			this.obj = obj;
+		}
+
+		@Override
+		public int hashCode() {
+			return obj.contentHashCodeWithoutHistory();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof MergeKey == false) return false;
+			// obj.morePreciseWithoutHistoryThan(other) is not an equivalence, so it cannot be
+			// used for bucketing.
+			return obj.sameContentWithoutHistory(((MergeKey) other).obj);
+		}
 	}
 
 	@Override
 	public void assignmentFromNew(Label l, AppObject lhs)
 			throws InterruptedException, CanceledException {
 		Set<AbstractObject> newObjects = createObjectSet();
-		for (AbstractObject obj : objects) {
-			newObjects.add(obj.assignment(lhs, null));
-		}
-		objects = newObjects;
 		boolean found = false;
 		for (AbstractObject obj : objects) {
 			ConcurrencyUtils.checkState();
-			if (obj.getLabel().equals(l)) {
+			AbstractObject newObj = obj.assignment(lhs, null);
+			if (newObj.getLabel().equals(l)) {
 				found = true;
-				obj.setUnique(false);
-			} else {
-				obj.newUniqueAccessPath(lhs);
+				if (newObj.isUnique()) {
+					if (newObj == obj) newObj = obj.clone();
+					newObj.setUnique(false);
+				}
+			} else if (newObj.mustNotBe(lhs) == false) {
+				if (newObj == obj) newObj = obj.clone();
+				newObj.newUniqueAccessPath(lhs);
 			}
+			newObjects.add(newObj);
 		}
+		updateObjects(newObjects);
 		if (found) {
-			objects.add(createStaleObject(l, lhs, seenAccessPaths));
+			addObject(createStaleObject(l, lhs, seenAccessPaths));
 		} else {
-			objects.add(createFreshObject(l, lhs));
+			addObject(createFreshObject(l, lhs));
 		}
-		seenAccessPaths.add(lhs.getAccessPath());
+		addSeenAccessPath(lhs.getAccessPath());
 		removeRedundantObjects();
 	}
 
@@ -134,12 +245,7 @@ public class ProgramStateImpl implements ProgramState {
 	public void assignmentFromPhantomMethod(Label l, AppObject lhs, AppObject receiver,
 			AppMethodRef m, Iterable<? extends AppObject> args) throws InterruptedException,
 			CanceledException {
-		Set<AbstractObject> newObjects = createObjectSet();
-		for (AbstractObject obj : objects) {
-			ConcurrencyUtils.checkState();
-			newObjects.add(obj.assignment(lhs, null));
-		}
-		objects = newObjects;
+		assignToAll(lhs, null);
 
 		AbstractObject newObj = lhs.getType().isPrimitive() ?
 				createFreshObject(l, lhs) :
@@ -151,9 +257,9 @@ public class ProgramStateImpl implements ProgramState {
 			if (h != null) newObj.setHistory(h);
 		}
 
-		objects.add(newObj);
+		addObject(newObj);
 		removeRedundantObjects();
-		seenAccessPaths.add(lhs.getAccessPath());
+		addSeenAccessPath(lhs.getAccessPath());
 	}
 
 	@Override
@@ -162,16 +268,9 @@ public class ProgramStateImpl implements ProgramState {
 		// Create the rhs, if it doesn't exist already and isn't null.
 		if (rhs != null && rhs.isNull() == false) addNewObjectIfMissing(l, rhs);
 
-		Set<AbstractObject> newObjects = createObjectSet();
-
-		for (AbstractObject obj : objects) {
-			ConcurrencyUtils.checkState();
-			newObjects.add(obj.assignment(lhs, rhs));
-		}
-
-		objects = newObjects;
+		assignToAll(lhs, rhs);
 		removeRedundantObjects();
-		seenAccessPaths.add(lhs.getAccessPath());
+		addSeenAccessPath(lhs.getAccessPath());
 	}
 
 	@Override
@@ -184,22 +283,27 @@ public class ProgramStateImpl implements ProgramState {
 				newObjects.add(obj.assignment(lhs, rhs));
 			}
 		}
-		objects = newObjects;
+		updateObjects(newObjects);
 		removeRedundantObjects();
-		seenAccessPaths.add(lhs.getAccessPath());
+		addSeenAccessPath(lhs.getAccessPath());
 	}
 
 	@Override
 	public void assignmentFromUntracked(Label l, SootAppObject lhs) throws InterruptedException,
 			CanceledException {
+		assignToAll(lhs, null);
+		removeRedundantObjects();
+		addSeenAccessPath(lhs.getAccessPath());
+	}
+
+	private void assignToAll(AppObject lhs, AppObject rhs)
+			throws InterruptedException, CanceledException {
 		Set<AbstractObject> newObjects = createObjectSet();
 		for (AbstractObject obj : objects) {
 			ConcurrencyUtils.checkState();
-			newObjects.add(obj.assignment(lhs, null));
+			newObjects.add(obj.assignment(lhs, rhs));
 		}
-		objects = newObjects;
-		removeRedundantObjects();
-		seenAccessPaths.add(lhs.getAccessPath());
+		updateObjects(newObjects);
 	}
 
 	@Override
@@ -235,12 +339,12 @@ public class ProgramStateImpl implements ProgramState {
 			if (obj.mustBe(receiver)) labelsPointedToByReceiver.add(obj.getLabel());
 		}
 
-		Set<AbstractObject> newObjects = new HashSet<AbstractObject>();
+		Set<AbstractObject> newObjects = createObjectSet();
 		for (AbstractObject obj : objects) {
 			newObjects.addAll(
 					obj.methodCall(receiver, m, args, labelsPointedToByReceiver.size() == 1));
 		}
-		objects = newObjects;
+		updateObjects(newObjects);
 	}
 
 	@Override
@@ -254,9 +358,14 @@ public class ProgramStateImpl implements ProgramState {
 		return result;
 	}
 
+	@Override
+	public int size() {
+		return objects.size();
+	}
+
 	@Override
 	public void removeUntrackedHistories() {
-		Set<AbstractObject> newObjects = new HashSet<AbstractObject>();
+		Set<AbstractObject> newObjects = createObjectSet();
 		object_loop: for (AbstractObject obj : objects) {
 			for (AppType t : obj.getHistory().getAllParticipatingTypes()) {
 				if (isTrackedType(t)) {
@@ -265,7 +374,7 @@ public class ProgramStateImpl implements ProgramState {
 				}
 			}
 		}
-		objects = newObjects;
+		updateObjects(newObjects);
 	}
 
 	private ProgramStateImpl downcast(Object o) {
@@ -298,14 +407,15 @@ public class ProgramStateImpl implements ProgramState {
 	}
 
 	private AbstractObject createFreshObject(Label l, AppObject lhs) {
-		return new AbstractObject(options, l, lhs, true, Collections.<AppAccessPath> emptySet());
+		return new AbstractObject(options, tables, l, lhs, true,
+				Collections.<AppAccessPath> emptySet());
 	}
 
 	private AbstractObject createStaleObject(Label l,
 			AppObject lhs, Set<AppAccessPath> seenAccessPaths)
 			throws InterruptedException, CanceledException {
-		AbstractObject result =
-				new AbstractObject(options, l, lhs, !options.isMayAnalysis(), seenAccessPaths);
+		AbstractObject result = new AbstractObject(options, tables, l, lhs,
+				!options.isMayAnalysis(), seenAccessPaths);
 		result.getHistory().extendWithMethodCall(new UnknownMethod(lhs.getType(), null), 1);
 		return result;
 	}
@@ -342,8 +452,8 @@ public class ProgramStateImpl implements ProgramState {
 		} else {
 			newObjects.add(createStaleObject(l, appObj, seenAccessPaths));
 		}
-		seenAccessPaths.add(objAp);
-		objects = newObjects;
+		addSeenAccessPath(objAp);
+		updateObjects(newObjects);
 	}
 
 	private boolean isTrackedType(AppType t) {
@@ -382,6 +492,8 @@ public class ProgramStateImpl implements ProgramState {
 	public boolean equals(Object obj) {
 		if (obj instanceof ProgramStateImpl == false) return false;
 		ProgramStateImpl psi = downcast(obj);
+		if (contentId == psi.contentId) return true;
+		if (hashCode() != psi.hashCode()) return false;
 		if (seenAccessPaths.equals(psi.seenAccessPaths) == false) return false;
 
 		return CollectionUtils.sameElements(objects, psi.objects, new Comparator<AbstractObject>() {
@@ -398,6 +510,19 @@ public class ProgramStateImpl implements ProgramState {
 		});
 	}
 
+	@Override
+	public int hashCode() {
+		if (hash == null) {
+			// Must not depend on the order of the objects, like equals()
+			int result = seenAccessPaths.hashCode();
+			for (AbstractObject obj : objects) {
+				result += obj.contentHashCode();
+			}
+			hash = result;
+		}
+		return hash;
+	}
+
 	@Override
 	public void setAnalyzedMethod(AppMethodDecl method) {
 		this.method = method;
@@ -407,13 +532,13 @@ public class ProgramStateImpl implements ProgramState {
 	public void assignmentFromNewParameter(Label l, SootAppObject obj) throws InterruptedException,
 			CanceledException {
 		if (seenAccessPaths.contains(obj.getAccessPath())) return;
-		AbstractObject result =
-				new AbstractObject(options, l, obj, !options.isMayAnalysis(), seenAccessPaths);
+		AbstractObject result = new AbstractObject(options, tables, l, obj,
+				!options.isMayAnalysis(), seenAccessPaths);
 		AppMethodRef amr = options.separateUnknownSources() ? new UnknownMethodFromParam(
 				obj.getType()) : new UnknownMethod(obj.getType(), null);
 		result.getHistory().extendWithMethodCall(amr, 1);
-		objects.add(result);
-		seenAccessPaths.add(obj.getAccessPath());
+		addObject(result);
+		addSeenAccessPath(obj.getAccessPath());
 	}
 
 	@Override
@@ -423,17 +548,17 @@ public class ProgramStateImpl implements ProgramState {
 			assignmentFromObject(l, lhs, rhs);
 			return;
 		}
-		AbstractObject result =
-				new AbstractObject(options, l, rhs, !options.isMayAnalysis(), seenAccessPaths);
-		seenAccessPaths.add(rhs.getAccessPath());
+		AbstractObject result = new AbstractObject(options, tables, l, rhs,
+				!options.isMayAnalysis(), seenAccessPaths);
+		addSeenAccessPath(rhs.getAccessPath());
 		result = result.assignment(lhs, rhs);
-		seenAccessPaths.add(lhs.getAccessPath());
+		addSeenAccessPath(lhs.getAccessPath());
 
 		AppMethodRef amr = options.separateUnknownSources() ? new UnknownMethodFromField(
 				lhs.getType(), annotations) : new UnknownMethod(lhs.getType(), null);
 
 		result.getHistory().extendWithMethodCall(amr, 1);
-		objects.add(result);
+		addObject(result);
 	}
 
 	@Override
@@ -442,7 +567,40 @@ public class ProgramStateImpl implements ProgramState {
 		for (AbstractObject obj : objects) {
 			newObjects.add(obj.unconditionalMethodCall(m));
 		}
-		objects = newObjects;
+		updateObjects(newObjects);
+	}
+
+	@Override
+	public ProgramState reachableBy(List<AppObject> args)
+			throws InterruptedException, CanceledException {
+		ProgramStateImpl result = new ProgramStateImpl(options);
+		result.copyFrom(this);
+		result.method = method;
+		if (args == null) return result;
+		Set<AbstractObject> reached = createObjectSet();
+		for (AbstractObject obj : objects) {
+			ConcurrencyUtils.checkState();
+			if (obj.mayBeReachedBy(args)) reached.add(obj);
+		}
+		result.updateObjects(reached);
+		return result;
+	}
+
+	@Override
+	public void addRemainderOf(ProgramState whole, ProgramState part) {
+		ProgramStateImpl w = downcast(whole);
+		ProgramStateImpl p = downcast(part);
+		// Abstract objects are never modified, so the part holds the very same instances
+		if (w.objects == p.objects) return;
+		Set<AbstractObject> newObjects = createObjectSet();
+		newObjects.addAll(objects);
+		for (AbstractObject obj : w.objects) {
+			if (p.objects.contains(obj) == false) newObjects.add(obj);
+		}
+		updateObjects(newObjects);
+		for (AppAccessPath ap : w.seenAccessPaths) {
+			addSeenAccessPath(ap);
+		}
 	}
 
 }
@@ -21,18 +21,38 @@ import technion.prime.statistics.AnalysisDetails;
 import technion.prime.analysis.AppLoader;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 
+/**
+ * Loads apps into Soot.
+ *
+ * By default, Soot is reset before each load, so the JDK is read and resolved anew every time.
+ * If {@link technion.prime.Options#usePersistentSootScene()} is set, the scene is kept between
+ * loads instead: before each load, every class not coming from the JDK is removed from it, so
+ * only the JDK classes stay resolved. Soot is still reset once every
+ * {@link technion.prime.Options#getSootSceneResetInterval()} loads, when the heap is getting full,
+ * and after a load or an analysis failed, so that a class which broke the scene cannot affect
+ * later loads.
+ */
 public class SootAppLoader implements AppLoader {
 	private final static String JAVA_HOME = System.getProperty("java.home");
 	private final static String RT_JAR_LOCATION_1 = JAVA_HOME + "/lib/rt.jar";
 	private final static String RT_JAR_LOCATION_2 = JAVA_HOME + "/../Classes/alt-rt.jar";
 	private final static String JCE_JAR_LOCATION = JAVA_HOME + "/lib/jce.jar";
 	private static Collection<String> basicClassPathElements;
+	// Soot has a single global scene, so its state is shared by all the loaders
+	private static Set<String> jdkClassNames;
+	private static Field doneResolvingField;
+	private static boolean doneResolvingFieldMissing;
+	private static boolean sceneWarm;
+	private static int loadsSinceReset;
 	
 	private Scene scene;
 	private technion.prime.Options primeOptions;
@@ -112,9 +132,18 @@ public class SootAppLoader implements AppLoader {
 		int numTotal = -1;
 		Logger.startStage(Stage.LOADING, compiledItems.size());
 		try {
-			initializeSoot();
+			Set<SootClass> retained = new HashSet<SootClass>();
+			if (primeOptions.usePersistentSootScene()) {
+				synchronized (SootAppLoader.class) {
+					initializePersistentSoot(retained);
+				}
+			} else {
+				initializeSoot();
+			}
 			SootApp app = new SootApp(scene);
 			for (SootClass c : scene.getClasses(SootClass.BODIES)) {
+				// JDK classes kept from previous loads are not part of this app
+				if (retained.contains(c)) continue;
 				try {
 					app.addLoadedClass(c);
 					if (c.isConcrete()) count++;
@@ -155,6 +184,115 @@ public class SootAppLoader implements AppLoader {
 			h.release();
 		}
 	}
+
+	/**
+	 * Load into the persistent scene, resetting Soot first only if needed.
+	 * @param retained Filled with the classes kept in the scene from previous loads.
+	 */
+	@SuppressWarnings("unchecked")
+	private void initializePersistentSoot(Set<SootClass> retained) {
+		if (sceneWarm && shouldResetScene()) sceneWarm = false;
+		if (sceneWarm == false) {
+			Logger.debug("Resetting the Soot scene");
+			initializeSoot();
+			sceneWarm = getDoneResolvingField() != null;
+			loadsSinceReset = 1;
+			return;
+		}
+		OutputHider h = new OutputHider();
+		boolean succeeded = false;
+		try {
+			sootOptions = soot.options.Options.v();
+			scene = Scene.v();
+			removeNonJdkClasses(retained);
+			setDoneResolving(false);
+			scene.setSootClassPath(calculateClasspath());
+			sootOptions.classes().clear();
+			sootOptions.classes().addAll(createClassList());
+			sootOptions.set_process_dir(new LinkedList<String>(entireFoldersOrJars));
+			loadClassesInSoot();
+			scene.loadNecessaryClasses();
+			loadsSinceReset++;
+			succeeded = true;
+		} finally {
+			h.release();
+			if (succeeded == false) sceneWarm = false;
+		}
+	}
+
+	private boolean shouldResetScene() {
+		if (loadsSinceReset >= primeOptions.getSootSceneResetInterval()) return true;
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		return used > rt.maxMemory() / 4 * 3;
+	}
+
+	/**
+	 * Remove every class which did not come from the JDK from the scene, together with everything
+	 * computed from the classes, such as the hierarchy.
+	 * @param retained Filled with the remaining classes.
+	 */
+	private void removeNonJdkClasses(Set<SootClass> retained) {
+		Set<String> jdk = getJdkClassNames();
+		for (SootClass c : new ArrayList<SootClass>(scene.getClasses())) {
+			if (c.isPhantom() == false && jdk.contains(c.getName())) {
+				c.setLibraryClass();
+				retained.add(c);
+			} else {
+				scene.removeClass(c);
+			}
+		}
+		scene.releaseActiveHierarchy();
+		scene.releaseFastHierarchy();
+		scene.releaseCallGraph();
+	}
+
+	private void setDoneResolving(boolean doneResolving) {
+		try {
+			getDoneResolvingField().setBoolean(scene, doneResolving);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Soot offers no way to resume resolving classes after it was marked as done, which reusing
+	 * the scene requires.
+	 * @return The field marking the scene as done resolving, or null if this version of Soot does
+	 * not have it, in which case the scene cannot be reused.
+	 */
+	private static Field getDoneResolvingField() {
+		if (doneResolvingField == null && doneResolvingFieldMissing == false) {
+			try {
+				Field f = Scene.class.getDeclaredField("doneResolving");
+				f.setAccessible(true);
+				doneResolvingField = f;
+			} catch (NoSuchFieldException e) {
+				doneResolvingFieldMissing = true;
+				Logger.warn("Soot does not support reusing its scene, resetting it before every load");
+			}
+		}
+		return doneResolvingField;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> getJdkClassNames() {
+		if (jdkClassNames == null) {
+			jdkClassNames = new HashSet<String>();
+			for (String path : getBasicClassPathElements()) {
+				jdkClassNames.addAll((Collection<String>)SourceLocator.v().getClassesUnder(path));
+			}
+		}
+		return jdkClassNames;
+	}
+
+	/**
+	 * Make the next load with a persistent scene start from a fresh Soot. Should be called after
+	 * a failure which may have left the scene in a bad state.
+	 */
+	public static synchronized void invalidateScene() {
+		sceneWarm = false;
+	}
 	
 	@SuppressWarnings("unchecked")
 	private void loadClassesInSoot() {
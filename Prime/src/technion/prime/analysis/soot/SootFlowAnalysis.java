@@ -1,9 +1,13 @@
 package technion.prime.analysis.soot;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import soot.Local;
 import soot.ResolutionFailedException;
@@ -28,6 +32,7 @@ import soot.tagkit.AnnotationTag;
 import soot.tagkit.Host;
 import soot.tagkit.Tag;
 import soot.tagkit.VisibilityAnnotationTag;
+import soot.toolkits.graph.DirectedGraph;
 import soot.toolkits.graph.UnitGraph;
 import soot.toolkits.scalar.ForwardFlowAnalysis;
 
@@ -69,12 +74,17 @@ public class SootFlowAnalysis extends ForwardFlowAnalysis<Unit, ProgramState> {
 	}
 
 	private final Scene scene;
-	private final ProgramState initialState;
+	private ProgramState initialState;
 	private final MethodAnalyzer analyzer;
 	private final SootMethod method;
 	private final Options options;
 	private List<AppObject> inputArgs;
+	// Flow steps allowed before degrading, for methods of any size
+	private static final int MIN_FLOW_STEPS = 10000;
 	private int flowedThrough;
+	private int joins;
+	private int peakStateSize;
+	private boolean overBudget;
 	/**
 	 * @param options Prime options.
 	 * @param analyzer The analyzer running this analysis. The analyzer is used for analyzing called method
@@ -127,9 +137,6 @@ public class SootFlowAnalysis extends ForwardFlowAnalysis<Unit, ProgramState> {
 	@Override
 	protected void flowThrough(ProgramState in, Unit u, ProgramState out) {
 		checkInterrupted();
-		//add counter for analysis if 10k flowthrough, abort
-		if (flowedThrough > 10000)
-			throw new RuntimeInterruptedException(new Exception("abort"));
 		++flowedThrough;
 		try {
 			Label label = createLabel(u);
@@ -287,7 +294,7 @@ public class SootFlowAnalysis extends ForwardFlowAnalysis<Unit, ProgramState> {
 		ParameterRef p = (ParameterRef)v;
 		int i = p.getIndex();
 		if (inputArgs.size() < i - 1) return false;
-		assert(inputArgs.get(i).getType().equals(new SootAppType(scene, p.getType())));
+		assert(inputArgs.get(i).getType().equals(SootAppType.get(scene, p.getType())));
 		return true;
 	}
 
@@ -373,14 +380,14 @@ public class SootFlowAnalysis extends ForwardFlowAnalysis<Unit, ProgramState> {
 				methodRef.declaringClass().getName().equals("java.lang.Thread") &&
 				methodRef.name().equals("sleep")) {
 			// This is Thread.sleep()
-			AppMethodRef m = new SootAppMethodRef(scene, methodRef, true, true);
+			AppMethodRef m = SootAppMethodRef.get(scene, methodRef, true, true);
 			out.methodCallOnAll(m);
 			return;
 		}
 	}
 
 	private AppMethodRef getMethodRef(SootMethodRef m, boolean isPhantom, boolean isOpaque) {
-		return new SootAppMethodRef(scene, m, isPhantom, isOpaque);
+		return SootAppMethodRef.get(scene, m, isPhantom, isOpaque);
 	}
 
 	private void handleInnerMethodCall(
@@ -410,6 +417,142 @@ public class SootFlowAnalysis extends ForwardFlowAnalysis<Unit, ProgramState> {
 		analyzer.addReturned(new SootAppObject(scene, u.getOp(), method));
 	}
 
+	/**
+	 * Like Soot's forward analysis, but statements are scheduled in reverse post-order, always
+	 * taking the earliest pending one. This iterates a loop to stability before moving on to the
+	 * statements after it.
+	 *
+	 * Once the flow-step budget is used up, statements which were already analyzed are not
+	 * revisited: the rest of the method is analyzed once, so the result may miss the effects of
+	 * further loop iterations, but it still covers the whole method.
+	 */
+	@Override
+	protected void doAnalysis() {
+		DirectedGraph<Unit> g = graph;
+		List<Unit> order = reversePostOrder(g);
+		Map<Unit, Integer> indices = new IdentityHashMap<Unit, Integer>();
+		for (Unit u : order) {
+			indices.put(u, indices.size());
+			unitToBeforeFlow.put(u, newInitialFlow());
+			unitToAfterFlow.put(u, newInitialFlow());
+		}
+		Map<Unit, Unit> heads = new IdentityHashMap<Unit, Unit>();
+		for (Unit u : g.getHeads()) heads.put(u, u);
+		int budget = Math.max(MIN_FLOW_STEPS,
+				order.size() * options.getFlowStepBudgetPerStatement());
+
+		BitSet pending = new BitSet(order.size());
+		pending.set(0, order.size());
+		BitSet analyzed = new BitSet(order.size());
+		for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(0)) {
+			pending.clear(i);
+			if (overBudget == false && flowedThrough >= budget) {
+				overBudget = true;
+				Logger.log(String.format("Flow step budget of %d exhausted for %s", budget, method));
+			}
+			if (overBudget && analyzed.get(i)) continue;
+			Unit u = order.get(i);
+
+			ProgramState before = unitToBeforeFlow.get(u);
+			boolean first = true;
+			if (heads.containsKey(u)) {
+				copy(entryInitialFlow(), before);
+				first = false;
+			}
+			for (Unit pred : g.getPredsOf(u)) {
+				ProgramState predAfter = unitToAfterFlow.get(pred);
+				if (first) {
+					copy(predAfter, before);
+					first = false;
+				} else {
+					ProgramState merged = newInitialFlow();
+					merge(before, predAfter, merged);
+					copy(merged, before);
+					joins++;
+				}
+			}
+
+			ProgramState after = unitToAfterFlow.get(u);
+			ProgramState previous = newInitialFlow();
+			copy(after, previous);
+			flowThrough(before, u, after);
+			analyzed.set(i);
+			peakStateSize = Math.max(peakStateSize, after.size());
+			if (after.equals(previous) == false) {
+				for (Unit succ : g.getSuccsOf(u)) pending.set(indices.get(succ));
+			}
+		}
+
+		Logger.debug(String.format("Flow analysis of %s: %d steps, %d joins, peak of %d objects%s",
+				method, flowedThrough, joins, peakStateSize, overBudget ? ", over budget" : ""));
+		if (overBudget) analyzer.flowBudgetExhausted();
+	}
+
+	/**
+	 * @param g
+	 * @return All the units of the graph, in reverse post-order from its heads. Units which are
+	 * not reachable from the heads come last.
+	 */
+	private static List<Unit> reversePostOrder(DirectedGraph<Unit> g) {
+		List<Unit> result = new ArrayList<Unit>(g.size());
+		Map<Unit, Unit> visited = new IdentityHashMap<Unit, Unit>();
+		List<Unit> roots = new ArrayList<Unit>(g.getHeads());
+		for (Unit u : g) roots.add(u);
+		for (Unit root : roots) {
+			if (visited.containsKey(root)) continue;
+			visited.put(root, root);
+			LinkedList<Unit> tree = new LinkedList<Unit>();
+			LinkedList<Unit> units = new LinkedList<Unit>();
+			LinkedList<Iterator<Unit>> succs = new LinkedList<Iterator<Unit>>();
+			units.push(root);
+			succs.push(g.getSuccsOf(root).iterator());
+			while (units.isEmpty() == false) {
+				Iterator<Unit> it = succs.peek();
+				if (it.hasNext()) {
+					Unit succ = it.next();
+					if (visited.containsKey(succ)) continue;
+					visited.put(succ, succ);
+					units.push(succ);
+					succs.push(g.getSuccsOf(succ).iterator());
+				} else {
+					succs.pop();
+					tree.addFirst(units.pop());
+				}
+			}
+			result.addAll(tree);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Number of statements analyzed by the last analysis, counting repetitions.
+	 */
+	public int getNumFlowSteps() {
+		return flowedThrough;
+	}
+
+	/**
+	 * @return Number of joins at control-flow merge points in the last analysis.
+	 */
+	public int getNumJoins() {
+		return joins;
+	}
+
+	/**
+	 * @return The largest number of abstract objects in a state during the last analysis.
+	 */
+	public int getPeakStateSize() {
+		return peakStateSize;
+	}
+
+	/**
+	 * @return True if the last analysis used up its flow-step budget, and so stopped iterating
+	 * loops before reaching a fixed point.
+	 */
+	public boolean isOverBudget() {
+		return overBudget;
+	}
+
 	@Override
 	protected void copy(ProgramState source, ProgramState dest) {
 		try {
@@ -421,8 +564,9 @@ public class SootFlowAnalysis extends ForwardFlowAnalysis<Unit, ProgramState> {
 	
 	@Override
 	protected ProgramState entryInitialFlow() {
-		ProgramState initial = initialState != null ? initialState : options.newProgramState();
-		return initial;
+		// Created once, so that all the states of this run are derived from the same state
+		if (initialState == null) initialState = options.newProgramState();
+		return initialState;
 	}
 	
 	@Override
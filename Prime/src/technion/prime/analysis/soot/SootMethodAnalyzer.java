@@ -14,6 +14,7 @@ import technion.prime.analysis.ProgramState;
 import technion.prime.dom.AppMethodDecl;
 import technion.prime.dom.AppObject;
 import technion.prime.dom.soot.SootAppMethodDecl;
+import technion.prime.utils.ConcurrencyUtils;
 import technion.prime.utils.Logger;
 import technion.prime.utils.Logger.CanceledException;
 
@@ -35,6 +36,9 @@ public class SootMethodAnalyzer extends MethodAnalyzer {
 		UnitGraph ug = null;
 		SootMethod sm = null;
 		Body b = null;
+		// Loading the body may block, so a caller analyzing this method as a callee lets
+		// another task have the processor in the meantime
+		ConcurrencyUtils.suspendCpuBound();
 		try {
 			// order of these calls matter, be careful
 			b = sootMethod.getBody();
@@ -43,6 +47,8 @@ public class SootMethodAnalyzer extends MethodAnalyzer {
 		} catch (Exception e) {
 			Logger.log(String.format("===>failed to analyze method %s", m));
 			// e.printStackTrace();
+		} finally {
+			ConcurrencyUtils.resumeCpuBound();
 		}
 
 		SootFlowAnalysis analysis = new SootFlowAnalysis(
@@ -59,7 +65,13 @@ public class SootMethodAnalyzer extends MethodAnalyzer {
 		analysis.setArgs(args);
 		ProgramState result = null;
 
-		result = analysis.analyze();
+		// Loading the body above may block; only the analysis itself is limited to the CPUs
+		ConcurrencyUtils.enterCpuBound();
+		try {
+			result = analysis.analyze();
+		} finally {
+			ConcurrencyUtils.leaveCpuBound();
+		}
 
 		return result;
 	}
@@ -41,7 +41,7 @@ public class SootAppMethodDecl extends SootSceneItem implements AppMethodDecl {
 		}
 		representation = m.getName() + "(" + m.getParameterCount() + ")";
 		isConcrete = m.isConcrete();
-		declaringType = new SootAppType(scene, m.getDeclaringClass().getType());
+		declaringType = SootAppType.get(scene, m.getDeclaringClass().getType());
 		this.m = m;
 	}
 
@@ -1,5 +1,6 @@
 package technion.prime.dom.soot;
 
+import java.io.ObjectStreamException;
 import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -10,9 +11,19 @@ import soot.Type;
 import technion.prime.dom.AppMethodRef;
 import technion.prime.dom.AppType;
 import technion.prime.utils.StringUtils;
+import technion.prime.utils.WeakInternTable;
 
+/**
+ * Instances are interned by signature and attributes: use
+ * {@link #get(Scene, SootMethodRef, boolean, boolean)} to obtain them. Methods which are no
+ * longer referenced are dropped from the intern table.
+ */
 public class SootAppMethodRef extends SootSceneItem implements AppMethodRef {
 	private static final long serialVersionUID = -8447132709504525078L;
+	
+	private static final WeakInternTable<String, SootAppMethodRef> interned =
+			new WeakInternTable<String, SootAppMethodRef>();
+	
 	private enum Attribute {
 		STATIC,
 		PHANTOM,
@@ -29,7 +40,7 @@ public class SootAppMethodRef extends SootSceneItem implements AppMethodRef {
 	private String representation;
 	private EnumSet<Attribute> attrs = EnumSet.noneOf(Attribute.class);
 	
-	public SootAppMethodRef(Scene scene, SootMethodRef m, boolean isPhantom, boolean opaque) {
+	private SootAppMethodRef(Scene scene, SootMethodRef m, boolean isPhantom, boolean opaque) {
 		super(scene);
 		// EY: how about we throw the scene away? do we ever need it?
 		deleteScene();
@@ -40,8 +51,33 @@ public class SootAppMethodRef extends SootSceneItem implements AppMethodRef {
 		name = m.name();
 		if (name.startsWith("<init>")) attrs.add(Attribute.CONSTRUCTOR);
 		longName = calculateLongName(m);
-		containingClass = new SootAppType(scene, m.declaringClass().getType());
-		returnType = new SootAppType(scene, m.returnType());
+		containingClass = SootAppType.get(scene, m.declaringClass().getType());
+		returnType = SootAppType.get(scene, m.returnType());
+	}
+	
+	/**
+	 * @param scene
+	 * @param m
+	 * @param isPhantom
+	 * @param opaque
+	 * @return The single SootAppMethodRef for the given method and attributes.
+	 */
+	public static SootAppMethodRef get(Scene scene, SootMethodRef m, boolean isPhantom,
+			boolean opaque) {
+		String key = getKey(m.getSignature(), m.isStatic(), isPhantom, opaque);
+		SootAppMethodRef result = interned.get(key);
+		if (result != null) return result;
+		return interned.intern(key, new SootAppMethodRef(scene, m, isPhantom, opaque));
+	}
+	
+	private static String getKey(String signature, boolean isStatic, boolean isPhantom,
+			boolean opaque) {
+		return (isStatic ? "s" : "-") + (isPhantom ? "p" : "-") + (opaque ? "o" : "-") + signature;
+	}
+	
+	private Object readResolve() throws ObjectStreamException {
+		String key = getKey(signature, isStatic(), isPhantom(), isOpaque());
+		return interned.intern(key, this);
 	}
 
 	@Override
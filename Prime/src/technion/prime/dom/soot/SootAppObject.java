@@ -54,7 +54,7 @@ public class SootAppObject extends SootSceneItem implements AppObject {
 		
 		if (v instanceof ThisRef) {
 			SootClass c = scene.getSootClass(v.getType().toString());
-			definingType = new SootAppType(scene, c.getType());
+			definingType = SootAppType.get(scene, c.getType());
 			fields.add("this");
 		}
 		
@@ -69,7 +69,7 @@ public class SootAppObject extends SootSceneItem implements AppObject {
 		
 		if (v instanceof FieldRef) {
 			SootClass c = ((FieldRef) v).getFieldRef().declaringClass();
-			definingType = new SootAppType(scene, c.getType());
+			definingType = SootAppType.get(scene, c.getType());
 //			if (v instanceof StaticFieldRef) {
 //				definingClass = new SootAppClass(scene, ((StaticFieldRef) v).getFieldRef().declaringClass());
 //			}
@@ -149,7 +149,7 @@ public class SootAppObject extends SootSceneItem implements AppObject {
 
 	@Override
 	public SootAppType getType() {
-		return new SootAppType(scene, v.getType());
+		return SootAppType.get(scene, v.getType());
 	}
 	
 	@Override
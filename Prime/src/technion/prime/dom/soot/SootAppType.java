@@ -1,27 +1,62 @@
 package technion.prime.dom.soot;
 
+import java.io.ObjectStreamException;
+
 import soot.PrimType;
 import soot.RefType;
 import soot.Scene;
 import soot.Type;
 import technion.prime.dom.AppType;
+import technion.prime.utils.WeakInternTable;
 
+/**
+ * Instances are interned by name: use {@link #get(Scene, Type)} to obtain them. Types which are
+ * no longer referenced are dropped from the intern table.
+ */
 public class SootAppType extends SootSceneItem implements AppType {
 	private static final long serialVersionUID = 7092406485704312730L;
+	
+	private static final WeakInternTable<String, SootAppType> interned =
+			new WeakInternTable<String, SootAppType>();
 
 	private final String name;
 	private final boolean isPrimitive;
 	
 	private transient String shortName;
 
-	public SootAppType(Scene scene, Type t) {
+	private SootAppType(Scene scene, Type t) {
 		super(scene);
 		assert(t.toString().contains(" ") == false);
 		isPrimitive = t instanceof PrimType;
-		name = t instanceof RefType ?
+		name = getName(t);
+	}
+	
+	/**
+	 * @param scene
+	 * @param t
+	 * @return The single SootAppType representing <code>t</code>. It does not keep a reference
+	 * to the scene.
+	 */
+	public static SootAppType get(Scene scene, Type t) {
+		SootAppType result = interned.get(getName(t));
+		if (result != null) return result;
+		return intern(new SootAppType(scene, t));
+	}
+	
+	private static String getName(Type t) {
+		return t instanceof RefType ?
 			((RefType) t).getClassName() :
 			t.toString();
 	}
+	
+	private static SootAppType intern(SootAppType t) {
+		t.deleteScene();
+		return interned.intern(t.name, t);
+	}
+	
+	private Object readResolve() throws ObjectStreamException {
+		return intern(this);
+	}
 
 	@Override
 	public String getFullName() {
@@ -1,6 +1,7 @@
 package technion.prime.history;
 
 import java.util.Set;
+import java.util.TreeSet;
 
 import technion.prime.dom.AppMethodRef;
 
@@ -38,6 +39,29 @@ public class ExteriorMatcher implements Matcher {
 		return true;
 	}
 	
+	/**
+	 * Two methods can only match if they have the same short name and static modifier, so the
+	 * signature of a node is the set of short names and static modifiers of its incoming methods.
+	 * Constructors and unknown methods are recognizable by their short names.
+	 */
+	@Override
+	public Object getSignature(Node n) {
+		Set<String> result = new TreeSet<String>();
+		for (AppMethodRef m : getMethods(n)) {
+			result.add(getSignature(m));
+		}
+		return result;
+	}
+
+	/**
+	 * @param m
+	 * @return A string which is equal for every two methods that are matching according to
+	 * {@link #matchingMethods(AppMethodRef, AppMethodRef)}.
+	 */
+	protected String getSignature(AppMethodRef m) {
+		return (m.isStatic() ? "static " : "") + m.getShortName();
+	}
+
 	private boolean containsUnknown(Set<AppMethodRef> methods) {
 		for (AppMethodRef m : methods) {
 			if (m.isUnknown()) return true;
@@ -47,6 +71,8 @@ public class ExteriorMatcher implements Matcher {
 
 	public boolean matchingMethodSets(Set<AppMethodRef> set1, Set<AppMethodRef> set2) {
 		if (set1.isEmpty() != set2.isEmpty()) return false;
+		// Edge method sets are interned, so this is a cheap check for the common case
+		if (set1 == set2 && set1.size() == 1) return true;
 		
 		for (AppMethodRef m1 : set1) {
 			for (AppMethodRef m2 : set2) {
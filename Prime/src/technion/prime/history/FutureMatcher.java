@@ -20,11 +20,8 @@ public class FutureMatcher implements Matcher {
 	@Override
 	public boolean matches(Node n1, Node n2) {
 		if (n1.equals(n2)) return true;
-		// get outgoing methods, disregarding self loops
-		Set<AppMethodRef> out1 = n1.getOutgoingMethods();
-		out1.removeAll(n1.getIncomingMethods());
-		Set<AppMethodRef> out2 = n2.getOutgoingMethods();
-		out2.removeAll(n2.getIncomingMethods());
+		Set<AppMethodRef> out1 = getFutureMethods(n1);
+		Set<AppMethodRef> out2 = getFutureMethods(n2);
 		
 		// If both are empty they are considered matching; if only one is empty,
 		// they do not match.
@@ -40,4 +37,23 @@ public class FutureMatcher implements Matcher {
 		return !out1.isEmpty();
 	}
 
+	/**
+	 * @param n
+	 * @return A new set of the outgoing methods of the node, disregarding self loops.
+	 */
+	public static Set<AppMethodRef> getFutureMethods(Node n) {
+		Set<AppMethodRef> result = n.getOutgoingMethods();
+		result.removeAll(n.getIncomingMethods());
+		return result;
+	}
+
+	/**
+	 * Future matching is not an equivalence relation, so no signature can be provided; use
+	 * {@link #getFutureMethods(Node)} for indexing instead.
+	 */
+	@Override
+	public Object getSignature(Node n) {
+		return null;
+	}
+
 }
@@ -191,7 +191,8 @@ public interface History extends Cloneable, Serializable {
 	boolean containsOnlyRoot();
 	
 	/**
-	 * @return A clone of this history in which all the edges have weight 0.
+	 * @return A history with the same graph as this one, which ignores weights when compared
+	 * to other histories or hashed. May be a view which shares structure with this history.
 	 */
 	History cloneWeightless();
 	
@@ -215,6 +216,16 @@ public interface History extends Cloneable, Serializable {
 	 */
 	int contentHash();
 
+	/**
+	 * A structural hash of this history, which does not depend on node identities.
+	 * Histories with equal content always have equal fingerprints, and histories with different
+	 * fingerprints never have equal content. Cached until the history is modified.
+	 * 
+	 * @param includeWeights If false, edge weights are ignored.
+	 * @return The fingerprint.
+	 */
+	long getFingerprint(boolean includeWeights);
+
 	/**
 	 * Remove all the sources of this history.
 	 */
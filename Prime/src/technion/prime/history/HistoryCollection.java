@@ -154,6 +154,15 @@ public abstract class HistoryCollection implements Cloneable, Serializable {
 	 */
 	public abstract void clear();
 
+	/**
+	 * Convert the histories in this collection back into a compact representation, if the
+	 * collection keeps one. Should be called after working on histories that are already in the
+	 * collection. Does nothing by default.
+	 */
+	public void compact() {
+		// No compact representation by default
+	}
+
 	public void clearAllSources() {
 		for (History h : getHistories()) h.clearSources();
 	}
@@ -0,0 +1,342 @@
+package technion.prime.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import technion.prime.Options;
+import technion.prime.statistics.AnalysisDetails;
+import technion.prime.utils.Logger;
+import technion.prime.utils.Logger.CanceledException;
+
+/**
+ * Keeps a growing history collection within a memory budget, by spilling it to disk.
+ *
+ * Whenever the estimated footprint of the collection is larger than
+ * {@link Options#getHistoryMemoryBudget()}, its histories are sorted by their structural
+ * fingerprint, written to a run file, and removed from the collection. When done, the runs and
+ * whatever remained in memory are merged back in a single pass, one history at a time, and
+ * histories with the same content are merged together on the way, as the same-history clusterer
+ * would. The merged collection is therefore only as large as the number of distinct histories.
+ * If nothing was spilled, the collection is left as it is.
+ *
+ * The footprint is estimated from the number of nodes and edges in the histories, not measured.
+ * It is tracked as histories are added to the collection; histories which the collection merges
+ * together still count separately, so the estimate errs on the side of spilling early.
+ */
+public class HistorySpiller {
+	// Rough heap usage of a history and of each of its nodes and edges, including the sets
+	// which index them
+	private static final long HISTORY_BYTES = 500;
+	private static final long NODE_BYTES = 150;
+	private static final long EDGE_BYTES = 250;
+
+	/**
+	 * A history along with its fingerprint, which ignores weights.
+	 */
+	private static class Entry {
+		final History h;
+		final long fingerprint;
+
+		Entry(History h) {
+			this.h = h;
+			fingerprint = h.getFingerprint(false);
+		}
+	}
+
+	private static final Comparator<Entry> BY_FINGERPRINT = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return e1.fingerprint < e2.fingerprint ? -1 : (e1.fingerprint == e2.fingerprint ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Reads the histories of a run, in fingerprint order.
+	 */
+	private abstract class Run {
+		Entry current;
+
+		/**
+		 * Move to the next history of the run, setting <code>current</code> to null at its end.
+		 * @throws IOException
+		 */
+		abstract void advance() throws IOException;
+
+		void close() {
+			// Nothing to release by default
+		}
+	}
+
+	private class FileRun extends Run {
+		private final ObjectInputStream in;
+		private int remaining;
+
+		FileRun(String filename) throws IOException {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filename)));
+			remaining = in.readInt();
+		}
+
+		@Override
+		void advance() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				return;
+			}
+			remaining--;
+			History h;
+			try {
+				h = (History) in.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e.getMessage());
+			}
+			h.recursivelySetOptions(options);
+			current = new Entry(h);
+		}
+
+		@Override
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Ignore, the file is deleted anyway
+			}
+		}
+	}
+
+	private class MemoryRun extends Run {
+		private final Iterator<Entry> it;
+
+		MemoryRun(List<Entry> entries) {
+			it = entries.iterator();
+		}
+
+		@Override
+		void advance() {
+			current = it.hasNext() ? it.next() : null;
+		}
+	}
+
+	private final Options options;
+	private final String basename;
+	private final List<String> runFiles = new LinkedList<String>();
+	// Estimated footprint of the histories added to the collection since it was last spilled
+	private long footprint;
+
+	/**
+	 * @param options Prime options.
+	 * @param basename Path and prefix of the run files.
+	 */
+	public HistorySpiller(Options options, String basename) {
+		this.options = options;
+		this.basename = basename;
+	}
+
+	/**
+	 * @param hc
+	 * @return Estimated number of bytes the histories in the collection take up.
+	 */
+	public static long estimateFootprint(HistoryCollection hc) {
+		long result = 0;
+		for (History h : hc.getHistories()) {
+			result += HISTORY_BYTES + h.getNumNodes() * NODE_BYTES + h.getNumEdges() * EDGE_BYTES;
+		}
+		return result;
+	}
+
+	/**
+	 * Account for histories added to the collection. If it is now over the memory budget, write
+	 * its histories to a new run and clear it. If the run could not be written, the histories are
+	 * kept in memory.
+	 * @param hc
+	 * @param added The histories just added to <code>hc</code>.
+	 * @throws InterruptedException
+	 * @throws CanceledException
+	 */
+	public void spillIfNeeded(HistoryCollection hc, HistoryCollection added)
+			throws InterruptedException, CanceledException {
+		footprint += estimateFootprint(added);
+		if (footprint <= options.getHistoryMemoryBudget()) return;
+		List<Entry> entries = sortAndMerge(hc);
+		String filename = String.format("%s_%d.run", basename, runFiles.size());
+		try {
+			writeRun(filename, entries);
+		} catch (IOException e) {
+			Logger.warn("Could not spill histories to " + filename + ", keeping them in memory");
+			Logger.exception(e);
+			new File(filename).delete();
+			return;
+		}
+		runFiles.add(filename);
+		options.getOngoingAnalysisDetails().incrementField(AnalysisDetails.HISTORY_SPILLS);
+		Logger.log(String.format("Spilled %d histories (about %d MB) to %s",
+				entries.size(), footprint >> 20, filename));
+		hc.clear();
+		footprint = 0;
+	}
+
+	/**
+	 * @return True if histories were spilled and not merged back yet.
+	 */
+	public boolean hasSpilled() {
+		return runFiles.isEmpty() == false;
+	}
+
+	/**
+	 * Merge back all the spilled histories, together with the histories remaining in memory.
+	 * The run files are deleted.
+	 * @param hc The collection which was spilled from. Cleared if anything was spilled.
+	 * @return A new collection with all the histories, in which histories of the same content are
+	 * merged, or <code>hc</code> itself if nothing was spilled.
+	 * @throws InterruptedException
+	 * @throws CanceledException
+	 */
+	public HistoryCollection finish(HistoryCollection hc)
+			throws InterruptedException, CanceledException {
+		footprint = 0;
+		if (hasSpilled() == false) return hc;
+		Logger.log(String.format("Merging %d spilled runs...", runFiles.size()));
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(runFiles.size() + 1,
+				new Comparator<Run>() {
+					@Override
+					public int compare(Run r1, Run r2) {
+						return BY_FINGERPRINT.compare(r1.current, r2.current);
+					}
+				});
+		List<Run> runs = new ArrayList<Run>();
+		HistoryCollection result = options.newHistoryCollection();
+		try {
+			for (String filename : runFiles) {
+				try {
+					runs.add(new FileRun(filename));
+				} catch (IOException e) {
+					Logger.warn("Could not read spilled histories from " + filename);
+					Logger.exception(e);
+				}
+			}
+			runs.add(new MemoryRun(sortAndMerge(hc)));
+			for (Run r : runs) {
+				advance(r, queue);
+			}
+			// Histories of the current fingerprint, none of which have the same content
+			List<Entry> group = new LinkedList<Entry>();
+			while (queue.isEmpty() == false) {
+				Logger.progress();
+				Run r = queue.poll();
+				Entry e = r.current;
+				if (group.isEmpty() == false && group.get(0).fingerprint != e.fingerprint) {
+					flush(group, result);
+				}
+				mergeIntoGroup(e, group);
+				advance(r, queue);
+			}
+			flush(group, result);
+		} finally {
+			for (Run r : runs) r.close();
+			for (String filename : runFiles) new File(filename).delete();
+			runFiles.clear();
+		}
+		hc.clear();
+		return result;
+	}
+
+	private void advance(Run r, PriorityQueue<Run> queue) {
+		try {
+			r.advance();
+		} catch (IOException e) {
+			// Lose the rest of this run, but keep the others
+			Logger.warn("Could not read spilled histories");
+			Logger.exception(e);
+			r.current = null;
+		}
+		if (r.current != null) queue.add(r);
+	}
+
+	private static void flush(List<Entry> group, HistoryCollection result) {
+		for (Entry e : group) result.addHistory(e.h);
+		group.clear();
+	}
+
+	/**
+	 * @param hc
+	 * @return The histories of the collection, sorted by fingerprint, with histories of the same
+	 * content merged.
+	 * @throws InterruptedException
+	 * @throws CanceledException
+	 */
+	private static List<Entry> sortAndMerge(HistoryCollection hc)
+			throws InterruptedException, CanceledException {
+		List<Entry> sorted = new ArrayList<Entry>(hc.getNumHistories());
+		for (History h : hc.getHistories()) sorted.add(new Entry(h));
+		Collections.sort(sorted, BY_FINGERPRINT);
+		List<Entry> result = new ArrayList<Entry>(sorted.size());
+		List<Entry> group = new LinkedList<Entry>();
+		for (Entry e : sorted) {
+			if (group.isEmpty() == false && group.get(0).fingerprint != e.fingerprint) {
+				result.addAll(group);
+				group.clear();
+			}
+			mergeIntoGroup(e, group);
+		}
+		result.addAll(group);
+		return result;
+	}
+
+	/**
+	 * Merge a history into the one of the same content in the group, or add it to the group if
+	 * there is none.
+	 * Content is compared ignoring weights. It is enough that one of the compared histories
+	 * ignores them, so a weightless view is only made when there is something to compare to.
+	 * @param e
+	 * @param group Histories of the same fingerprint as <code>e</code>.
+	 * @throws InterruptedException
+	 * @throws CanceledException
+	 */
+	private static void mergeIntoGroup(Entry e, List<Entry> group)
+			throws InterruptedException, CanceledException {
+		if (group.isEmpty() == false) {
+			History weightless = e.h.cloneWeightless();
+			for (Entry other : group) {
+				if (weightless.equalContent(other.h)) {
+					boolean wasSource = other.h.getSources().contains(e.h);
+					other.h.mergeFrom(e.h, false);
+					// Merging records the merged history as a source, which would keep it in
+					// memory; the sources it already had are still needed for reporting
+					if (wasSource == false) other.h.getSources().remove(e.h);
+					return;
+				}
+			}
+		}
+		group.add(e);
+	}
+
+	private static void writeRun(String filename, List<Entry> entries) throws IOException {
+		File file = new File(filename);
+		File parent = file.getParentFile();
+		if (parent != null) parent.mkdirs();
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(entries.size());
+			for (Entry e : entries) {
+				out.writeObject(e.h);
+				// Do not keep a reference to every written history
+				out.reset();
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
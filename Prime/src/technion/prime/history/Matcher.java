@@ -4,4 +4,15 @@ import java.io.Serializable;
 
 public interface Matcher extends Serializable {
 	boolean matches(Node n1, Node n2);
+
+	/**
+	 * Used for indexing nodes, so that matching candidates can be found without comparing against
+	 * every node.
+	 * 
+	 * @param n
+	 * @return A signature of the node such that if <code>matches(n1, n2)</code> then the
+	 * signatures of <code>n1</code> and <code>n2</code> are equal, or null if this matcher cannot
+	 * provide such a signature.
+	 */
+	Object getSignature(Node n);
 }
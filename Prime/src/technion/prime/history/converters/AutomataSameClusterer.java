@@ -8,11 +8,18 @@ import technion.prime.history.History;
 public class AutomataSameClusterer extends SameClusterer<AutomataSameClusterer.Key> {
 	public class Key {
 		public History h;
+		// A weightless view of h
+		public History weightless;
+		public long fingerprint;
 		
 		@Override
 		public boolean equals(Object obj) {
+			if (obj instanceof Key == false) return false;
+			Key other = (Key)obj;
+			if (fingerprint != other.fingerprint) return false;
+			// Same fingerprint, which almost always means same content; verify
 			try {
-				return (obj instanceof Key) && h.equalContent(((Key)obj).h);
+				return weightless.equalContent(other.weightless);
 			} catch (InterruptedException e) {
 				throw new RuntimeException(e);
 			} catch (CanceledException e) {
@@ -22,7 +29,7 @@ public class AutomataSameClusterer extends SameClusterer<AutomataSameClusterer.K
 		
 		@Override
 		public int hashCode() {
-			return h.contentHash();
+			return (int)(fingerprint ^ (fingerprint >>> 32));
 		}
 	}
 	
@@ -38,7 +45,9 @@ public class AutomataSameClusterer extends SameClusterer<AutomataSameClusterer.K
 	@Override
 	protected Key getKey(History h) {
 		Key key = new Key();
-		key.h = h.cloneWeightless();
+		key.h = h;
+		key.weightless = h.cloneWeightless();
+		key.fingerprint = key.weightless.getFingerprint(false);
 		return key;
 	}
 	
@@ -36,10 +36,13 @@ public class ConverterStack {
 				// Just skip the converter
 				continue;
 			} finally {
+				// Clustering expands the histories it compares
+				hc.compact();
 				Logger.progress();
 			}
 		}
 		HistoryCollection output = layerOutputs[layerOutputs.length-1];
+		output.compact();
 		Logger.log("Final layer contains " + output.getNumHistories() + " clusters.");
 		return output;
 	}
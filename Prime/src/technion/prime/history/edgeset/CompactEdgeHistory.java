@@ -0,0 +1,175 @@
+package technion.prime.history.edgeset;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import technion.prime.Options;
+import technion.prime.dom.AppMethodRef;
+import technion.prime.dom.AppType;
+
+/**
+ * An EdgeHistory which can be compacted into a CompactGraph while it is not being worked on,
+ * e.g. while it is waiting in a history collection.
+ *
+ * A compact history answers simple queries (sizes, participating methods and types, etc.)
+ * directly from the compact graph, and inclusion checks read the compact graph as well. Any
+ * other operation first expands it back into the regular representation, in which it stays until
+ * {@link #compact()} is called again; history collections do that after working on their
+ * histories, see {@link CompactEdgeHistoryCollection#compact()}.
+ * Cloning a compact history shares its compact graph, and is therefore cheap. A compact history
+ * is also serialized in its compact form.
+ *
+ * Expanding is thread-safe, so several threads may query the same compact history.
+ */
+public class CompactEdgeHistory extends EdgeHistory {
+	private static final long serialVersionUID = -2203848719043458071L;
+
+	// Null while expanded
+	private volatile CompactGraph graph;
+
+	public CompactEdgeHistory(Options options) {
+		super(options);
+	}
+
+	/**
+	 * Convert this history into the compact representation. Does nothing if it's already
+	 * compact. Must not be called while other threads use this history.
+	 */
+	public synchronized void compact() {
+		if (graph != null) return;
+		CompactGraph g = new CompactGraph(getRoot(), edges(), nodes(), getActive());
+		releaseGraph();
+		graph = g;
+	}
+
+	public boolean isCompact() {
+		return graph != null;
+	}
+
+	/**
+	 * @return The compact graph of this history, or null if it is not compact.
+	 */
+	CompactGraph getCompactGraph() {
+		return graph;
+	}
+
+	@Override
+	protected void loadGraph() {
+		if (graph == null) return;
+		synchronized (this) {
+			CompactGraph g = graph;
+			if (g == null) return;
+			restoreGraph(g.getEdges(), g.getNodes(), g.getActive());
+			// Only now may other threads use the regular representation
+			graph = null;
+		}
+	}
+
+	@Override
+	protected void copyGraphFrom(EdgeHistory h) {
+		CompactGraph g = h instanceof CompactEdgeHistory ? ((CompactEdgeHistory) h).graph : null;
+		if (g != null) {
+			releaseGraph();
+			graph = g;
+		} else {
+			graph = null;
+			super.copyGraphFrom(h);
+		}
+	}
+
+	@Override
+	public int getNumNodes() {
+		CompactGraph g = graph;
+		if (g == null) return super.getNumNodes();
+		return g.nodes.length;
+	}
+
+	@Override
+	public int getNumEdges() {
+		CompactGraph g = graph;
+		if (g == null) return super.getNumEdges();
+		return g.getNumEdges();
+	}
+
+	@Override
+	public boolean containsOnlyRoot() {
+		CompactGraph g = graph;
+		if (g == null) return super.containsOnlyRoot();
+		return g.getNumEdges() == 0 && g.nodes.length == 1;
+	}
+
+	@Override
+	public boolean isActive(EdgeNode n) {
+		CompactGraph g = graph;
+		if (g == null) return super.isActive(n);
+		return g.isActive(n);
+	}
+
+	@Override
+	public int getMaxDegree() {
+		CompactGraph g = graph;
+		if (g == null) return super.getMaxDegree();
+		int max = -1;
+		for (int i = 0; i < g.nodes.length; i++) {
+			int num = g.getOutDegree(i);
+			if (num > max) max = num;
+		}
+		return max;
+	}
+
+	@Override
+	public Set<AppMethodRef> getAllParticipatingMethods() {
+		CompactGraph g = graph;
+		if (g == null) return super.getAllParticipatingMethods();
+		Set<AppMethodRef> result = new HashSet<AppMethodRef>();
+		for (MethodSet methods : getMethodSets(g)) {
+			result.addAll(methods);
+		}
+		return result;
+	}
+
+	@Override
+	public Set<AppType> getAllParticipatingTypes() {
+		if (graph == null) return super.getAllParticipatingTypes();
+		Set<AppType> result = new HashSet<AppType>();
+		for (AppMethodRef m : getAllParticipatingMethods()) {
+			AppType t = m.getContainingType();
+			if (t != null) result.add(t);
+		}
+		return result;
+	}
+
+	@Override
+	public int getNumParticipatingTypes() {
+		if (graph == null) return super.getNumParticipatingTypes();
+		Set<AppType> types = new HashSet<AppType>();
+		for (AppMethodRef m : getAllParticipatingMethods()) {
+			types.add(m.getContainingType());
+		}
+		return types.size();
+	}
+
+	@Override
+	public int getNumUnknownEdges() {
+		CompactGraph g = graph;
+		if (g == null) return super.getNumUnknownEdges();
+		int count = 0;
+		for (MethodSet methods : g.methodSets) {
+			for (AppMethodRef m : methods) {
+				if (m.isUnknown()) {
+					count++;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static Set<MethodSet> getMethodSets(CompactGraph g) {
+		Set<MethodSet> result = new HashSet<MethodSet>();
+		for (MethodSet methods : g.methodSets) {
+			result.add(methods);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,36 @@
+package technion.prime.history.edgeset;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import technion.prime.Options;
+import technion.prime.history.History;
+
+/**
+ * A history collection which keeps the compact histories added to it in their compact form.
+ */
+public class CompactEdgeHistoryCollection extends EdgeHistoryCollection {
+	private static final long serialVersionUID = 6328450185837004262L;
+
+	public CompactEdgeHistoryCollection(Options options) {
+		super(options);
+	}
+
+	@Override
+	public void addHistory(History h) {
+		super.addHistory(h);
+		if (h instanceof CompactEdgeHistory) ((CompactEdgeHistory) h).compact();
+	}
+
+	@Override
+	public void compact() {
+		for (EdgeHistory h : histories) {
+			if (h instanceof CompactEdgeHistory) ((CompactEdgeHistory) h).compact();
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		compact();
+	}
+}
@@ -0,0 +1,119 @@
+package technion.prime.history.edgeset;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable graph in compressed sparse row form, used by CompactEdgeHistory.
+ *
+ * Nodes are numbered densely, with the root always numbered 0. The outgoing edges of node
+ * <code>i</code> are stored in positions <code>outOffsets[i]</code> up to (excluding)
+ * <code>outOffsets[i + 1]</code> of the edge arrays; for every edge we keep the number of its
+ * target node, its (interned) method set, and its weight.
+ *
+ * Since it is never modified, a single instance may be shared between several histories.
+ */
+final class CompactGraph implements Serializable {
+	private static final long serialVersionUID = 5326807208151950853L;
+
+	final EdgeNode[] nodes;
+	final int[] outOffsets;
+	final int[] targets;
+	final MethodSet[] methodSets;
+	final double[] weights;
+	final int[] active;
+
+	/**
+	 * @param root
+	 * @param edges
+	 * @param nodeSet Must contain the root and all the edge nodes.
+	 * @param activeSet
+	 */
+	CompactGraph(EdgeNode root, Set<Edge> edges, Set<EdgeNode> nodeSet, Set<EdgeNode> activeSet) {
+		Map<EdgeNode, Integer> ids = new HashMap<EdgeNode, Integer>();
+		nodes = new EdgeNode[nodeSet.size()];
+		nodes[0] = root;
+		ids.put(root, 0);
+		int i = 1;
+		for (EdgeNode n : nodeSet) {
+			if (n == root) continue;
+			nodes[i] = n;
+			ids.put(n, i++);
+		}
+
+		outOffsets = new int[nodes.length + 1];
+		for (Edge e : edges) {
+			outOffsets[ids.get(e.getFrom()) + 1]++;
+		}
+		for (i = 0; i < nodes.length; i++) {
+			outOffsets[i + 1] += outOffsets[i];
+		}
+
+		targets = new int[edges.size()];
+		methodSets = new MethodSet[edges.size()];
+		weights = new double[edges.size()];
+		int[] next = Arrays.copyOf(outOffsets, nodes.length);
+		for (Edge e : edges) {
+			int k = next[ids.get(e.getFrom())]++;
+			targets[k] = ids.get(e.getTo());
+			methodSets[k] = MethodSet.of(e.getMethods());
+			weights[k] = e.getWeight();
+		}
+
+		active = new int[activeSet.size()];
+		i = 0;
+		for (EdgeNode n : activeSet) {
+			active[i++] = ids.get(n);
+		}
+	}
+
+	int getNumEdges() {
+		return targets.length;
+	}
+
+	/**
+	 * @param id A node number.
+	 * @return The number of outgoing edges of that node.
+	 */
+	int getOutDegree(int id) {
+		return outOffsets[id + 1] - outOffsets[id];
+	}
+
+	/**
+	 * @return New Edge objects for all the edges in the graph. Equal method sets are shared.
+	 */
+	List<Edge> getEdges() {
+		List<Edge> result = new ArrayList<Edge>(targets.length);
+		for (int i = 0; i < nodes.length; i++) {
+			for (int k = outOffsets[i]; k < outOffsets[i + 1]; k++) {
+				result.add(new Edge(nodes[i], nodes[targets[k]],
+						methodSets[k], weights[k]));
+			}
+		}
+		return result;
+	}
+
+	List<EdgeNode> getNodes() {
+		return Arrays.asList(nodes);
+	}
+
+	List<EdgeNode> getActive() {
+		List<EdgeNode> result = new ArrayList<EdgeNode>(active.length);
+		for (int id : active) {
+			result.add(nodes[id]);
+		}
+		return result;
+	}
+
+	boolean isActive(EdgeNode n) {
+		for (int id : active) {
+			if (nodes[id] == n) return true;
+		}
+		return false;
+	}
+}
@@ -1,7 +1,7 @@
 package technion.prime.history.edgeset;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.util.HashSet;
 import java.util.Set;
 
 import technion.prime.dom.AppMethodRef;
@@ -10,6 +10,7 @@ import technion.prime.utils.StringUtils;
 /**
  * Immutable edge in EdgeHistory.
  * Notice that a single edge may be shared between different histories.
+ * The method set of an edge is always a MethodSet, so comparing method sets is cheap.
  */
 public class Edge implements Cloneable, Serializable {
 	private static final long serialVersionUID = 6705447602212958205L;
@@ -25,7 +26,7 @@ public class Edge implements Cloneable, Serializable {
 	public Edge(EdgeNode from, EdgeNode to, Set<AppMethodRef> methods, double weight) {
 		this.from = from;
 		this.to = to;
-		this.methods = methods;
+		this.methods = MethodSet.of(methods);
 		this.weight = weight;
 	}
 		
@@ -40,8 +41,7 @@ public class Edge implements Cloneable, Serializable {
 	}
 
 	public Edge(EdgeNode from, EdgeNode to, AppMethodRef method, double weight) {
-		this(from, to, new HashSet<AppMethodRef>(), weight);
-		this.methods.add(method);
+		this(from, to, MethodSet.of(method), weight);
 	}
 
 	public EdgeNode getTo() {
@@ -70,6 +70,14 @@ public class Edge implements Cloneable, Serializable {
 		return methods;
 	}
 
+	/**
+	 * Histories saved before method sets were interned contain plain sets.
+	 */
+	private Object readResolve() throws ObjectStreamException {
+		if (methods instanceof MethodSet) return this;
+		return new Edge(from, to, methods, weight);
+	}
+
 	@Override
 	public int hashCode() {
 		if (hash == null) {
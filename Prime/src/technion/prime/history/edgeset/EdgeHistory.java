@@ -2,19 +2,23 @@ package technion.prime.history.edgeset;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Set;
-
-import net.jimblackler.Utils.CollectionAbortedException;
-import net.jimblackler.Utils.Collector;
-import net.jimblackler.Utils.ResultHandler;
-import net.jimblackler.Utils.ThreadedYieldAdapter;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
 
@@ -27,6 +31,7 @@ import technion.prime.history.ExteriorMatcher;
 import technion.prime.history.FutureMatcher;
 import technion.prime.history.History;
 import technion.prime.history.HistoryCollection;
+import technion.prime.history.Matcher;
 import technion.prime.history.Ordering;
 import technion.prime.utils.ConcurrencyUtils;
 import technion.prime.utils.DocNode;
@@ -42,6 +47,7 @@ public class EdgeHistory implements History {
 
 	protected static final double SEQUENCE_EDGE_THRESHOLD = 0.1;
 	protected static final int SEQUENCE_LENGTH_THRESHOLD = 10;
+	private static final int FINGERPRINT_ROUNDS = 3;
 
 	private transient Options options;
 
@@ -53,12 +59,63 @@ public class EdgeHistory implements History {
 	private MultiMap<EdgeNode, Edge> ingoing;
 	private MultiMap<EdgeNode, Edge> outgoing;
 	private String title = "";
+	// Not null if the graph fields are shared with other histories, see copyGraphFrom().
+	private GraphShare share;
+	// True if the graph fields belong to another history, see borrowGraphFrom().
+	private boolean borrowed;
 
 	private transient Integer contentHash;
+	private transient Long fingerprint;
+	private transient Long weightlessFingerprint;
 	private transient int underMutation;
-	private transient EdgeHistory weightlessClone;
+	private transient NodeIndex nodeIndex;
+	// Incremented on every change to the graph
+	private transient int version;
+	private transient ReachabilityIndex reachability;
+	// Nodes changed during the current update, if invariant checking is on
+	private transient Set<EdgeNode> touched;
+	// Counts updates across all histories, for invariant sampling
+	private static final AtomicLong numUpdates = new AtomicLong();
+
+	/**
+	 * Tracks the histories sharing a single copy of the graph fields. Holders are only weakly
+	 * referenced, so a clone which is dropped without being modified stops counting once it is
+	 * collected.
+	 */
+	private static class GraphShare implements Serializable {
+		private static final long serialVersionUID = 2945786101537862113L;
+		// Not serialized; every holder joins again when it is read back
+		private transient List<WeakReference<EdgeHistory>> holders;
+
+		synchronized void join(EdgeHistory h) {
+			if (holders == null) holders = new ArrayList<WeakReference<EdgeHistory>>(2);
+			holders.add(new WeakReference<EdgeHistory>(h));
+		}
+
+		synchronized void leave(EdgeHistory h) {
+			if (holders == null) return;
+			for (Iterator<WeakReference<EdgeHistory>> it = holders.iterator(); it.hasNext();) {
+				EdgeHistory holder = it.next().get();
+				if (holder == null || holder == h) it.remove();
+			}
+		}
+
+		/**
+		 * @param h A holder.
+		 * @return True if no other holder is still alive.
+		 */
+		synchronized boolean isOnlyHolder(EdgeHistory h) {
+			if (holders == null) return false;
+			leave(null);
+			return holders.size() == 1 && holders.get(0).get() == h;
+		}
+	}
 
+	/**
+	 * Verify the structural integrity of the entire history. Linear in its size.
+	 */
 	private void invariant() {
+		loadGraph();
 		if (containsOnlyRoot()) {
 			makeSure(nodes.contains(root));
 			makeSure(nodes.size() == 1);
@@ -69,7 +126,8 @@ public class EdgeHistory implements History {
 			return;
 		}
 
-		// Make sure all edge nodes appear in the node set
+		// Make sure all edge nodes appear in the node set, and all nodes appear as an edge node
+		// of some edge
 		Set<EdgeNode> seenNodes = new HashSet<EdgeNode>();
 		for (Edge e : edges) {
 			seenNodes.add(e.getFrom());
@@ -77,22 +135,6 @@ public class EdgeHistory implements History {
 		}
 		makeSure(seenNodes.equals(nodes));
 
-		// Make sure all nodes appear as an edge node of some edge
-		for (EdgeNode n : nodes) {
-			boolean found = false;
-			for (Edge e : edges) {
-				if (n.equals(e.getTo())) {
-					found = true;
-					break;
-				}
-				if (n.equals(e.getFrom())) {
-					found = true;
-					break;
-				}
-			}
-			makeSure(found);
-		}
-
 		// Make sure the root appears in the nodes
 		makeSure(nodes.contains(root));
 
@@ -101,63 +143,114 @@ public class EdgeHistory implements History {
 			makeSure(nodes.contains(n));
 		}
 
-		// Make sure all nodes have a correct incoming and outgoing set
-		for (EdgeNode n : nodes) {
-			Set<Edge> seenIncoming = new HashSet<Edge>();
-			Set<Edge> seenOutgoing = new HashSet<Edge>();
-			for (Edge e : edges) {
-				if (e.getTo().equals(n)) seenIncoming.add(e);
-				if (e.getFrom().equals(n)) seenOutgoing.add(e);
-			}
-			makeSure(getIngoingEdges(n).equals(seenIncoming));
-			makeSure(getOutgoingEdges(n).equals(seenOutgoing));
+		// Make sure the incoming and outgoing sets do not contain anything beyond the edges
+		int numIncoming = 0;
+		for (EdgeNode n : ingoing.keySet()) {
+			numIncoming += ingoing.getAll(n).size();
+		}
+		int numOutgoing = 0;
+		for (EdgeNode n : outgoing.keySet()) {
+			numOutgoing += outgoing.getAll(n).size();
 		}
+		makeSure(numIncoming == edges.size());
+		makeSure(numOutgoing == edges.size());
 
-		// Make sure the root, and only the root, has no incoming edges
+		for (Edge e : edges) {
+			checkEdge(e);
+		}
 		for (EdgeNode n : nodes) {
-			if (n == root) makeSure(ingoing.containsKey(n) == false);
-			else makeSure(ingoing.containsKey(n));
+			checkNode(n);
 		}
 
-		// Make sure there are no two consecutive unknowns
-		for (Edge e1 : edges) {
-			for (Edge e2 : edges) {
-				if (e1 == e2) continue;
-				if (e1.getTo().equals(e2.getFrom()) &&
-						e1.isUnknown() && e2.isUnknown()) {
-					makeSure(false);
-				}
+		makeSure(notSource(this));
+	}
+
+	/**
+	 * Verify the structural integrity of the parts of the history around the given nodes.
+	 * Linear in the number of edges touching them.
+	 * 
+	 * @param touched Nodes which were added or removed, or whose edges have changed.
+	 */
+	private void invariant(Set<EdgeNode> touched) {
+		loadGraph();
+		if (containsOnlyRoot() || touched.size() * 2 > nodes.size()) {
+			invariant();
+			return;
+		}
+		makeSure(nodes.contains(root));
+		for (EdgeNode n : touched) {
+			if (nodes.contains(n) == false) {
+				makeSure(ingoing.containsKey(n) == false);
+				makeSure(outgoing.containsKey(n) == false);
+				makeSure(active.contains(n) == false);
+				continue;
+			}
+			makeSure(ingoing.containsKey(n) || outgoing.containsKey(n));
+			for (Edge e : getIngoingEdges(n)) {
+				makeSure(edges.contains(e));
+				makeSure(nodes.contains(e.getFrom()));
+				makeSure(getOutgoingEdges(e.getFrom()).contains(e));
+				checkEdge(e);
+			}
+			for (Edge e : getOutgoingEdges(n)) {
+				makeSure(edges.contains(e));
+				makeSure(nodes.contains(e.getTo()));
+				makeSure(getIngoingEdges(e.getTo()).contains(e));
+				checkEdge(e);
 			}
+			checkNode(n);
 		}
+		makeSure(sources.contains(this) == false);
+	}
+
+	/**
+	 * Verify the integrity of a single edge, and of its place in the incoming and outgoing sets.
+	 * 
+	 * @param e
+	 */
+	private void checkEdge(Edge e) {
+		makeSure(getIngoingEdges(e.getTo()).contains(e));
+		makeSure(getOutgoingEdges(e.getFrom()).contains(e));
 
 		// Make sure there are no unknown self loops
-		for (Edge e : edges) {
-			if (e.getTo().equals(e.getFrom()) &&
-					e.isUnknown()) {
-				makeSure(false);
-			}
-		}
+		makeSure(e.getTo().equals(e.getFrom()) == false || e.isUnknown() == false);
 
 		// Make sure there are no loops on the root
-		for (Edge e : edges) {
-			if (e.getFrom().equals(root)) {
-				makeSure(e.getTo().equals(root) == false);
-			}
-		}
+		if (e.getFrom().equals(root)) makeSure(e.getTo().equals(root) == false);
 
 		// Make sure no edge contains both a regular method and an unknown method
-		for (Edge e : edges) {
-			boolean seenUnknown = false;
-			boolean seenKnown = false;
-			for (AppMethodRef m : e.getMethods()) {
-				boolean unknown = m.isUnknown();
-				seenUnknown |= unknown;
-				seenKnown |= !unknown;
-				if (seenUnknown && seenKnown) makeSure(false);
-			}
+		boolean seenUnknown = false;
+		boolean seenKnown = false;
+		for (AppMethodRef m : e.getMethods()) {
+			boolean unknown = m.isUnknown();
+			seenUnknown |= unknown;
+			seenKnown |= !unknown;
+			if (seenUnknown && seenKnown) makeSure(false);
 		}
+	}
 
-		makeSure(notSource(this));
+	/**
+	 * Verify the integrity of the edges around a single node which is in the history.
+	 * 
+	 * @param n
+	 */
+	private void checkNode(EdgeNode n) {
+		// Make sure the root, and only the root, has no incoming edges
+		if (n == root) makeSure(ingoing.containsKey(n) == false);
+		else makeSure(ingoing.containsKey(n));
+
+		// Make sure there are no two consecutive unknowns
+		Edge unknownIncoming = null;
+		for (Edge e : getIngoingEdges(n)) {
+			if (e.isUnknown()) {
+				unknownIncoming = e;
+				break;
+			}
+		}
+		if (unknownIncoming == null) return;
+		for (Edge e : getOutgoingEdges(n)) {
+			if (e != unknownIncoming && e.isUnknown()) makeSure(false);
+		}
 	}
 
 	private boolean notSource(History h) {
@@ -182,7 +275,16 @@ public class EdgeHistory implements History {
 		underMutation++;
 		if (underMutation > 1) return;
 		contentHash = null;
-		weightlessClone = null;
+		fingerprint = null;
+		weightlessFingerprint = null;
+	}
+
+	/**
+	 * @return True if the invariant should be checked after some of the updates. A sampling rate
+	 * of 0 or less disables the check.
+	 */
+	private boolean checksInvariant() {
+		return options.useHistoryInvariant() && options.getHistoryInvariantSamplingRate() > 0;
 	}
 
 	/**
@@ -191,7 +293,13 @@ public class EdgeHistory implements History {
 	private void postUpdate() {
 		underMutation--;
 		if (underMutation > 0) return;
-		if (options.useHistoryInvariant()) invariant();
+		if (checksInvariant() == false) return;
+		if (numUpdates.incrementAndGet() % options.getHistoryInvariantSamplingRate() == 0) {
+			// Updates which did not go through the mutation primitives get a full check
+			if (touched == null) invariant();
+			else invariant(touched);
+		}
+		touched = null;
 	}
 
 	public EdgeHistory(Options options) {
@@ -202,6 +310,33 @@ public class EdgeHistory implements History {
 		postUpdate();
 	}
 
+	/**
+	 * Create a history with the same graph as another history. The graph is shared until one of
+	 * the histories modifies it.
+	 * 
+	 * @param h
+	 */
+	protected EdgeHistory(EdgeHistory h) {
+		options = h.options;
+		title = h.title;
+		copyFrom(h);
+	}
+
+	/**
+	 * Create a history which borrows the graph of another history, see
+	 * {@link #borrowGraphFrom(EdgeHistory)}.
+	 * 
+	 * @param h
+	 * @param borrow Must be true.
+	 */
+	protected EdgeHistory(EdgeHistory h, boolean borrow) {
+		assert borrow;
+		options = h.options;
+		title = h.title;
+		borrowGraphFrom(h);
+		copyRootFrom(h);
+	}
+
 	/**
 	 * Assuming this history is empty, create a new root node.
 	 */
@@ -215,6 +350,9 @@ public class EdgeHistory implements History {
 
 	private void initialize() {
 		preUpdate();
+		unshare();
+		version++;
+		nodeIndex = null;
 		edges = new HashSet<Edge>();
 		nodes = new HashSet<EdgeNode>();
 		active = new HashSet<EdgeNode>();
@@ -225,41 +363,140 @@ public class EdgeHistory implements History {
 
 	@Override
 	public boolean containsOnlyRoot() {
-		return edges.isEmpty() && nodes.contains(root) && nodes.size() == 1;
+		return edges().isEmpty() && nodes().contains(root) && nodes().size() == 1;
+	}
+
+	/**
+	 * Called before every access to the graph fields. Subclasses which keep the graph in a
+	 * different representation, and release the fields using {@link #releaseGraph()}, should
+	 * restore them here.
+	 */
+	protected void loadGraph() {}
+
+	/**
+	 * Release the graph fields, keeping only the root. {@link #loadGraph()} must restore them
+	 * before they are accessed again.
+	 */
+	protected void releaseGraph() {
+		edges = null;
+		nodes = null;
+		active = null;
+		ingoing = null;
+		outgoing = null;
+		nodeIndex = null;
+		unshare();
+	}
+
+	/**
+	 * Set the graph of this history. Does not count as a modification.
+	 * 
+	 * @param newEdges
+	 * @param newNodes Must contain the root and all the edge nodes.
+	 * @param newActive
+	 */
+	protected void restoreGraph(Collection<Edge> newEdges, Collection<EdgeNode> newNodes,
+			Collection<EdgeNode> newActive) {
+		unshare();
+		version++;
+		edges = new HashSet<Edge>(newEdges);
+		nodes = new HashSet<EdgeNode>(newNodes);
+		active = new HashSet<EdgeNode>(newActive);
+		ingoing = new MultiMap<EdgeNode, Edge>();
+		outgoing = new MultiMap<EdgeNode, Edge>();
+		for (Edge e : edges) {
+			ingoing.put(e.getTo(), e);
+			outgoing.put(e.getFrom(), e);
+		}
 	}
 
 	void addEdge(Edge e) {
+		ownGraph();
 		edges.add(e);
 		ingoing.put(e.getTo(), e);
 		outgoing.put(e.getFrom(), e);
+		markDirty(e.getFrom());
+		markDirty(e.getTo());
 	}
 
 	private void removeEdge(Edge e) {
+		ownGraph();
 		edges.remove(e);
 		ingoing.removeValue(e.getTo(), e);
 		outgoing.removeValue(e.getFrom(), e);
+		markDirty(e.getFrom());
+		markDirty(e.getTo());
 	}
 
 	void addNode(EdgeNode n) {
+		ownGraph();
 		nodes.add(n);
+		markDirty(n);
 	}
 
 	private void removeNode(EdgeNode n) {
 		preUpdate();
+		ownGraph();
 		nodes.remove(n);
 		ingoing.removeKey(n);
 		outgoing.removeKey(n);
+		markDirty(n);
 		postUpdate();
 	}
 
+	/**
+	 * Notify the node index, if one exists, that a node or its edges have changed.
+	 * 
+	 * This is done by the mutation primitives rather than by preUpdate(), because merges look up
+	 * matching nodes while they are still adding edges.
+	 * 
+	 * @param n
+	 */
+	private void markDirty(EdgeNode n) {
+		if (nodeIndex != null) nodeIndex.markDirty(n);
+		markTouched(n);
+	}
+
+	/**
+	 * Remember that a node was changed, so that the next invariant check covers it.
+	 * 
+	 * @param n
+	 */
+	private void markTouched(EdgeNode n) {
+		if (options == null || checksInvariant() == false) return;
+		if (touched == null) touched = new HashSet<EdgeNode>();
+		touched.add(n);
+	}
+
+	/**
+	 * @return An index of the nodes in this history, for the matcher currently in use.
+	 */
+	private NodeIndex getNodeIndex() {
+		Matcher matcher = options.getMatcher();
+		if (nodeIndex == null || nodeIndex.getMatcher() != matcher) {
+			nodeIndex = new NodeIndex(this, matcher);
+		}
+		return nodeIndex;
+	}
+
 	private void addActive(EdgeNode n) {
 		preUpdate();
+		ownGraph();
 		active.add(n);
+		markTouched(n);
+		postUpdate();
+	}
+
+	private void removeActive(EdgeNode n) {
+		preUpdate();
+		ownGraph();
+		active.remove(n);
+		markTouched(n);
 		postUpdate();
 	}
 
 	private void clearActive() {
 		preUpdate();
+		ownGraph();
 		active.clear();
 		postUpdate();
 	}
@@ -271,10 +508,10 @@ public class EdgeHistory implements History {
 		if (this == h) return true;
 		if (h instanceof EdgeHistory == false) return false;
 		EdgeHistory eh = (EdgeHistory) h;
-		if (contentHash() != eh.contentHash()) return false;
+		boolean compareWeights = ignoresWeights() == false && eh.ignoresWeights() == false;
 
 		Set<Edge> found = new HashSet<Edge>();
-		for (Edge this_edge : edges) {
+		for (Edge this_edge : edges()) {
 			EdgeNode other_from = eh.findMatching(this_edge.getFrom(), this);
 			if (other_from == null) return false;
 			EdgeNode other_to = eh.findMatching(this_edge.getTo(), this);
@@ -282,23 +519,94 @@ public class EdgeHistory implements History {
 			Edge other_edge = eh.findEdge(other_from, other_to);
 			if (other_edge == null) return false;
 			found.add(other_edge);
-			if (this_edge.equalContent(other_edge) == false) return false;
+			if (compareWeights) {
+				if (this_edge.equalContent(other_edge) == false) return false;
+			} else {
+				if (this_edge.getMethods().equals(other_edge.getMethods()) == false) return false;
+			}
 		}
 
-		return found.containsAll(eh.edges);
+		return found.containsAll(eh.edges());
 
 	}
 
 	@Override
 	public int contentHash() {
 		if (contentHash == null) {
-			contentHash = 31;
-			contentHash += 31 * edges.size();
-			contentHash += 31 * getAllParticipatingMethods().hashCode();
+			long f = getFingerprint(true);
+			contentHash = (int) (f ^ (f >>> 32));
 		}
 		return contentHash;
 	}
 
+	@Override
+	public long getFingerprint(boolean includeWeights) {
+		if (includeWeights && ignoresWeights() == false) {
+			if (fingerprint == null) fingerprint = calculateFingerprint(true);
+			return fingerprint;
+		} else {
+			if (weightlessFingerprint == null) {
+				weightlessFingerprint = calculateFingerprint(false);
+			}
+			return weightlessFingerprint;
+		}
+	}
+
+	/**
+	 * Weisfeiler-Lehman style graph hash: every node starts with a label which only tells whether
+	 * it is the root, and in every round is relabeled by combining its label with the labels of
+	 * its incoming and outgoing edges and of the nodes on their other side. Multisets are
+	 * combined by summing, so the result does not depend on iteration order.
+	 * 
+	 * @param includeWeights
+	 * @return The fingerprint.
+	 */
+	private long calculateFingerprint(boolean includeWeights) {
+		Map<EdgeNode, Long> labels = new HashMap<EdgeNode, Long>();
+		for (EdgeNode n : nodes()) {
+			labels.put(n, n == root ? 1L : 2L);
+		}
+		for (int i = 0; i < FINGERPRINT_ROUNDS; i++) {
+			Map<EdgeNode, Long> newLabels = new HashMap<EdgeNode, Long>();
+			for (EdgeNode n : nodes()) {
+				long out = 0;
+				for (Edge e : getOutgoingEdges(n)) {
+					out += mix(edgeLabel(e, includeWeights) * 31 + labels.get(e.getTo()));
+				}
+				long in = 0;
+				for (Edge e : getIngoingEdges(n)) {
+					in += mix(edgeLabel(e, includeWeights) * 37 + labels.get(e.getFrom()));
+				}
+				newLabels.put(n, mix(mix(labels.get(n)) + 41 * mix(out) + 43 * mix(in + 1)));
+			}
+			labels = newLabels;
+		}
+		long result = getNumEdges();
+		for (long label : labels.values()) {
+			result += mix(label);
+		}
+		return mix(result);
+	}
+
+	private static long edgeLabel(Edge e, boolean includeWeights) {
+		long result = e.getMethods().hashCode();
+		// Adding 0.0 turns -0.0 into 0.0, since they are equal weights
+		if (includeWeights) result = result * 31 + Double.doubleToLongBits(e.getWeight() + 0.0);
+		return result;
+	}
+
+	/**
+	 * 64-bit finalizer from MurmurHash3.
+	 */
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
 	/**
 	 * Attempts a downcast from a History into an EdgeHistory; throws IllegalArgumentException
 	 * instead of ClassCastException if failing.
@@ -316,7 +624,7 @@ public class EdgeHistory implements History {
 		if (this.equals(h)) return;
 		if (h.containsOnlyRoot()) return;
 		EdgeHistory eh = downcast(h);
-		Map<EdgeNode, EdgeNode> map = mergeEdgesFrom(eh, eh.edges, false, false);
+		Map<EdgeNode, EdgeNode> map = mergeEdgesFrom(eh, eh.edges(), false, false);
 		mergeActiveFrom(map, eh);
 	}
 
@@ -326,7 +634,7 @@ public class EdgeHistory implements History {
 		if (h == this) return;
 		if (h.containsOnlyRoot()) return;
 		EdgeHistory eh = downcast(h);
-		Map<EdgeNode, EdgeNode> map = mergeEdgesFrom(eh, eh.edges, true, inclusion);
+		Map<EdgeNode, EdgeNode> map = mergeEdgesFrom(eh, eh.edges(), true, inclusion);
 		mergeActiveFrom(map, eh);
 		sources.add(eh);
 	}
@@ -350,9 +658,7 @@ public class EdgeHistory implements History {
 	 * @return The newly-created edge.
 	 */
 	private Edge edgeMerge(EdgeNode from, EdgeNode to, Edge e1, Edge e2, boolean union) {
-		Set<AppMethodRef> methods = new HashSet<AppMethodRef>();
-		methods.addAll(e1.getMethods());
-		methods.addAll(e2.getMethods());
+		Set<AppMethodRef> methods = MethodSet.union(e1.getMethods(), e2.getMethods());
 		double w1 = e1.getWeight();
 		double w2 = e2.getWeight();
 		double weight = union ? w1 + w2 : Math.max(w1, w2);
@@ -411,9 +717,28 @@ public class EdgeHistory implements History {
 	 */
 	private EdgeNode findMatching(EdgeNode n, EdgeHistory otherHistory)
 			throws InterruptedException, CanceledException {
+		return findMatching(n, otherHistory, Collections.<EdgeNode>emptySet());
+	}
+
+	/**
+	 * @param n
+	 *            A node in <code>otherHistory</code>
+	 * @param otherHistory
+	 *            Another history, or this history itself.
+	 * @param excluded
+	 *            Nodes in this history which should not be matched.
+	 * @return A node in this history matching <code>n</code> if one exists; null otherwise.
+	 * @throws CanceledException
+	 * @throws InterruptedException
+	 */
+	private EdgeNode findMatching(EdgeNode n, EdgeHistory otherHistory, Set<EdgeNode> excluded)
+			throws InterruptedException, CanceledException {
 		if (otherHistory.getIngoingEdges(n).isEmpty()) return root;
-		for (EdgeNode existingNode : nodes) {
+		Set<EdgeNode> candidates = getNodeIndex().getMatchingCandidates(n, otherHistory);
+		if (candidates == null) candidates = nodes();
+		for (EdgeNode existingNode : candidates) {
 			ConcurrencyUtils.checkState();
+			if (excluded.contains(existingNode)) continue;
 			if (matching(this, existingNode, otherHistory, n)) return existingNode;
 		}
 		return null;
@@ -463,7 +788,7 @@ public class EdgeHistory implements History {
 	 *            The other history.
 	 */
 	private void mergeActiveFrom(Map<EdgeNode, EdgeNode> m, EdgeHistory h) {
-		for (EdgeNode n : h.active) {
+		for (EdgeNode n : h.getActive()) {
 			addActive(m.get(n));
 		}
 	}
@@ -482,7 +807,7 @@ public class EdgeHistory implements History {
 	 */
 	private Set<Edge> addMethodCallNoMerge(AppMethodRef m, double weight) {
 		Set<Edge> result = new HashSet<Edge>();
-		for (EdgeNode n : active) {
+		for (EdgeNode n : getActive()) {
 			EdgeNode newNode = new EdgeNode();
 			addNode(newNode);
 			Edge newEdge = new Edge(n, newNode, m, weight);
@@ -510,21 +835,42 @@ public class EdgeHistory implements History {
 	public void extendWithMethodCall(AppMethodRef m, double weight) throws InterruptedException,
 			CanceledException {
 		preUpdate();
-		// First, create a new identical history with a new node connected
-		// from all the active nodes.
-		EdgeHistory h = clone();
-		Set<Edge> newEdges = h.addMethodCallNoMerge(m, weight);
+		// First, add a new node connected from each of the active nodes. This is done in place
+		// rather than on a clone, so that only the new nodes and edges are copied.
+		Set<Edge> newEdges = addMethodCallNoMerge(m, weight);
+		Set<EdgeNode> unmatched = new HashSet<EdgeNode>();
+		for (Edge e : newEdges) {
+			unmatched.add(e.getTo());
+		}
 
-		// Then merge it into this history. Union is true because we are extending
-		// the current history with a new operation, not merging existing histories.
-		// BUT setting it to false meanwhile, fearing that we need to limit
-		// the weights to 1 during analysis, for fixed-point.
-		Map<EdgeNode, EdgeNode> map = mergeEdgesFrom(h, newEdges, false, false);
+		// Then fold every new node into an existing node matching it, if there is one. Weights
+		// are not summed because we are extending the current history with a new operation,
+		// not merging existing histories, and we need to limit the weights to 1 during analysis,
+		// for fixed-point.
+		Set<EdgeNode> latest = new HashSet<EdgeNode>();
+		for (Edge e : newEdges) {
+			EdgeNode from = e.getFrom();
+			EdgeNode newNode = e.getTo();
+			EdgeNode existingNode = findMatching(newNode, this, unmatched);
+			unmatched.remove(newNode);
+			if (existingNode == null) {
+				latest.add(newNode);
+				continue;
+			}
+			removeEdge(e);
+			removeNode(newNode);
+			if (from.equals(existingNode) && e.isUnknown()) {
+				// We do not allow unknown loops.
+			} else {
+				updateEdgeFromOtherEdge(from, existingNode, e, false, null);
+			}
+			latest.add(existingNode);
+		}
 
 		// Finally, set the active to only include the latest nodes
 		clearActive();
-		for (Edge e : newEdges) {
-			addActive(map.get(e.getTo()));
+		for (EdgeNode n : latest) {
+			addActive(n);
 		}
 		postUpdate();
 	}
@@ -594,7 +940,7 @@ public class EdgeHistory implements History {
 	 *         such node exists.
 	 */
 	private EdgeNode findFutureMatching(EdgeHistory h, EdgeNode n) {
-		for (EdgeNode existingNode : nodes) {
+		for (EdgeNode existingNode : getNodeIndex().getFutureMatchingCandidates(n, h)) {
 			if (futureMatching(this, existingNode, h, n)) return existingNode;
 		}
 		return null;
@@ -637,19 +983,164 @@ public class EdgeHistory implements History {
 		} catch (CloneNotSupportedException e) {
 			throw new InternalError();
 		}
+		h.share = null;
 		h.copyFrom(this);
 		return h;
 	}
 
 	protected void copyFrom(EdgeHistory h) {
-		edges = new HashSet<Edge>(h.edges);
-		nodes = new HashSet<EdgeNode>(h.nodes);
-		active = new HashSet<EdgeNode>(h.active);
-		ingoing = h.ingoing.clone();
-		outgoing = h.outgoing.clone();
+		copyGraphFrom(h);
+		copyRootFrom(h);
+	}
+
+	private void copyRootFrom(EdgeHistory h) {
 		sources = new HashSet<EdgeHistory>();
 		sources.add(h);
 		root = h.root;
+		nodeIndex = null;
+	}
+
+	/**
+	 * Replace the graph of this history with the graph of another history. The graph is shared
+	 * until one of the histories modifies it, so this takes constant time.
+	 * 
+	 * @param h
+	 */
+	protected void copyGraphFrom(EdgeHistory h) {
+		unshare();
+		version++;
+		// Several histories may be cloned from h at the same time
+		synchronized (h) {
+			h.loadGraph();
+			edges = h.edges;
+			nodes = h.nodes;
+			active = h.active;
+			ingoing = h.ingoing;
+			outgoing = h.outgoing;
+			if (h.borrowed) {
+				// The owner of the fields does not know about h, so they cannot be shared
+				copyGraph();
+				return;
+			}
+			if (h.share == null) {
+				h.share = new GraphShare();
+				h.share.join(h);
+			}
+			h.share.join(this);
+			share = h.share;
+		}
+	}
+
+	/**
+	 * Use the graph fields of another history as they are, without registering as a holder of
+	 * them, so that <code>h</code> keeps modifying them in place. The first modification of this
+	 * history copies them. Until then this history has to follow the changes of <code>h</code>
+	 * itself, see {@link #getGraphVersion()}. Does not count as a modification.
+	 * 
+	 * @param h
+	 */
+	protected void borrowGraphFrom(EdgeHistory h) {
+		unshare();
+		version++;
+		synchronized (h) {
+			h.loadGraph();
+			edges = h.edges;
+			nodes = h.nodes;
+			active = h.active;
+			ingoing = h.ingoing;
+			outgoing = h.outgoing;
+		}
+		borrowed = true;
+		nodeIndex = null;
+		contentHash = null;
+		fingerprint = null;
+		weightlessFingerprint = null;
+	}
+
+	/**
+	 * @return A number which changes whenever the graph of this history changes.
+	 */
+	protected int getGraphVersion() {
+		return version;
+	}
+
+	/**
+	 * @return True if this history ignores weights when compared to other histories or hashed.
+	 */
+	protected boolean ignoresWeights() {
+		return false;
+	}
+
+	/**
+	 * @param h
+	 * @return True if this history currently uses the very same graph fields as <code>h</code>.
+	 */
+	protected boolean sharesGraphWith(EdgeHistory h) {
+		h.loadGraph();
+		return edges == h.edges;
+	}
+
+	/**
+	 * @return True if no other history may be using the graph fields of this history.
+	 */
+	protected boolean ownsGraph() {
+		return share == null && borrowed == false;
+	}
+
+	/**
+	 * Make sure the graph fields are not shared with other histories, copying them if necessary.
+	 * Must be called before modifying them.
+	 */
+	private void ownGraph() {
+		loadGraph();
+		version++;
+		if (borrowed) {
+			copyGraph();
+			unshare();
+			return;
+		}
+		if (share == null) return;
+		synchronized (this) {
+			if (share.isOnlyHolder(this) == false) {
+				// Stay a holder while copying, so that no other holder starts modifying the
+				// fields in place before we are done reading them
+				copyGraph();
+			}
+			unshare();
+		}
+	}
+
+	/**
+	 * Replace the graph fields with copies of themselves.
+	 */
+	private void copyGraph() {
+		edges = new HashSet<Edge>(edges);
+		nodes = new HashSet<EdgeNode>(nodes);
+		active = new HashSet<EdgeNode>(active);
+		ingoing = ingoing.clone();
+		outgoing = outgoing.clone();
+	}
+
+	/**
+	 * Stop sharing or borrowing the current graph fields. The fields themselves are left
+	 * untouched, so the caller should replace them.
+	 */
+	private void unshare() {
+		borrowed = false;
+		if (share == null) return;
+		share.leave(this);
+		share = null;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// Histories which shared their graph when written share it again
+		if (share != null) share.join(this);
+		// The owner of borrowed fields may have been written along with this history
+		if (borrowed) {
+			unshare();
+			copyGraph();
+		}
 	}
 
 	@Override
@@ -663,7 +1154,7 @@ public class EdgeHistory implements History {
 
 	@Override
 	public int getNumNodes() {
-		return nodes.size();
+		return nodes().size();
 	}
 
 	@Override
@@ -694,9 +1185,9 @@ public class EdgeHistory implements History {
 	private void removeOrReconnectDisconnectedNodes(Set<EdgeNode> noIncoming,
 			Map<EdgeNode, Double> weightRemovedPerNode) {
 		for (EdgeNode n : noIncoming) {
-			if (outgoing.containsKey(n) == false) {
+			if (getOutgoingEdges(n).isEmpty()) {
 				removeNode(n);
-				active.remove(n);
+				removeActive(n);
 			} else {
 				assert (weightRemovedPerNode.containsKey(n));
 
@@ -719,7 +1210,7 @@ public class EdgeHistory implements History {
 	 */
 	private Set<Edge> getLowWeightEdges(double limit) {
 		Set<Edge> lowWeightEdges = new HashSet<Edge>();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			if (e.getWeight() < limit) lowWeightEdges.add(e);
 		}
 		return lowWeightEdges;
@@ -758,7 +1249,7 @@ public class EdgeHistory implements History {
 	 */
 	private Set<EdgeNode> getNodesWithNoIncoming() {
 		Set<EdgeNode> noIncoming = new HashSet<EdgeNode>();
-		for (EdgeNode n : nodes) {
+		for (EdgeNode n : nodes()) {
 			if (n.equals(root)) continue; // Don't include the root:
 			if (getIngoingEdges(n).isEmpty()) noIncoming.add(n);
 		}
@@ -768,7 +1259,7 @@ public class EdgeHistory implements History {
 	@Override
 	public double getMaximumWeight() {
 		double max = -1;
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			if (e.isUnknown()) continue; // skip unknown methods
 			if (e.isConstructor()) continue; // skip constructors
 			double w = e.getWeight();
@@ -807,7 +1298,7 @@ public class EdgeHistory implements History {
 	@Override
 	public int getMaxDegree() {
 		int max = -1;
-		for (EdgeNode n : nodes) {
+		for (EdgeNode n : nodes()) {
 			int num = getOutgoingEdges(n).size();
 			if (num > max) max = num;
 		}
@@ -818,7 +1309,7 @@ public class EdgeHistory implements History {
 	public double getAverageWeight() {
 		double sum = 0;
 		int count = 0;
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			if (e.isUnknown()) continue;
 			double w = e.getWeight();
 			if (w <= 0) continue;
@@ -832,7 +1323,7 @@ public class EdgeHistory implements History {
 	@Override
 	public int getNumParticipatingTypes() {
 		Set<AppType> types = new HashSet<AppType>();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			for (AppMethodRef m : e.getMethods()) {
 				types.add(m.getContainingType());
 			}
@@ -842,13 +1333,13 @@ public class EdgeHistory implements History {
 
 	@Override
 	public int getNumEdges() {
-		return edges.size();
+		return edges().size();
 	}
 
 	@Override
 	public int getNumUnknownEdges() {
 		int count = 0;
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			for (AppMethodRef m : e.getMethods()) {
 				if (m.isUnknown()) {
 					count++;
@@ -898,7 +1389,7 @@ public class EdgeHistory implements History {
 		appendGvFileHeader(sb, getTitle(),graphId);
 		Map<EdgeNode, String> nodeNames = appendGvNodes(sb);
 		Set<Edge> edgesOnHeaviestRoute = findEdgesOnHeaviestRoute();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			appendGvEdge(nodeNames, sb, e, edgesOnHeaviestRoute.contains(e));
 		}
 		appendGvFileFooter(sb);
@@ -908,11 +1399,11 @@ public class EdgeHistory implements History {
 	private Map<EdgeNode, String> appendGvNodes(StringBuilder sb) {
 		Map<EdgeNode, String> result = new HashMap<EdgeNode, String>();
 		int counter = 1; // 0 is reserved for the root
-		for (EdgeNode n : nodes) {
+		for (EdgeNode n : nodes()) {
 			String name = n == root ? "0" : "" + counter++;
 			result.put(n, name);
 			sb.append("\t" + name);
-			if (active.contains(n)) {
+			if (getActive().contains(n)) {
 				// String numEnding = StringUtils.prettyPrintNumber(numberOfRoutesEndingAt(n));
 				sb.append("[ shape = \"doublecircle\" ");
 				// sb.append(String.format("label = \"%s\\n/%s\" ]", name, numEnding));
@@ -1046,12 +1537,14 @@ public class EdgeHistory implements History {
 
 	@SuppressWarnings("unchecked")
 	public Set<Edge> getIngoingEdges(EdgeNode n) {
+		loadGraph();
 		Set<Edge> result = ingoing.getAll(n);
 		return result != null ? result : Collections.EMPTY_SET;
 	}
 
 	@SuppressWarnings("unchecked")
 	public Set<Edge> getOutgoingEdges(EdgeNode n) {
+		loadGraph();
 		Set<Edge> result = outgoing.getAll(n);
 		return result != null ? result : Collections.EMPTY_SET;
 	}
@@ -1059,7 +1552,7 @@ public class EdgeHistory implements History {
 	@Override
 	public Set<AppMethodRef> getAllParticipatingMethods() {
 		Set<AppMethodRef> result = new HashSet<AppMethodRef>();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			result.addAll(e.getMethods());
 		}
 		return result;
@@ -1073,7 +1566,7 @@ public class EdgeHistory implements History {
 		doc.setAttribute("title", getTitle());
 		doc.setAttribute("root", "H0");
 		doc.add("type", "multiple");
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			DocNode edgeDocNode = doc.add("edge", null);
 			edgeDocNode.setAttribute("src", nodeNames.get(e.getFrom()));
 			edgeDocNode.setAttribute("dst", nodeNames.get(e.getTo()));
@@ -1089,7 +1582,7 @@ public class EdgeHistory implements History {
 
 	@Override
 	public void removeRootFromActive() {
-		if (active.size() > 1 || active.contains(root) == false) active.remove(root);
+		if (getActive().size() > 1 || getActive().contains(root) == false) removeActive(root);
 	}
 
 	// sharon
@@ -1113,49 +1606,14 @@ public class EdgeHistory implements History {
 	// return verifyInclusion(otherToCurr, otherHistory);
 	// }
 
+	/**
+	 * Weights are ignored.
+	 * 
+	 * @return True if some node of this history simulates the root of <code>h</code>.
+	 */
 	@Override
 	public boolean includes(History h) {
-		EdgeHistory weightlessThis = (EdgeHistory) cloneWeightless();
-		EdgeHistory weightlessThat = downcast(h.cloneWeightless());
-		boolean found = false;
-		for (EdgeNode n : weightlessThis.nodes) {
-			found |= weightlessThis.includesPathsStartingFrom(
-					new HashMap<EdgeNode, EdgeNode>(),
-					n,
-					weightlessThat,
-					weightlessThat.getRoot());
-		}
-		return found;
-	}
-
-	private boolean includesPathsStartingFrom(
-			Map<EdgeNode, EdgeNode> matching,
-			EdgeNode localNode,
-			EdgeHistory otherHistory,
-			EdgeNode otherNode) {
-		matching.put(localNode, otherNode);
-		Set<Edge> edges1 = this.getOutgoingEdges(localNode);
-		Set<Edge> edges2 = otherHistory.getOutgoingEdges(otherNode);
-		for (Edge e2 : edges2) {
-			Edge matchingEdge = null;
-			for (Edge e1 : edges1) {
-				if (e1.getMethods().containsAll(e2.getMethods())) {
-					matchingEdge = e1;
-					break;
-				}
-			}
-			if (matchingEdge == null) return false;
-			EdgeNode new1 = matchingEdge.getTo();
-			EdgeNode new2 = e2.getTo();
-			if (matching.containsKey(new1)) {
-				if (matching.get(new1).equals(new2)) {
-					continue;
-				}
-				return false;
-			}
-			if (includesPathsStartingFrom(matching, new1, otherHistory, new2) == false) return false;
-		}
-		return true;
+		return Simulation.includes(this, downcast(h));
 	}
 
 	// private EdgeNode computeRootMatch(EdgeNode otherRoot, EdgeHistory otherHistory, Map<EdgeNode,
@@ -1231,20 +1689,13 @@ public class EdgeHistory implements History {
 
 	@Override
 	public History cloneWeightless() {
-		if (weightlessClone == null) {
-			weightlessClone = clone();
-			for (Edge e : edges) {
-				weightlessClone.removeEdge(e);
-				weightlessClone.addEdge(new WeightlessEdge(e));
-			}
-		}
-		return weightlessClone;
+		return new WeightlessEdgeHistory(this);
 	}
 
 	@Override
 	public Set<AppType> getAllParticipatingTypes() {
 		Set<AppType> result = new HashSet<AppType>();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			for (AppMethodRef m : e.getMethods()) {
 				AppType t = m.getContainingType();
 				if (t != null) result.add(t);
@@ -1256,7 +1707,7 @@ public class EdgeHistory implements History {
 	@Override
 	public Set<AppType> getAllParticipatingApiTypes() {
 		Set<AppType> result = new HashSet<AppType>();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			for (AppMethodRef m : e.getMethods()) {
 				AppType t = m.getContainingType();
 				if (t != null &&
@@ -1297,82 +1748,64 @@ public class EdgeHistory implements History {
 	@Override
 	public void recursivelySetOptions(Options options) {
 		this.options = options;
+		nodeIndex = null;
 		for (History h : getSources()) {
 			h.recursivelySetOptions(options);
 		}
 	}
 
 	public boolean isActive(EdgeNode n) {
-		return active.contains(n);
+		return getActive().contains(n);
 	}
 
 	private Set<Edge> edgesReachableFrom(EdgeNode start) {
-		Set<Edge> result = new HashSet<Edge>();
-		Set<EdgeNode> front = new HashSet<EdgeNode>(Collections.singleton(start));
-		int prevSize;
-		do {
-			prevSize = result.size();
-			Set<EdgeNode> newFront = new HashSet<EdgeNode>();
-			for (EdgeNode n : front) {
-				for (Edge e : getOutgoingEdges(n)) {
-					result.add(e);
-					newFront.add(e.getTo());
-				}
-			}
-			front = newFront;
-		} while (prevSize != result.size());
-		return result;
+		return getReachabilityIndex().edgesReachableFrom(this, start);
 	}
 
 	private Set<EdgeNode> nodesReachableFrom(EdgeNode start) {
-		Set<EdgeNode> result = new HashSet<EdgeNode>();
-		Set<EdgeNode> front = new HashSet<EdgeNode>(Collections.singleton(start));
-		int prevSize;
-		do {
-			prevSize = result.size();
-			Set<EdgeNode> newFront = new HashSet<EdgeNode>();
-			for (EdgeNode n : front) {
-				for (Edge e : getOutgoingEdges(n)) {
-					newFront.add(e.getTo());
-					result.add(e.getTo());
-				}
-			}
-			front = newFront;
-		} while (prevSize != result.size());
-		return result;
+		return getReachabilityIndex().nodesReachableFrom(this, start);
 	}
 
 	private Set<Edge> edgesReachableTo(EdgeNode end) {
-		Set<Edge> result = new HashSet<Edge>();
-		Set<EdgeNode> front = new HashSet<EdgeNode>(Collections.singleton(end));
-		int prevSize;
-		do {
-			prevSize = result.size();
-			Set<EdgeNode> newFront = new HashSet<EdgeNode>();
-			for (EdgeNode n : front) {
-				for (Edge e : getIngoingEdges(n)) {
-					result.add(e);
-					newFront.add(e.getFrom());
-				}
-			}
-			front = newFront;
-		} while (prevSize != result.size());
-		return result;
+		return getReachabilityIndex().edgesReachableTo(this, end);
+	}
+
+	/**
+	 * @return Reachability information for the current version of this history.
+	 */
+	ReachabilityIndex getReachabilityIndex() {
+		loadGraph();
+		if (reachability == null || reachability.getVersion() != version) {
+			reachability = new ReachabilityIndex(this, version);
+		}
+		return reachability;
 	}
 
+	/**
+	 * The result is unmodifiable, and cached until this history is modified.
+	 */
 	@Override
 	public Set<Ordering> getOrderings() {
-		Set<Ordering> result = new HashSet<Ordering>();
-		for (Edge e : edges) {
-			for (Edge reachable : edgesReachableFrom(e.getTo())) {
-				for (AppMethodRef m1 : e.getMethods()) {
-					for (AppMethodRef m2 : reachable.getMethods()) {
-						result.add(new Ordering(m1, m2));
-					}
-				}
-			}
-		}
-		return result;
+		return getReachabilityIndex().getOrderings(this);
+	}
+
+	/**
+	 * @return All the orderings in this history, as a sorted array of distinct pairs of method ids,
+	 *         each packed into a long as <code>(first &lt;&lt; 32) | second</code>. The ids are
+	 *         local to the current version of this history, see {@link #getOrderingMethod(int)}.
+	 *         Cached until this history is modified; must not be modified.
+	 */
+	public long[] getOrderingIds() {
+		return getReachabilityIndex().getOrderingIds(this);
+	}
+
+	/**
+	 * @param id A method id from {@link #getOrderingIds()}, for the current version of this
+	 *        history.
+	 * @return The method with that id.
+	 */
+	public AppMethodRef getOrderingMethod(int id) {
+		return getReachabilityIndex().getMethod(id);
 	}
 
 	/**
@@ -1383,7 +1816,7 @@ public class EdgeHistory implements History {
 	 * @return
 	 */
 	public EdgeNode findNodeWithIncoming(AppMethodRef m) {
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			if (e.getMethods().contains(m)) return e.getTo();
 		}
 		return null;
@@ -1406,7 +1839,7 @@ public class EdgeHistory implements History {
 
 		// 1. Find matching nodes, but ignore unknown edges
 		Map<EdgeNode, EdgeNode> matches = new HashMap<EdgeNode, EdgeNode>();
-		outer: for (EdgeNode included_node : included.nodes) {
+		outer: for (EdgeNode included_node : included.nodes()) {
 			Set<Edge> included_ingoing = included.getIngoingEdges(included_node);
 			if (included_ingoing.isEmpty()) {
 				matches.put(included_node, including.root);
@@ -1415,7 +1848,10 @@ public class EdgeHistory implements History {
 			if (included_ingoing.iterator().next().isUnknown()) {
 				continue;
 			}
-			for (EdgeNode including_node : including.nodes) {
+			Set<EdgeNode> candidates =
+					including.getNodeIndex().getMatchingCandidates(included_node, included);
+			if (candidates == null) candidates = including.nodes();
+			for (EdgeNode including_node : candidates) {
 				Set<Edge> including_ingoing = including.getIngoingEdges(including_node);
 				if (including_ingoing.isEmpty() || including_ingoing.iterator().next().isUnknown()) {
 					continue;
@@ -1431,7 +1867,7 @@ public class EdgeHistory implements History {
 		}
 
 		// 2. Find matching edges, ignore unknown edges
-		for (Edge included_edge : included.edges) {
+		for (Edge included_edge : included.edges()) {
 			if (included_edge.isUnknown()) continue;
 
 			EdgeNode including_from = matches.get(included_edge.getFrom());
@@ -1447,21 +1883,17 @@ public class EdgeHistory implements History {
 		}
 
 		// 3. Check reachability for unknown edges
-		for (Edge included_edge : included.edges) {
+		ReachabilityIndex includingReachability = including.getReachabilityIndex();
+		for (Edge included_edge : included.edges()) {
 			if (included_edge.isUnknown() == false) continue;
 
 			EdgeNode included_from = included_edge.getFrom();
 			for (Edge included_nextEdge : included.getOutgoingEdges(included_edge.getTo())) {
 				EdgeNode included_nextNode = included_nextEdge.getTo();
-
-				boolean found = false;
-				for (Edge including_edge : including.edgesReachableFrom(matches.get(included_from))) {
-					if (including_edge.getTo().equals(matches.get(included_nextNode))) {
-						found = true;
-						break;
-					}
+				if (includingReachability.reaches(
+						including, matches.get(included_from), matches.get(included_nextNode)) == false) {
+					return false;
 				}
-				if (found == false) return false;
 			}
 		}
 
@@ -1480,7 +1912,7 @@ public class EdgeHistory implements History {
 	public History eliminateUnknowns(HistoryCollection base) throws InterruptedException,
 			CanceledException {
 		EdgeHistory result = clone();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			if (e.isUnknown()) result.eliminateUnknown(e, base);
 		}
 		result.removeDisconnectedParts();
@@ -1498,7 +1930,7 @@ public class EdgeHistory implements History {
 		Set<Edge> toRemove = new HashSet<Edge>();
 
 		if (toEdges.isEmpty()) {
-			Set<Edge> snapshot = new HashSet<Edge>(edges);
+			Set<Edge> snapshot = new HashSet<Edge>(edges());
 			for (History baseHistory : base.getHistories()) {
 				EdgeHistory edgeBaseHistory = (EdgeHistory) baseHistory;
 				EdgeNode fromNode = null;
@@ -1518,7 +1950,7 @@ public class EdgeHistory implements History {
 
 		for (Edge toEdge : toEdges) {
 			EdgeNode toNode = null;
-			Set<Edge> snapshot = new HashSet<Edge>(edges);
+			Set<Edge> snapshot = new HashSet<Edge>(edges());
 
 			for (History baseHistory : base.getHistories()) {
 				EdgeHistory edgeBaseHistory = (EdgeHistory) baseHistory;
@@ -1633,7 +2065,7 @@ public class EdgeHistory implements History {
 
 	public String getEdgeString() {
 		StringBuilder sb = new StringBuilder();
-		for (Edge e : edges) {
+		for (Edge e : edges()) {
 			sb.append(e.toString() + "   " + e.getMethods().iterator().next().getSignature());
 			sb.append("\n");
 		}
@@ -1691,50 +2123,91 @@ public class EdgeHistory implements History {
 			final int maxEdgeRepetitions,
 			final int maxNodeRepetitions,
 			final Set<AppType> extraTypes) {
-		return new ThreadedYieldAdapter<EdgeSequence>().adapt(new Collector<EdgeSequence>() {
-
+		return new Iterable<EdgeSequence>() {
 			@Override
-			public void collect(ResultHandler<EdgeSequence> handler)
-					throws CollectionAbortedException {
-				LinkedList<EdgeNode> nodes = new LinkedList<EdgeNode>();
-				nodes.add(root);
-				yieldNextInner(handler, new LinkedList<Edge>(), nodes, root);
+			public Iterator<EdgeSequence> iterator() {
+				return new SequenceIterator(maxEdgeRepetitions, maxNodeRepetitions, extraTypes);
 			}
+		};
+	}
+
+	/**
+	 * Depth-first traversal over the method sequences of this history, using an explicit stack.
+	 * Sequences are returned in post-order: a sequence is returned after all the sequences
+	 * extending it.
+	 */
+	private class SequenceIterator implements Iterator<EdgeSequence> {
+		private final int maxEdgeRepetitions;
+		private final int maxNodeRepetitions;
+		private final Set<AppType> extraTypes;
+
+		// The current path, and for every node on it, its not-yet-visited outgoing edges
+		private final LinkedList<Edge> edges = new LinkedList<Edge>();
+		private final LinkedList<EdgeNode> nodes = new LinkedList<EdgeNode>();
+		private final LinkedList<Iterator<Edge>> stack = new LinkedList<Iterator<Edge>>();
+
+		private EdgeSequence next;
+
+		public SequenceIterator(int maxEdgeRepetitions, int maxNodeRepetitions,
+				Set<AppType> extraTypes) {
+			this.maxEdgeRepetitions = maxEdgeRepetitions;
+			this.maxNodeRepetitions = maxNodeRepetitions;
+			this.extraTypes = extraTypes;
+			nodes.add(root);
+			stack.add(getOutgoingEdges(root).iterator());
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) next = advance();
+			return next != null;
+		}
+
+		@Override
+		public EdgeSequence next() {
+			if (hasNext() == false) throw new NoSuchElementException();
+			EdgeSequence result = next;
+			next = null;
+			return result;
+		}
 
-			private void yieldNextInner(ResultHandler<EdgeSequence> handler,
-					LinkedList<Edge> edges,
-					LinkedList<EdgeNode> nodes,
-					EdgeNode curr) {
-				if (nodes.size() > SEQUENCE_LENGTH_THRESHOLD) return;
-				Set<Edge> out = getOutgoingEdges(curr);
-				// boolean added = false;
-				for (Edge e : out) {
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * @return The next sequence, or null if there are no more.
+		 */
+		private EdgeSequence advance() {
+			while (stack.isEmpty() == false) {
+				Iterator<Edge> out = stack.getLast();
+				if (out.hasNext()) {
+					Edge e = out.next();
 					if (e.getWeight() < SEQUENCE_EDGE_THRESHOLD) continue;
 					edges.addLast(e);
 					nodes.addLast(e.getTo());
-					try {
-						if (maxEdgeRepetitions > 0 && countInstances(edges, e) > maxEdgeRepetitions) {
-							continue;
-						}
-						if (maxNodeRepetitions > 0
-								&& countInstances(nodes, e.getTo()) > maxNodeRepetitions) {
-							continue;
-						}
-						yieldNextInner(handler, edges, nodes, e.getTo());
-						// added |= true;
-					} finally {
+					if ((maxEdgeRepetitions > 0 && countInstances(edges, e) > maxEdgeRepetitions) ||
+							(maxNodeRepetitions > 0 &&
+							countInstances(nodes, e.getTo()) > maxNodeRepetitions) ||
+							nodes.size() > SEQUENCE_LENGTH_THRESHOLD) {
 						edges.removeLast();
 						nodes.removeLast();
+						continue;
 					}
-				}
-				if (edges.size() > 0 /* && added == false */) {
-					try {
-						handler.handleResult(new EdgeSequence(edges, extraTypes));
-					} catch (CollectionAbortedException e1) {}
+					stack.addLast(getOutgoingEdges(e.getTo()).iterator());
+				} else {
+					// Done with all the extensions of the current path
+					stack.removeLast();
+					if (edges.isEmpty()) return null;
+					EdgeSequence result = new EdgeSequence(edges, extraTypes);
+					edges.removeLast();
+					nodes.removeLast();
+					return result;
 				}
 			}
-
-		});
+			return null;
+		}
 	}
 
 	/**
@@ -1750,7 +2223,7 @@ public class EdgeHistory implements History {
 		preUpdate();
 		try {
 			Map<EdgeNode, EdgeNode> thisToOtherNodes = new HashMap<EdgeNode, EdgeNode>();
-			for (EdgeNode n : other.nodes) {
+			for (EdgeNode n : other.nodes()) {
 				EdgeNode matchingLocalNode = findMatching(n, other);
 				if (matchingLocalNode == null) continue;
 				thisToOtherNodes.put(matchingLocalNode, n);
@@ -1758,7 +2231,7 @@ public class EdgeHistory implements History {
 			thisToOtherNodes.put(root, other.root);
 
 			Set<Edge> toRemove = new HashSet<Edge>();
-			for (Edge e : edges) {
+			for (Edge e : edges()) {
 				// if (e.isUnknown()) continue;
 				EdgeNode otherFrom = thisToOtherNodes.get(e.getFrom());
 				if (otherFrom == null) {
@@ -1807,64 +2280,169 @@ public class EdgeHistory implements History {
 		Set<Edge> remainingEdges = edgesReachableFrom(root);
 		Set<EdgeNode> remainingNodes = nodesReachableFrom(root);
 		remainingNodes.add(root);
-		Set<Edge> edgesToRemove = new HashSet<Edge>(edges);
+		Set<Edge> edgesToRemove = new HashSet<Edge>(edges());
 		edgesToRemove.removeAll(remainingEdges);
-		Set<EdgeNode> nodesToRemove = new HashSet<EdgeNode>(nodes);
+		Set<EdgeNode> nodesToRemove = new HashSet<EdgeNode>(nodes());
 		nodesToRemove.removeAll(remainingNodes);
 		removeEdges(edgesToRemove);
 		removeNodes(nodesToRemove);
 	}
 
+	/**
+	 * Returns the best sequences in this history, found by a best-first search, so the work done
+	 * is proportional to <code>numSequences</code> rather than to the number of sequences.
+	 * 
+	 * @param numSequences
+	 *            The maximum number of sequences to return.
+	 * @param maxRepetitionsInSequence
+	 *            The maximum number of times a single node may appear in a sequence.
+	 * @param scorer
+	 *            Scores the sequences; higher is better.
+	 * @return The best sequences, best first.
+	 */
 	public Iterable<EdgeSequence> getTopEdgeSequences(int numSequences,
 			int maxRepetitionsInSequence,
-			Comparator<EdgeSequence> comparer) {
-		PriorityQueue<EdgeSequence> top = new PriorityQueue<EdgeSequence>(numSequences + 1,
-				comparer);
-		LinkedList<EdgeNode> seenNodes = new LinkedList<EdgeNode>();
-		seenNodes.add(root);
-		getTopEdgeSequencesHelper(
-				numSequences,
-				maxRepetitionsInSequence,
-				root,
-				top,
-				new LinkedList<Edge>(),
-				seenNodes);
-		return top;
-	}
-
-	private void getTopEdgeSequencesHelper(
-			int numSequences,
-			int maxRepetitionsInSequence,
-			EdgeNode currentNode,
-			PriorityQueue<EdgeSequence> top,
-			LinkedList<Edge> seenEdges,
-			LinkedList<EdgeNode> seenNodes) {
-		Set<Edge> outgoing = getOutgoingEdges(currentNode);
-		if (outgoing.isEmpty()) return;
-		for (Edge e : outgoing) {
-			int numSeen = countInstances(seenNodes, e.getTo());
-			if (numSeen + 1 > maxRepetitionsInSequence) continue;
-			seenEdges.addLast(e);
-			seenNodes.addLast(e.getTo());
-			try {
-				EdgeSequence newSequence = new EdgeSequence(seenEdges, null);
-				top.add(newSequence);
-				if (top.size() > numSequences) {
-					EdgeSequence removed = top.remove();
-					if (removed == newSequence) {
-						continue;
-					}
+			SequenceScorer scorer) {
+		List<EdgeSequence> result = new ArrayList<EdgeSequence>(numSequences);
+		Iterator<EdgeSequence> it = new BestFirstSequenceIterator(
+				-1, maxRepetitionsInSequence, null, scorer, false);
+		while (result.size() < numSequences && it.hasNext()) {
+			result.add(it.next());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the same sequences as {@link #buildMethodSequences(int, int, Set)}, but ordered from
+	 * best to worst. Sequences are found lazily by a best-first search, so taking only the first
+	 * few sequences is cheap even if the history has very many of them.
+	 * 
+	 * @param maxEdgeRepetitions
+	 *            The maximum number of times a single edge may appear in a sequence. Use -1 for
+	 *            unlimited.
+	 * @param maxNodeRepetition
+	 *            The maximum number of times a single node may appear in a sequence. Use -1 for
+	 *            unlimited.
+	 * @param scorer
+	 *            Scores the sequences; higher is better.
+	 * @return The sequences of this history, best first.
+	 */
+	public Iterable<EdgeSequence> buildBestMethodSequences(
+			final int maxEdgeRepetitions,
+			final int maxNodeRepetitions,
+			final Set<AppType> extraTypes,
+			final SequenceScorer scorer) {
+		return new Iterable<EdgeSequence>() {
+			@Override
+			public Iterator<EdgeSequence> iterator() {
+				return new BestFirstSequenceIterator(
+						maxEdgeRepetitions, maxNodeRepetitions, extraTypes, scorer, true);
+			}
+		};
+	}
+
+	/**
+	 * A path from the root, sharing its prefix with the path it extends.
+	 */
+	private static class SequencePath {
+		final SequencePath parent;
+		final Edge edge;
+		// Number of nodes on the path, including the root
+		final int numNodes;
+		final double score;
+
+		SequencePath(SequencePath parent, Edge edge, double score) {
+			this.parent = parent;
+			this.edge = edge;
+			this.numNodes = parent == null ? 2 : parent.numNodes + 1;
+			this.score = score;
+		}
+
+		/**
+		 * @param extraTypes
+		 * @return A new sequence of the edges on this path.
+		 */
+		EdgeSequence toSequence(Set<AppType> extraTypes) {
+			LinkedList<Edge> edges = new LinkedList<Edge>();
+			for (SequencePath p = this; p != null; p = p.parent) {
+				edges.addFirst(p.edge);
+			}
+			return new EdgeSequence(edges, extraTypes);
+		}
+	}
+
+	/**
+	 * Best-first traversal over the method sequences of this history. Since a sequence is never
+	 * better than its prefixes, the best sequence not returned yet is always in the queue.
+	 */
+	private class BestFirstSequenceIterator implements Iterator<EdgeSequence> {
+		private final int maxEdgeRepetitions;
+		private final int maxNodeRepetitions;
+		private final Set<AppType> extraTypes;
+		private final boolean useThresholds;
+		private final SequenceScorer scorer;
+		private final PriorityQueue<SequencePath> queue;
+
+		/**
+		 * @param useThresholds
+		 *            Whether to skip light edges and long sequences, like
+		 *            {@link #buildMethodSequences(int, int, Set)}.
+		 */
+		public BestFirstSequenceIterator(int maxEdgeRepetitions, int maxNodeRepetitions,
+				Set<AppType> extraTypes, SequenceScorer scorer, boolean useThresholds) {
+			this.maxEdgeRepetitions = maxEdgeRepetitions;
+			this.maxNodeRepetitions = maxNodeRepetitions;
+			this.extraTypes = extraTypes;
+			this.useThresholds = useThresholds;
+			this.scorer = scorer;
+			queue = new PriorityQueue<SequencePath>(11, new Comparator<SequencePath>() {
+				@Override
+				public int compare(SequencePath p1, SequencePath p2) {
+					return Double.compare(p2.score, p1.score);
 				}
-				getTopEdgeSequencesHelper(numSequences,
-						maxRepetitionsInSequence,
-						e.getTo(),
-						top,
-						seenEdges,
-						seenNodes);
-			} finally {
-				seenEdges.removeLast();
+			});
+			extend(null, root);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return queue.isEmpty() == false;
+		}
+
+		@Override
+		public EdgeSequence next() {
+			if (hasNext() == false) throw new NoSuchElementException();
+			SequencePath p = queue.poll();
+			extend(p, p.edge.getTo());
+			return p.toSequence(extraTypes);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void extend(SequencePath p, EdgeNode last) {
+			for (Edge e : getOutgoingEdges(last)) {
+				if (useThresholds && e.getWeight() < SEQUENCE_EDGE_THRESHOLD) continue;
+				if (useThresholds && p != null && p.numNodes + 1 > SEQUENCE_LENGTH_THRESHOLD) continue;
+				if (exceedsRepetitions(p, e)) continue;
+				double prefixScore = p == null ? scorer.getEmptyScore() : p.score;
+				queue.add(new SequencePath(p, e, scorer.extend(prefixScore, e)));
 			}
 		}
+
+		private boolean exceedsRepetitions(SequencePath p, Edge e) {
+			// The root is the first node of every path
+			int numNodes = e.getTo() == root ? 2 : 1;
+			int numEdges = 1;
+			for (; p != null; p = p.parent) {
+				if (p.edge == e) numEdges++;
+				if (p.edge.getTo() == e.getTo()) numNodes++;
+			}
+			return (maxEdgeRepetitions > 0 && numEdges > maxEdgeRepetitions) ||
+					(maxNodeRepetitions > 0 && numNodes > maxNodeRepetitions);
+		}
 	}
 
 	private <T> int countInstances(Iterable<? extends T> iterable, T element) {
@@ -1876,7 +2454,7 @@ public class EdgeHistory implements History {
 
 	public EdgeHistory normalize() {
 		EdgeHistory result = clone();
-		for (EdgeNode n : result.nodes) {
+		for (EdgeNode n : result.nodes()) {
 			result.normalize(n);
 		}
 		return result;
@@ -1924,13 +2502,20 @@ public class EdgeHistory implements History {
 
 	@Override
 	public Set<Edge> edges() {
+		loadGraph();
 		return edges;
 	}
 
 	@Override
 	public Set<EdgeNode> nodes() {
+		loadGraph();
 		return nodes;
 	}
+
+	protected Set<EdgeNode> getActive() {
+		loadGraph();
+		return active;
+	}
 	
 	public EdgeNode root() {
 		return root;
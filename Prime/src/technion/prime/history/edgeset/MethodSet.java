@@ -0,0 +1,198 @@
+package technion.prime.history.edgeset;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import technion.prime.dom.AppMethodRef;
+
+/**
+ * An immutable, hash-consed set of methods, as used by edges.
+ *
+ * There is only ever a single instance of every distinct set, obtained via {@link #of(Set)}, so
+ * two method sets are equal iff they are the same object. Comparison with other kinds of sets
+ * falls back to comparing contents.
+ *
+ * Every instance also has a unique integer id, assigned by MethodSetTable. Ids are not
+ * serialized: a method set read from a stream is replaced by the instance with the same contents
+ * in the current process, so identity and ids remain consistent after loading.
+ *
+ * The methods are kept sorted by hash code, so membership is a binary search, and checking
+ * whether one method set contains another is a single merge pass over both.
+ */
+public final class MethodSet extends AbstractSet<AppMethodRef> implements Serializable {
+	private static final long serialVersionUID = -4818736360257209357L;
+
+	private static final Comparator<AppMethodRef> BY_HASH = new Comparator<AppMethodRef>() {
+		@Override
+		public int compare(AppMethodRef m1, AppMethodRef m2) {
+			int h1 = m1.hashCode();
+			int h2 = m2.hashCode();
+			return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+		}
+	};
+
+	// Sorted by hash code
+	private final AppMethodRef[] methods;
+	// Hash codes of the methods, in the same order
+	private final transient int[] hashes;
+	private final int hash;
+	private transient int id;
+
+	/**
+	 * Only to be called by MethodSetTable.
+	 *
+	 * @param methods The methods, without duplicates. The array is sorted in place.
+	 * @param id
+	 */
+	MethodSet(AppMethodRef[] methods, int id) {
+		Arrays.sort(methods, BY_HASH);
+		this.methods = methods;
+		this.id = id;
+		hashes = new int[methods.length];
+		int h = 0;
+		for (int i = 0; i < methods.length; i++) {
+			hashes[i] = methods[i].hashCode();
+			h += hashes[i];
+		}
+		hash = h;
+	}
+
+	/**
+	 * @param methods
+	 * @return The single method set with the same contents as <code>methods</code>.
+	 */
+	public static MethodSet of(Set<AppMethodRef> methods) {
+		if (methods instanceof MethodSet) return (MethodSet) methods;
+		return MethodSetTable.intern(methods);
+	}
+
+	/**
+	 * @param m
+	 * @return The single method set containing only <code>m</code>.
+	 */
+	public static MethodSet of(AppMethodRef m) {
+		return MethodSetTable.intern(Collections.singleton(m));
+	}
+
+	/**
+	 * @param s1
+	 * @param s2
+	 * @return The single method set containing all the methods of both sets.
+	 */
+	public static MethodSet union(Set<AppMethodRef> s1, Set<AppMethodRef> s2) {
+		if (s1 == s2 || s1.containsAll(s2)) return of(s1);
+		if (s2.containsAll(s1)) return of(s2);
+		Set<AppMethodRef> result = new HashSet<AppMethodRef>(s1);
+		result.addAll(s2);
+		return MethodSetTable.intern(result);
+	}
+
+	/**
+	 * @return The id of this set in MethodSetTable.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (o == null) return false;
+		int h = o.hashCode();
+		for (int i = firstWithHash(h, 0); i < methods.length && hashes[i] == h; i++) {
+			if (methods[i].equals(o)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		if (c == this) return true;
+		if (c instanceof MethodSet == false) return super.containsAll(c);
+		MethodSet other = (MethodSet) c;
+		if (other.methods.length > methods.length) return false;
+		int start = 0;
+		for (int j = 0; j < other.methods.length; j++) {
+			int h = other.hashes[j];
+			start = firstWithHash(h, start);
+			boolean found = false;
+			for (int i = start; i < methods.length && hashes[i] == h; i++) {
+				if (methods[i].equals(other.methods[j])) {
+					found = true;
+					break;
+				}
+			}
+			if (found == false) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param h
+	 * @param from
+	 * @return The first position, starting from <code>from</code>, whose hash code is at least
+	 * <code>h</code>.
+	 */
+	private int firstWithHash(int h, int from) {
+		int low = from;
+		int high = methods.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (hashes[mid] < h) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	@Override
+	public Iterator<AppMethodRef> iterator() {
+		return new Iterator<AppMethodRef>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < methods.length;
+			}
+
+			@Override
+			public AppMethodRef next() {
+				if (next >= methods.length) throw new NoSuchElementException();
+				return methods[next++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return methods.length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) return true;
+		if (o instanceof MethodSet) return false;
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	private Object readResolve() throws ObjectStreamException {
+		return MethodSetTable.intern(new HashSet<AppMethodRef>(Arrays.asList(methods)));
+	}
+}
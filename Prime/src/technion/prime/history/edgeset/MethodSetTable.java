@@ -0,0 +1,77 @@
+package technion.prime.history.edgeset;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import technion.prime.dom.AppMethodRef;
+
+/**
+ * A process-wide intern table for edge method sets. Every distinct set of methods is represented
+ * by a single MethodSet instance as long as it is in use; sets which are no longer referenced are
+ * dropped from the table by the garbage collector, so the table only grows with the number of
+ * live sets. Every set also gets a unique integer id, which is never reused.
+ *
+ * Ids are only meaningful inside the current process; they must not be serialized.
+ * Thread-safe.
+ */
+public class MethodSetTable {
+	// Striped to reduce contention; a set always goes to the stripe of its hash code
+	private static final int NUM_STRIPES = 16;
+	private static final Stripe[] stripes = new Stripe[NUM_STRIPES];
+	static {
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private MethodSetTable() {}
+
+	private static class Stripe {
+		final Map<Set<AppMethodRef>, WeakReference<MethodSet>> sets =
+				new WeakHashMap<Set<AppMethodRef>, WeakReference<MethodSet>>();
+	}
+
+	/**
+	 * @param methods A set of methods. It is copied, so later changes to it do not affect the
+	 * table.
+	 * @return The single MethodSet with the same contents.
+	 */
+	static MethodSet intern(Set<AppMethodRef> methods) {
+		Map<Set<AppMethodRef>, WeakReference<MethodSet>> stripe =
+				stripes[(methods.hashCode() & 0x7fffffff) % NUM_STRIPES].sets;
+		synchronized (stripe) {
+			WeakReference<MethodSet> ref = stripe.get(methods);
+			MethodSet result = ref == null ? null : ref.get();
+			if (result != null) return result;
+			result = new MethodSet(methods.toArray(new AppMethodRef[methods.size()]),
+					nextId.getAndIncrement());
+			stripe.put(result, new WeakReference<MethodSet>(result));
+			return result;
+		}
+	}
+
+	/**
+	 * @param methods A set of methods.
+	 * @return The id of the set.
+	 */
+	public static int getId(Set<AppMethodRef> methods) {
+		return MethodSet.of(methods).getId();
+	}
+
+	/**
+	 * @return The number of distinct method sets currently in the table.
+	 */
+	public static int size() {
+		int result = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe.sets) {
+				result += stripe.sets.size();
+			}
+		}
+		return result;
+	}
+}
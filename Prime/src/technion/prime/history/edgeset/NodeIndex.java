@@ -0,0 +1,163 @@
+package technion.prime.history.edgeset;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import technion.prime.dom.AppMethodRef;
+import technion.prime.history.FutureMatcher;
+import technion.prime.history.Matcher;
+
+/**
+ * Indexes the nodes of an EdgeHistory by their matching signatures, so that finding a matching
+ * node does not require comparing against every node in the history.
+ *
+ * Lookups only return candidates; callers must still verify a candidate with the actual matcher.
+ *
+ * Nodes are indexed lazily: the history marks nodes whose edges have changed as dirty, and they
+ * are re-indexed before the next lookup.
+ * Not thread-safe.
+ */
+class NodeIndex {
+	private final EdgeHistory h;
+	private final Matcher matcher;
+
+	private final Set<EdgeNode> dirty = new HashSet<EdgeNode>();
+
+	// Signature index, for the matcher in use
+	private final Map<Object, Set<EdgeNode>> bySignature = new HashMap<Object, Set<EdgeNode>>();
+	private final Map<EdgeNode, Object> signatures = new HashMap<EdgeNode, Object>();
+
+	// Future index, for FutureMatcher
+	private final Map<AppMethodRef, Set<EdgeNode>> byFutureMethod =
+			new HashMap<AppMethodRef, Set<EdgeNode>>();
+	private final Map<EdgeNode, Set<AppMethodRef>> futures =
+			new HashMap<EdgeNode, Set<AppMethodRef>>();
+	private final Set<EdgeNode> withoutFuture = new HashSet<EdgeNode>();
+
+	/**
+	 * @param h The indexed history. All its nodes are initially considered dirty.
+	 * @param matcher The matcher whose signatures are used for indexing.
+	 */
+	public NodeIndex(EdgeHistory h, Matcher matcher) {
+		this.h = h;
+		this.matcher = matcher;
+		dirty.addAll(h.nodes());
+	}
+
+	/**
+	 * @return The matcher this index was built for.
+	 */
+	public Matcher getMatcher() {
+		return matcher;
+	}
+
+	/**
+	 * Mark a node as requiring re-indexing, because it was added or removed, or because its
+	 * incoming or outgoing edges have changed.
+	 * @param n
+	 */
+	public void markDirty(EdgeNode n) {
+		dirty.add(n);
+	}
+
+	/**
+	 * @param n A node in <code>other</code>.
+	 * @param other A history, not necessarily the indexed one.
+	 * @return All the nodes in the indexed history that have the same signature as <code>n</code>,
+	 * or null if the matcher does not support signatures.
+	 */
+	public Set<EdgeNode> getMatchingCandidates(EdgeNode n, EdgeHistory other) {
+		Object signature = matcher.getSignature(new EdgeSetNode(other, n));
+		if (signature == null) return null;
+		flush();
+		return nonNull(bySignature.get(signature));
+	}
+
+	/**
+	 * @param n A node in <code>other</code>.
+	 * @param other A history, not necessarily the indexed one.
+	 * @return All the nodes in the indexed history that may future-match <code>n</code>.
+	 */
+	public Set<EdgeNode> getFutureMatchingCandidates(EdgeNode n, EdgeHistory other) {
+		Set<AppMethodRef> future = FutureMatcher.getFutureMethods(new EdgeSetNode(other, n));
+		flush();
+		if (future.isEmpty()) return withoutFuture;
+		Set<EdgeNode> result = new HashSet<EdgeNode>();
+		for (AppMethodRef m : future) {
+			if (m.isUnknown()) continue;
+			result.addAll(nonNull(byFutureMethod.get(m)));
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Set<EdgeNode> nonNull(Set<EdgeNode> nodes) {
+		return nodes != null ? nodes : Collections.EMPTY_SET;
+	}
+
+	/**
+	 * Re-index all the dirty nodes.
+	 */
+	private void flush() {
+		if (dirty.isEmpty()) return;
+		Set<EdgeNode> nodes = h.nodes();
+		for (EdgeNode n : dirty) {
+			unindex(n);
+			if (nodes.contains(n)) index(n);
+		}
+		dirty.clear();
+	}
+
+	private void index(EdgeNode n) {
+		EdgeSetNode node = new EdgeSetNode(h, n);
+
+		Object signature = matcher.getSignature(node);
+		if (signature != null) {
+			signatures.put(n, signature);
+			getOrCreate(bySignature, signature).add(n);
+		}
+
+		Set<AppMethodRef> future = FutureMatcher.getFutureMethods(node);
+		if (future.isEmpty()) {
+			withoutFuture.add(n);
+		} else {
+			futures.put(n, future);
+			for (AppMethodRef m : future) {
+				getOrCreate(byFutureMethod, m).add(n);
+			}
+		}
+	}
+
+	private void unindex(EdgeNode n) {
+		Object signature = signatures.remove(n);
+		if (signature != null) remove(bySignature, signature, n);
+
+		withoutFuture.remove(n);
+		Set<AppMethodRef> future = futures.remove(n);
+		if (future != null) {
+			for (AppMethodRef m : future) {
+				remove(byFutureMethod, m, n);
+			}
+		}
+	}
+
+	private static <K> Set<EdgeNode> getOrCreate(Map<K, Set<EdgeNode>> map, K key) {
+		Set<EdgeNode> result = map.get(key);
+		if (result == null) {
+			result = new HashSet<EdgeNode>();
+			map.put(key, result);
+		}
+		return result;
+	}
+
+	private static <K> void remove(Map<K, Set<EdgeNode>> map, K key, EdgeNode n) {
+		Set<EdgeNode> set = map.get(key);
+		if (set == null) return;
+		set.remove(n);
+		if (set.isEmpty()) map.remove(key);
+	}
+
+}
@@ -0,0 +1,323 @@
+package technion.prime.history.edgeset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import technion.prime.dom.AppMethodRef;
+import technion.prime.history.Ordering;
+
+/**
+ * Reachability information for a single version of an EdgeHistory.
+ *
+ * The graph is condensed into its strongly connected components, which are then processed in
+ * reverse topological order, so that every edge is only visited a constant number of times.
+ * For every component we keep the set of method sets appearing on edges reachable from it, as
+ * a bitset over the method sets of the history. The set of components reachable from every
+ * component is computed the same way, on first use.
+ *
+ * Must not be used after the history is modified; EdgeHistory takes care of that.
+ */
+class ReachabilityIndex {
+	private final int version;
+	private final Map<EdgeNode, Integer> componentOf = new HashMap<EdgeNode, Integer>();
+	private int numComponents = 0;
+	// Indexed by component
+	private List<List<EdgeNode>> members;
+	private final List<MethodSet> methodSets = new ArrayList<MethodSet>();
+	private final Map<MethodSet, Integer> methodSetIndices = new HashMap<MethodSet, Integer>();
+	// Methods of the orderings, by id. Ids are local to this index, so that they do not outlive
+	// the history.
+	private final List<AppMethodRef> methods = new ArrayList<AppMethodRef>();
+	private final Map<AppMethodRef, Integer> methodIds = new HashMap<AppMethodRef, Integer>();
+	// Indexed by component
+	private BitSet[] reachableMethodSets;
+	// Indexed by component. Whether the component has an edge inside it, i.e. its nodes can
+	// reach themselves.
+	private boolean[] cyclic;
+	// Indexed by component. Includes the component itself.
+	private BitSet[] reachableComponents;
+
+	private long[] orderingIds;
+	private Set<Ordering> orderings;
+
+	/**
+	 * @param h
+	 * @param version The version of <code>h</code> this index is built for.
+	 */
+	public ReachabilityIndex(EdgeHistory h, int version) {
+		this.version = version;
+		findComponents(h);
+		calculateReachableMethodSets(h);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	private static class Frame {
+		final EdgeNode n;
+		final Iterator<Edge> out;
+
+		Frame(EdgeNode n, Iterator<Edge> out) {
+			this.n = n;
+			this.out = out;
+		}
+	}
+
+	/**
+	 * Tarjan's algorithm, with an explicit stack. Components are numbered in the order they are
+	 * completed, so every component only reaches components with smaller or equal numbers.
+	 */
+	private void findComponents(EdgeHistory h) {
+		Map<EdgeNode, Integer> index = new HashMap<EdgeNode, Integer>();
+		Map<EdgeNode, Integer> lowlink = new HashMap<EdgeNode, Integer>();
+		LinkedList<EdgeNode> stack = new LinkedList<EdgeNode>();
+		Set<EdgeNode> onStack = new HashSet<EdgeNode>();
+		LinkedList<Frame> frames = new LinkedList<Frame>();
+		int next = 0;
+		for (EdgeNode start : h.nodes()) {
+			if (index.containsKey(start)) continue;
+			index.put(start, next);
+			lowlink.put(start, next++);
+			stack.push(start);
+			onStack.add(start);
+			frames.push(new Frame(start, h.getOutgoingEdges(start).iterator()));
+			while (frames.isEmpty() == false) {
+				Frame f = frames.peek();
+				if (f.out.hasNext()) {
+					EdgeNode w = f.out.next().getTo();
+					if (index.containsKey(w) == false) {
+						index.put(w, next);
+						lowlink.put(w, next++);
+						stack.push(w);
+						onStack.add(w);
+						frames.push(new Frame(w, h.getOutgoingEdges(w).iterator()));
+					} else if (onStack.contains(w)) {
+						lowlink.put(f.n, Math.min(lowlink.get(f.n), index.get(w)));
+					}
+				} else {
+					frames.pop();
+					if (lowlink.get(f.n).equals(index.get(f.n))) {
+						EdgeNode w;
+						do {
+							w = stack.pop();
+							onStack.remove(w);
+							componentOf.put(w, numComponents);
+						} while (w != f.n);
+						numComponents++;
+					}
+					if (frames.isEmpty() == false) {
+						EdgeNode parent = frames.peek().n;
+						lowlink.put(parent, Math.min(lowlink.get(parent), lowlink.get(f.n)));
+					}
+				}
+			}
+		}
+	}
+
+	private void calculateReachableMethodSets(EdgeHistory h) {
+		members = new ArrayList<List<EdgeNode>>(numComponents);
+		for (int c = 0; c < numComponents; c++) {
+			members.add(new ArrayList<EdgeNode>(1));
+		}
+		for (Map.Entry<EdgeNode, Integer> e : componentOf.entrySet()) {
+			members.get(e.getValue()).add(e.getKey());
+		}
+		reachableMethodSets = new BitSet[numComponents];
+		cyclic = new boolean[numComponents];
+		for (int c = 0; c < numComponents; c++) {
+			BitSet b = new BitSet();
+			for (EdgeNode n : members.get(c)) {
+				for (Edge e : h.getOutgoingEdges(n)) {
+					b.set(getMethodSetIndex(e));
+					int target = componentOf.get(e.getTo());
+					if (target != c) b.or(reachableMethodSets[target]);
+					else cyclic[c] = true;
+				}
+			}
+			reachableMethodSets[c] = b;
+		}
+	}
+
+	private BitSet[] getReachableComponents(EdgeHistory h) {
+		if (reachableComponents != null) return reachableComponents;
+		BitSet[] result = new BitSet[numComponents];
+		for (int c = 0; c < numComponents; c++) {
+			result[c] = new BitSet(c + 1);
+			result[c].set(c);
+		}
+		// Components only reach components with smaller numbers, which are already complete
+		// when they are needed
+		for (int c = 0; c < numComponents; c++) {
+			for (EdgeNode n : members.get(c)) {
+				for (Edge e : h.getOutgoingEdges(n)) {
+					int target = componentOf.get(e.getTo());
+					if (target != c) result[c].or(result[target]);
+				}
+			}
+		}
+		reachableComponents = result;
+		return reachableComponents;
+	}
+
+	/**
+	 * @param h
+	 * @param from
+	 * @param to
+	 * @return True if there is a path of at least one edge from <code>from</code> to
+	 * <code>to</code>.
+	 */
+	public boolean reaches(EdgeHistory h, EdgeNode from, EdgeNode to) {
+		Integer fromComponent = componentOf.get(from);
+		Integer toComponent = componentOf.get(to);
+		if (fromComponent == null || toComponent == null) return false;
+		if (fromComponent.equals(toComponent)) return cyclic[fromComponent];
+		return getReachableComponents(h)[fromComponent].get(toComponent);
+	}
+
+	/**
+	 * @param h
+	 * @param start
+	 * @return All the edges on paths starting at <code>start</code>.
+	 */
+	public Set<Edge> edgesReachableFrom(EdgeHistory h, EdgeNode start) {
+		Set<Edge> result = new HashSet<Edge>();
+		Integer startComponent = componentOf.get(start);
+		if (startComponent == null) return result;
+		BitSet reachable = getReachableComponents(h)[startComponent];
+		for (Edge e : h.edges()) {
+			if (reachable.get(componentOf.get(e.getFrom()))) result.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @param h
+	 * @param start
+	 * @return All the nodes at the end of paths of at least one edge starting at
+	 * <code>start</code>.
+	 */
+	public Set<EdgeNode> nodesReachableFrom(EdgeHistory h, EdgeNode start) {
+		Set<EdgeNode> result = new HashSet<EdgeNode>();
+		Integer startComponent = componentOf.get(start);
+		if (startComponent == null) return result;
+		BitSet reachable = getReachableComponents(h)[startComponent];
+		for (Map.Entry<EdgeNode, Integer> e : componentOf.entrySet()) {
+			if (reachable.get(e.getValue())) result.add(e.getKey());
+		}
+		if (cyclic[startComponent] == false) result.remove(start);
+		return result;
+	}
+
+	/**
+	 * @param h
+	 * @param end
+	 * @return All the edges on paths ending at <code>end</code>.
+	 */
+	public Set<Edge> edgesReachableTo(EdgeHistory h, EdgeNode end) {
+		Set<Edge> result = new HashSet<Edge>();
+		Integer endComponent = componentOf.get(end);
+		if (endComponent == null) return result;
+		BitSet[] reachable = getReachableComponents(h);
+		for (Edge e : h.edges()) {
+			if (reachable[componentOf.get(e.getTo())].get(endComponent)) result.add(e);
+		}
+		return result;
+	}
+
+	private int getMethodSetIndex(Edge e) {
+		MethodSet ms = MethodSet.of(e.getMethods());
+		Integer result = methodSetIndices.get(ms);
+		if (result == null) {
+			result = methodSets.size();
+			methodSets.add(ms);
+			methodSetIndices.put(ms, result);
+		}
+		return result;
+	}
+
+	private int getMethodId(AppMethodRef m) {
+		Integer result = methodIds.get(m);
+		if (result == null) {
+			result = methods.size();
+			methods.add(m);
+			methodIds.put(m, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param id A method id from {@link #getOrderingIds(EdgeHistory)}.
+	 * @return The method with that id.
+	 */
+	public AppMethodRef getMethod(int id) {
+		return methods.get(id);
+	}
+
+	/**
+	 * @return All the orderings in the history, as a sorted array of distinct method id pairs.
+	 * Each pair <code>(m1, m2)</code> is packed as <code>(id(m1) &lt;&lt; 32) | id(m2)</code>,
+	 * where ids are local to this index, see {@link #getMethod(int)}. Must not be modified.
+	 */
+	public long[] getOrderingIds(EdgeHistory h) {
+		if (orderingIds != null) return orderingIds;
+		// For every method set, all the method sets that may follow it
+		BitSet[] followers = new BitSet[methodSets.size()];
+		for (Edge e : h.edges()) {
+			int s = getMethodSetIndex(e);
+			if (followers[s] == null) followers[s] = new BitSet();
+			followers[s].or(reachableMethodSets[componentOf.get(e.getTo())]);
+		}
+		int[][] setMethodIds = new int[methodSets.size()][];
+		for (int s = 0; s < methodSets.size(); s++) {
+			setMethodIds[s] = new int[methodSets.get(s).size()];
+			int i = 0;
+			for (AppMethodRef m : methodSets.get(s)) {
+				setMethodIds[s][i++] = getMethodId(m);
+			}
+		}
+		long[] result = new long[16];
+		int size = 0;
+		for (int s = 0; s < followers.length; s++) {
+			if (followers[s] == null) continue;
+			for (int t = followers[s].nextSetBit(0); t >= 0; t = followers[s].nextSetBit(t + 1)) {
+				for (int m1 : setMethodIds[s]) {
+					for (int m2 : setMethodIds[t]) {
+						if (size == result.length) result = Arrays.copyOf(result, size * 2);
+						result[size++] = ((long) m1 << 32) | m2;
+					}
+				}
+			}
+		}
+		Arrays.sort(result, 0, size);
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (distinct == 0 || result[i] != result[distinct - 1]) result[distinct++] = result[i];
+		}
+		orderingIds = Arrays.copyOf(result, distinct);
+		return orderingIds;
+	}
+
+	/**
+	 * @return All the orderings in the history. Unmodifiable.
+	 */
+	public Set<Ordering> getOrderings(EdgeHistory h) {
+		if (orderings != null) return orderings;
+		long[] ids = getOrderingIds(h);
+		Set<Ordering> result = new HashSet<Ordering>(ids.length * 2);
+		for (long pair : ids) {
+			result.add(new Ordering(getMethod((int) (pair >>> 32)), getMethod((int) pair)));
+		}
+		orderings = Collections.unmodifiableSet(result);
+		return orderings;
+	}
+}
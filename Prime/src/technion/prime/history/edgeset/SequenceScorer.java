@@ -0,0 +1,20 @@
+package technion.prime.history.edgeset;
+
+/**
+ * Scores edge sequences one edge at a time, so that a search over the sequences of a history
+ * can score a sequence from the score of its prefix without building it.
+ */
+public interface SequenceScorer {
+	/**
+	 * @return The score of the empty sequence.
+	 */
+	double getEmptyScore();
+
+	/**
+	 * @param prefixScore The score of a sequence.
+	 * @param e The edge following that sequence.
+	 * @return The score of the sequence extended by <code>e</code>. Must not be higher than
+	 * <code>prefixScore</code>; for example, the product of normalized weights.
+	 */
+	double extend(double prefixScore, Edge e);
+}
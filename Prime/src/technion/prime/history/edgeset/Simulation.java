@@ -0,0 +1,271 @@
+package technion.prime.history.edgeset;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides whether one history includes another, ignoring weights.
+ *
+ * Starting from some node of the including history and the root of the included history, every
+ * edge q -> q' of the included history is matched with the first edge p -> p' of the including
+ * history whose methods contain all the methods of the first edge, and the search goes on from
+ * p' and q'. Each node of the including history may only be matched with a single node of the
+ * included history.
+ *
+ * Any such matching is a simulation, so the greatest simulation relation is found first: it is
+ * cheap to compute, and only nodes which simulate the root of the included history can start a
+ * matching. It is found by starting from all pairs which match locally and repeatedly removing
+ * pairs which are no longer supported by their successors. Only the predecessors of a node whose
+ * candidates shrank are rechecked, and the check stops as soon as the root of the included
+ * history has no candidates left.
+ *
+ * A compact history is read directly from its compact graph, so checking it does not expand it.
+ */
+class Simulation {
+	private final EdgeHistory including;
+	private final EdgeHistory included;
+
+	// Outgoing edges of the including history, by node index
+	private int[][] includingTargets;
+	private MethodSet[][] includingMethods;
+	// Outgoing edges of the included history, by node index
+	private int[][] includedTargets;
+	private MethodSet[][] includedMethods;
+	// Predecessors in the included history, by node index
+	private int[][] includedSources;
+	// For every node of the included history, the nodes of the including history which may
+	// simulate it
+	private BitSet[] candidates;
+
+	private final Map<Long, Boolean> containsCache = new HashMap<Long, Boolean>();
+
+	private Simulation(EdgeHistory including, EdgeHistory included) {
+		this.including = including;
+		this.included = included;
+	}
+
+	/**
+	 * @param including
+	 * @param included
+	 * @return True if the paths of <code>included</code> can be matched with paths starting
+	 * at some node of <code>including</code>.
+	 */
+	public static boolean includes(EdgeHistory including, EdgeHistory included) {
+		return new Simulation(including, included).run();
+	}
+
+	private boolean run() {
+		int numIncluding = getNumNodes(including);
+		includingTargets = new int[numIncluding][];
+		includingMethods = new MethodSet[numIncluding][];
+		fillEdges(including, includingTargets, includingMethods);
+		int numIncluded = getNumNodes(included);
+		includedTargets = new int[numIncluded][];
+		includedMethods = new MethodSet[numIncluded][];
+		int root = fillEdges(included, includedTargets, includedMethods);
+		fillSources();
+
+		if (simulate(root) == false) return false;
+		BitSet starts = candidates[root];
+		for (int p = starts.nextSetBit(0); p >= 0; p = starts.nextSetBit(p + 1)) {
+			int[] mapping = new int[numIncluding];
+			Arrays.fill(mapping, -1);
+			if (matchFrom(mapping, p, root)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find the greatest simulation relation.
+	 * @param root Index of the root of the included history.
+	 * @return False if nothing simulates the root.
+	 */
+	private boolean simulate(int root) {
+		int numIncluding = includingTargets.length;
+		int numIncluded = includedTargets.length;
+		candidates = new BitSet[numIncluded];
+		for (int q = 0; q < numIncluded; q++) {
+			candidates[q] = new BitSet(numIncluding);
+			for (int p = 0; p < numIncluding; p++) {
+				if (matchesLocally(q, p)) candidates[q].set(p);
+			}
+			if (q == root && candidates[q].isEmpty()) return false;
+		}
+
+		LinkedList<Integer> worklist = new LinkedList<Integer>();
+		boolean[] queued = new boolean[numIncluded];
+		for (int q = 0; q < numIncluded; q++) {
+			worklist.add(q);
+			queued[q] = true;
+		}
+		while (worklist.isEmpty() == false) {
+			int q = worklist.removeFirst();
+			queued[q] = false;
+			boolean changed = false;
+			BitSet c = candidates[q];
+			for (int p = c.nextSetBit(0); p >= 0; p = c.nextSetBit(p + 1)) {
+				if (matches(q, p) == false) {
+					c.clear(p);
+					changed = true;
+				}
+			}
+			if (changed == false) continue;
+			if (q == root && c.isEmpty()) return false;
+			for (int source : includedSources[q]) {
+				if (queued[source]) continue;
+				worklist.add(source);
+				queued[source] = true;
+			}
+		}
+		return candidates[root].isEmpty() == false;
+	}
+
+	/**
+	 * Match the paths starting at <code>q</code> with paths starting at <code>p</code>.
+	 * @param mapping For every node of the including history, the node of the included history
+	 * it is matched with, or -1. Updated with the new matches.
+	 * @param p
+	 * @param q
+	 * @return False if some path could not be matched.
+	 */
+	private boolean matchFrom(int[] mapping, int p, int q) {
+		mapping[p] = q;
+		for (int i = 0; i < includedTargets[q].length; i++) {
+			int match = -1;
+			for (int j = 0; j < includingTargets[p].length; j++) {
+				if (containsAll(includingMethods[p][j], includedMethods[q][i])) {
+					match = j;
+					break;
+				}
+			}
+			if (match < 0) return false;
+			int p2 = includingTargets[p][match];
+			int q2 = includedTargets[q][i];
+			if (mapping[p2] >= 0) {
+				if (mapping[p2] == q2) continue;
+				return false;
+			}
+			// A successful matching is a simulation, so this one is bound to fail
+			if (candidates[q2].get(p2) == false) return false;
+			if (matchFrom(mapping, p2, q2) == false) return false;
+		}
+		return true;
+	}
+
+	private static CompactGraph getCompactGraph(EdgeHistory h) {
+		if (h instanceof CompactEdgeHistory == false) return null;
+		return ((CompactEdgeHistory) h).getCompactGraph();
+	}
+
+	private static int getNumNodes(EdgeHistory h) {
+		CompactGraph g = getCompactGraph(h);
+		return g == null ? h.getNumNodes() : g.nodes.length;
+	}
+
+	/**
+	 * Number the nodes of a history and collect their outgoing edges.
+	 * @param h
+	 * @param targets Filled with the targets of the outgoing edges, by node number.
+	 * @param methods Filled with the methods of the outgoing edges, by node number.
+	 * @return The number of the root.
+	 */
+	private static int fillEdges(EdgeHistory h, int[][] targets, MethodSet[][] methods) {
+		CompactGraph g = getCompactGraph(h);
+		if (g != null) {
+			for (int n = 0; n < g.nodes.length; n++) {
+				int from = g.outOffsets[n];
+				int to = g.outOffsets[n + 1];
+				targets[n] = Arrays.copyOfRange(g.targets, from, to);
+				methods[n] = Arrays.copyOfRange(g.methodSets, from, to);
+			}
+			return 0;
+		}
+		Map<EdgeNode, Integer> index = new HashMap<EdgeNode, Integer>();
+		for (EdgeNode n : h.nodes()) {
+			index.put(n, index.size());
+		}
+		for (Map.Entry<EdgeNode, Integer> entry : index.entrySet()) {
+			int n = entry.getValue();
+			Set<Edge> outgoing = h.getOutgoingEdges(entry.getKey());
+			targets[n] = new int[outgoing.size()];
+			methods[n] = new MethodSet[outgoing.size()];
+			int i = 0;
+			for (Edge e : outgoing) {
+				targets[n][i] = index.get(e.getTo());
+				methods[n][i] = MethodSet.of(e.getMethods());
+				i++;
+			}
+		}
+		return index.get(h.getRoot());
+	}
+
+	private void fillSources() {
+		int[] numSources = new int[includedTargets.length];
+		for (int[] targets : includedTargets) {
+			for (int t : targets) numSources[t]++;
+		}
+		includedSources = new int[includedTargets.length][];
+		for (int n = 0; n < includedTargets.length; n++) {
+			includedSources[n] = new int[numSources[n]];
+			numSources[n] = 0;
+		}
+		for (int n = 0; n < includedTargets.length; n++) {
+			for (int t : includedTargets[n]) {
+				includedSources[t][numSources[t]++] = n;
+			}
+		}
+	}
+
+	/**
+	 * @return True if every edge leaving <code>q</code> has an edge leaving <code>p</code>
+	 * which contains its methods, regardless of where the edges lead.
+	 */
+	private boolean matchesLocally(int q, int p) {
+		for (MethodSet m2 : includedMethods[q]) {
+			boolean found = false;
+			for (MethodSet m1 : includingMethods[p]) {
+				if (containsAll(m1, m2)) {
+					found = true;
+					break;
+				}
+			}
+			if (found == false) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if every edge leaving <code>q</code> has an edge leaving <code>p</code>
+	 * which contains its methods and leads to a candidate for its target.
+	 */
+	private boolean matches(int q, int p) {
+		for (int i = 0; i < includedTargets[q].length; i++) {
+			BitSet targetCandidates = candidates[includedTargets[q][i]];
+			boolean found = false;
+			for (int j = 0; j < includingTargets[p].length; j++) {
+				if (targetCandidates.get(includingTargets[p][j]) &&
+						containsAll(includingMethods[p][j], includedMethods[q][i])) {
+					found = true;
+					break;
+				}
+			}
+			if (found == false) return false;
+		}
+		return true;
+	}
+
+	private boolean containsAll(MethodSet m1, MethodSet m2) {
+		if (m1 == m2) return true;
+		Long key = ((long) m1.getId() << 32) | m2.getId();
+		Boolean result = containsCache.get(key);
+		if (result == null) {
+			result = m1.containsAll(m2);
+			containsCache.put(key, result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,63 @@
+package technion.prime.history.edgeset;
+
+/**
+ * A view of an EdgeHistory which ignores weights when compared to other histories or hashed.
+ *
+ * The view borrows the graph of the viewed history, without copying it or sharing it, so the
+ * viewed history keeps modifying its graph in place; the view follows these changes. Modifying
+ * the view detaches it: the graph is copied at that point, and from then on the view is an
+ * independent history which still ignores weights. The edges themselves keep their weights.
+ */
+class WeightlessEdgeHistory extends EdgeHistory {
+	private static final long serialVersionUID = 7719262345834985131L;
+
+	// Null once detached
+	private transient EdgeHistory viewed;
+	// Version of the viewed graph when it was last borrowed
+	private transient int viewedVersion;
+
+	public WeightlessEdgeHistory(EdgeHistory viewed) {
+		super(viewed, true);
+		this.viewed = viewed;
+		viewedVersion = viewed.getGraphVersion();
+	}
+
+	@Override
+	protected void loadGraph() {
+		if (viewed == null) return;
+		if (ownsGraph()) {
+			// This view was modified, and now has a graph of its own
+			viewed = null;
+			return;
+		}
+		if (sharesGraphWith(viewed) == false || viewedVersion != viewed.getGraphVersion()) {
+			borrowGraphFrom(viewed);
+			viewedVersion = viewed.getGraphVersion();
+		}
+	}
+
+	@Override
+	protected boolean ignoresWeights() {
+		return true;
+	}
+
+	@Override
+	public long getFingerprint(boolean includeWeights) {
+		loadGraph();
+		if (viewed != null) return viewed.getFingerprint(false);
+		return super.getFingerprint(false);
+	}
+
+	@Override
+	public int contentHash() {
+		long f = getFingerprint(false);
+		return (int) (f ^ (f >>> 32));
+	}
+
+	@Override
+	public WeightlessEdgeHistory clone() {
+		WeightlessEdgeHistory h = (WeightlessEdgeHistory) super.clone();
+		h.viewed = null;
+		return h;
+	}
+}
@@ -6,12 +6,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -46,6 +44,7 @@ import technion.prime.history.edgeset.EdgeHistoryBuilder.UnknownType;
 import technion.prime.history.edgeset.EdgeHistoryCollection;
 import technion.prime.history.edgeset.EdgeNode;
 import technion.prime.history.edgeset.EdgeSequence;
+import technion.prime.history.edgeset.SequenceScorer;
 import technion.prime.utils.ConcurrencyUtils;
 import technion.prime.utils.JavaFileUtils;
 import technion.prime.utils.Logger;
@@ -285,17 +284,25 @@ public class Search {
 	@SuppressWarnings("unchecked")
 	HistoryCollection extractTopSequences(History query, History h, int numSequences) throws InterruptedException, CanceledException {
 		EdgeHistory eh = (EdgeHistory)h;
-		Comparator<EdgeSequence> comparer = new Comparator<EdgeSequence>() {
+		// Scores like calculateSequenceScore(), one edge at a time
+		SequenceScorer scorer = new SequenceScorer() {
 			@Override
-			public int compare(EdgeSequence s1, EdgeSequence s2) {
-				return Double.compare(calculateSequenceScore(s1), calculateSequenceScore(s2));
+			public double getEmptyScore() {
+				return 1;
+			}
+
+			@Override
+			public double extend(double prefixScore, Edge e) {
+				return prefixScore * e.getWeight();
 			}
 		};
+		// Weights are normalized, so a sequence never scores higher than its prefixes
 		eh = eh.normalize();
-		PriorityQueue<EdgeSequence> top = new PriorityQueue<EdgeSequence>(numSequences, comparer);
+		List<EdgeSequence> top = new ArrayList<EdgeSequence>(numSequences);
 		
 		int sequenceCounter = 1;
-		for (EdgeSequence s : eh.buildMethodSequences(-1, 1, null)) {
+		for (EdgeSequence s : eh.buildBestMethodSequences(-1, 1, null, scorer)) {
+			if (top.size() >= numSequences) break;
 			ConcurrencyUtils.checkState();
 			sequenceCounter++;
 			if (sequenceCounter % 10000 == 0) {
@@ -305,7 +312,6 @@ public class Search {
 				continue;
 			}
 			top.add(s);
-			if (top.size() > numSequences) top.remove();
 		}
 		HistoryCollection result = options.newHistoryCollection();
 		for (EdgeSequence s : top) {
@@ -33,6 +33,11 @@ public class AnalysisDetails extends FieldHolder {
 	public static Field FAILED_DOWNLOADS = new Field("failed downloads", Integer.class);
 	public static Field METHODS_SUCCEEDED = new Field("methods succeeded", Integer.class);
 	public static Field TOTAL_METHODS = new Field("total methods", Integer.class);
+	public static Field ANALYSIS_CACHE_HITS = new Field("analysis cache hits", Integer.class);
+	public static Field ANALYSIS_CACHE_MISSES = new Field("analysis cache misses", Integer.class);
+	public static Field METHODS_OVER_FLOW_BUDGET = new Field("methods over flow budget", Integer.class);
+	public static Field METHOD_SUMMARY_HITS = new Field("method summary hits", Integer.class);
+	public static Field HISTORY_SPILLS = new Field("history spills", Integer.class);
 	public static Field INTERRUPTED_DOWNLOADS = new Field("interrupted downloads", Integer.class);
 	public static Field DUPLICATE_FILES = new Field("duplicate files", Integer.class);
 	public static Field LOADED_CLASSES = new Field("loaded classes", Integer.class);
@@ -231,7 +236,18 @@ public class AnalysisDetails extends FieldHolder {
 		sb.append("\n");
 		sb.append("Out of " + getField(TOTAL_METHODS) + " methods encountered,");
 		sb.append("\n");
-		sb.append("  " + getField(METHODS_SUCCEEDED) + " were successfully analyzed.");
+		sb.append("  " + getField(METHODS_SUCCEEDED) + " were successfully analyzed;");
+		sb.append("\n");
+		sb.append("  " + getField(METHODS_OVER_FLOW_BUDGET)
+				+ " used up their flow step budget, and were only partially iterated.");
+		sb.append("\n");
+		sb.append("Analysis cache: " + getField(ANALYSIS_CACHE_HITS) + " hits, "
+				+ getField(ANALYSIS_CACHE_MISSES) + " misses.");
+		sb.append("\n");
+		sb.append("Called methods were taken from their summaries "
+				+ getField(METHOD_SUMMARY_HITS) + " times.");
+		sb.append("\n");
+		sb.append("Histories were spilled to disk " + getField(HISTORY_SPILLS) + " times.");
 		sb.append("\n");
 		sb.append("Total process time: "
 				+ Logger.formattedDuration((Long) getField(PROCESS_DURATION)));
@@ -328,4 +344,4 @@ public class AnalysisDetails extends FieldHolder {
 		SampleWriter.writeHierarchyFile(samples,folder, filename);
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -50,5 +50,14 @@ class FieldHolder {
 		setField(field, ((Integer)getField(field)) + 1); 
 	}
 
+	public synchronized void addToField(Field field, int amount) {
+		// Currently only implemented for integers
+		if (field.getType() != Integer.class) {
+			throw new IllegalArgumentException(String.format("field \"%s\" of type %s cannot be added to",
+					field.getTitle(), field.getType().toString()));
+		}
+		setField(field, ((Integer)getField(field)) + amount);
+	}
+
 	
 }
@@ -1,16 +1,20 @@
 package technion.prime.utils;
 
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.LinkedList;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 
@@ -21,86 +25,244 @@ import technion.prime.Options;
 import technion.prime.utils.Logger.CanceledException;
 
 
+/**
+ * All tasks run on a single process-wide pool of worker threads, whose size is
+ * {@link Options#getParallelOperationsThreadCount()}. Per-task timeouts are enforced by a single
+ * scheduler thread, which interrupts a task once its time is up; in addition, the task's deadline
+ * is checked by {@link #checkState()}, so long-running code which calls it stops even if it
+ * swallowed the interrupt.
+ *
+ * With {@link Options#useLightweightTaskThreads()}, the pool is several times larger and the
+ * CPU-heavy parts of the tasks are bracketed by {@link #enterCpuBound()} and
+ * {@link #leaveCpuBound()}, so that tasks blocked on other things do not hold up the processors.
+ * Blocking work done from inside such a section, e.g. loading the body of a callee, is bracketed
+ * by {@link #suspendCpuBound()} and {@link #resumeCpuBound()}, which give up the processor in the
+ * meantime. This applies to {@link #callInParallel} and {@link #callSequentially} alike, since
+ * both run their tasks on the shared workers. Time spent waiting for the processor does not count
+ * towards the timeout of a task.
+ */
 public class ConcurrencyUtils {
-	private static class CustomThreadFactory implements ThreadFactory {
+	private static class WorkerThreadFactory implements ThreadFactory {
 		private final String basename;
-		private int counter;
-		private volatile boolean canceled;
-		private LinkedList<Thread> threads = new LinkedList<Thread>();
-		
-		public CustomThreadFactory(String basename) {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		public WorkerThreadFactory(String basename) {
 			this.basename = basename;
 		}
-		
+
 		@Override
 		public Thread newThread(Runnable r) {
-			if (isCanceled()) return null;
-			Thread t = new Thread(r, getNextName());
-			t.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-				@Override
-				public void uncaughtException(Thread t, Throwable e) {
-					if (e instanceof CanceledException) setCanceled();
-				}
-			});
-			threads.add(t);
+			Thread t = new Thread(r, basename + "-" + counter.getAndIncrement());
+			t.setDaemon(true);
 			return t;
 		}
-
-		private String getNextName() {
-			return basename + "-" + counter++;
-		}
-		
-		public void interruptAllCreatedThreads() {
-			for (Thread t : threads) t.interrupt();
-		}
-		
-		private synchronized void setCanceled() {
-			canceled = true;
-		}
-		
-		public synchronized boolean isCanceled() {
-			return canceled;
-		}
 	}
-	
+
 	private static ConcurrencyUtils instance;
 	public static ConcurrencyUtils getInstance() {
 		return instance;
 	}
 	public static void setInstance(Options options) {
 		instance = new ConcurrencyUtils(options);
+		cpuBound = options.useLightweightTaskThreads() ?
+				new Semaphore(Math.max(options.getCpuBoundTaskLimit(), 1), true) :
+				null;
+		if (workers != null) resizeWorkers(getWorkerCount());
 	}
 
+	// Number of threads per CPU-bound task in lightweight mode
+	private static final int LIGHTWEIGHT_THREADS_PER_CPU_BOUND_TASK = 8;
+
+	// The task the current thread is running, null if it is not one of the shared workers
+	private static final ThreadLocal<DeadlineTask<?>> currentTask =
+			new ThreadLocal<DeadlineTask<?>>();
+	// The CPU-bound sections of the current thread, null if there are none
+	private static final ThreadLocal<CpuBoundSections> cpuBoundSections =
+			new ThreadLocal<CpuBoundSections>();
+	// Null when not in lightweight mode
+	private static volatile Semaphore cpuBound;
+	private static ThreadPoolExecutor workers;
+	private static ScheduledExecutorService timeouts;
+
 	private final Options options;
-	
+
+	/**
+	 * The CPU-bound sections a thread is in. The thread holds a permit while it is in at least
+	 * one section and not suspended.
+	 */
+	private static class CpuBoundSections {
+		// How many times the thread has entered a section without leaving it
+		int depth;
+		// How many times the thread has suspended its sections without resuming them
+		int suspended;
+		// The semaphore the permit was taken from, so that it is returned to the same one even if
+		// the options change in the meantime. Null while not holding a permit.
+		Semaphore held;
+
+		void release() {
+			if (held == null) return;
+			held.release();
+			held = null;
+		}
+	}
+
 	public ConcurrencyUtils(Options options) {
 		this.options = options;
 	}
 
+	private static int getWorkerCount() {
+		if (instance == null) return Runtime.getRuntime().availableProcessors();
+		Options options = getInstance().options;
+		int result = options.useLightweightTaskThreads() ?
+				options.getCpuBoundTaskLimit() * LIGHTWEIGHT_THREADS_PER_CPU_BOUND_TASK :
+				options.getParallelOperationsThreadCount();
+		return Math.max(result, 1);
+	}
+
+	private static synchronized ThreadPoolExecutor getWorkers() {
+		if (workers == null) {
+			int count = getWorkerCount();
+			workers = new ThreadPoolExecutor(count, count, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("prime-worker"));
+			workers.allowCoreThreadTimeOut(true);
+			timeouts = Executors.newSingleThreadScheduledExecutor(
+					new WorkerThreadFactory("prime-timeouts"));
+		}
+		return workers;
+	}
+
+	private static synchronized void resizeWorkers(int count) {
+		if (count > workers.getMaximumPoolSize()) {
+			workers.setMaximumPoolSize(count);
+			workers.setCorePoolSize(count);
+		} else {
+			workers.setCorePoolSize(count);
+			workers.setMaximumPoolSize(count);
+		}
+	}
+
+	/**
+	 * @return True if the current thread is one of the shared workers. Tasks started from a worker
+	 * are run directly, since waiting for other workers from a worker could deadlock the pool.
+	 */
+	private static boolean onWorkerThread() {
+		return currentTask.get() != null;
+	}
+
+	/**
+	 * A task running on the shared workers, which is interrupted once it has run for longer than
+	 * its timeout. Time spent waiting for a CPU-bound permit does not count.
+	 */
+	private static class DeadlineTask<T> extends FutureTask<T> {
+		private final long timeout;
+		private volatile ScheduledFuture<?> timer;
+		// True while the timer is stopped by pause()
+		private boolean paused;
+		// The task this one was run from, if any
+		private DeadlineTask<?> outer;
+		// When the timeout of this task passes
+		private long ownDeadline = Long.MAX_VALUE;
+		// When this task or any of its outer tasks times out
+		private long deadline = Long.MAX_VALUE;
+
+		public DeadlineTask(Callable<T> c, long timeout) {
+			super(c);
+			this.timeout = timeout;
+		}
+
+		@Override
+		public void run() {
+			if (isDone()) return;
+			// Tasks run directly from another task may not outlive it
+			outer = currentTask.get();
+			if (timeout >= 0) ownDeadline = System.currentTimeMillis() + timeout;
+			deadline = outer == null ? ownDeadline : Math.min(ownDeadline, outer.deadline);
+			currentTask.set(this);
+			if (timeout >= 0) schedule(timeout);
+			try {
+				super.run();
+			} finally {
+				if (timer != null) timer.cancel(false);
+				if (outer == null) {
+					currentTask.remove();
+					// Do not let a late interrupt leak into the next task of this thread
+					Thread.interrupted();
+				} else {
+					currentTask.set(outer);
+				}
+			}
+		}
+
+		private void schedule(long delay) {
+			timer = timeouts.schedule(new Runnable() {
+				@Override
+				public void run() {
+					cancel(true);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Stop the timers of this task and its outer tasks. Must be called from the thread
+		 * running the task, and followed by {@link #resume(long)}.
+		 */
+		void pause() {
+			for (DeadlineTask<?> t = this; t != null; t = t.outer) {
+				// If the timer has already fired, the task is canceled anyway
+				t.paused = t.timer != null && t.timer.cancel(false);
+			}
+		}
+
+		/**
+		 * Restart the timers stopped by {@link #pause()}, moving the deadlines later.
+		 * @param delay How long the timers were stopped, in milliseconds.
+		 */
+		void resume(long delay) {
+			for (DeadlineTask<?> t = this; t != null; t = t.outer) {
+				if (t.ownDeadline != Long.MAX_VALUE) t.ownDeadline += delay;
+				if (t.deadline != Long.MAX_VALUE) t.deadline += delay;
+				if (t.paused) {
+					t.paused = false;
+					t.schedule(Math.max(t.ownDeadline - System.currentTimeMillis(), 0));
+				}
+			}
+		}
+	}
+
+	private static <T> DeadlineTask<T> submit(Callable<T> c, long timeout) {
+		DeadlineTask<T> task = new DeadlineTask<T>(c, timeout);
+		if (onWorkerThread()) {
+			task.run();
+		} else {
+			getWorkers().execute(task);
+		}
+		return task;
+	}
+
+	private static <T> LinkedList<Callable<T>> toCallables(Iterable<? extends Runnable> rs) {
+		LinkedList<Callable<T>> result = new LinkedList<Callable<T>>();
+		for (Runnable r : rs) result.add(Executors.<T>callable(r, null));
+		return result;
+	}
+
 	/**
 	 * Run all the runnables one after the other, though the order between them is not guaranteed.
 	 * If the timeout duration is reached for a runnable, its execution will stop and the next one
 	 * will begin.
 	 * @param rs
 	 * @param timeoutForEach
-	 * @throws CanceledException 
+	 * @throws CanceledException
 	 */
 	public static void runSequentially(String name, Iterable<? extends Runnable> rs, long timeoutForEach) throws CanceledException {
-		CustomThreadFactory factory = new CustomThreadFactory(name);
-		ExecutorService e = Executors.newSingleThreadExecutor(factory);
-		LinkedList<Future<?>> fs = new LinkedList<Future<?>>();
-		for (Runnable r : rs) {
-			fs.addLast(e.submit(r));
-		}
-		for (Future<?> f : fs) {
+		for (Callable<Object> c : ConcurrencyUtils.<Object>toCallables(rs)) {
+			DeadlineTask<Object> task = submit(c, timeoutForEach);
 			try {
-				f.get(timeoutForEach, TimeUnit.MILLISECONDS);
+				task.get();
 				checkState();
-			} catch (TimeoutException ex) {
-				f.cancel(true);
-				factory.interruptAllCreatedThreads();
+			} catch (CancellationException ex) {
+				// Timed out
 			} catch (InterruptedException ex) {
-				factory.interruptAllCreatedThreads();
+				task.cancel(true);
 				return;
 			} catch (ExecutionException ex) {
 				if (ex.getCause() instanceof CanceledException) {
@@ -110,9 +272,8 @@ public class ConcurrencyUtils {
 				// Swallow
 			}
 		}
-		e.shutdown();
 	}
-	
+
 	/**
 	 * Run all the callables one after the other, though the order between them is not guaranteed.
 	 * If the timeout duration is reached for a callable, its execution will stop and the next one
@@ -122,20 +283,14 @@ public class ConcurrencyUtils {
 	 * @param timeoutForEach
 	 * @return The results of all the callables that were succesfully ran. Since some can fail,
 	 * it is not guaranteed to be of the same length as the given callable iterable.
-	 * @throws CanceledException 
+	 * @throws CanceledException
 	 */
 	public static <T> LinkedList<T> callSequentially(String name, Iterable<? extends Callable<T>> cs, long timeoutForEach) throws CanceledException {
-		CustomThreadFactory factory = new CustomThreadFactory(name);
-		ExecutorService e = Executors.newSingleThreadExecutor(factory);
-		LinkedList<Future<T>> fs = new LinkedList<Future<T>>();
-		for (Callable<T> c : cs) {
-			fs.addLast(e.submit(c));
-		}
 		LinkedList<T> result = new LinkedList<T>();
-		for (Future<T> f : fs) {
+		for (Callable<T> c : cs) {
+			DeadlineTask<T> task = submit(c, timeoutForEach);
 			try {
-				T t = f.get(timeoutForEach, TimeUnit.MILLISECONDS);
-				//T t = f.get();
+				T t = task.get();
 				if (t != null) result.add(t);
 				checkState();
 			} catch (InterruptedException e1) {
@@ -147,115 +302,166 @@ public class ConcurrencyUtils {
 				}
 				Logger.exception(e1);
 				// Swallow
-			} catch (TimeoutException e1) {
-				f.cancel(true);
+			} catch (CancellationException e1) {
 				Logger.log("timed out");
 			} catch (OutOfMemoryError oom) {
-				f.cancel(true);
 				Logger.log("OOM-ed");
 				System.gc();
-				//------- was out before --- factory.interruptAllCreatedThreads();
 			}
 			finally
 			{
-				f.cancel(true);
+				task.cancel(true);
 			}
 		}
-		e.shutdownNow();
 		return result;
 	}
-	
+
 	public static void runInParallel(String name, Iterable<? extends Runnable> rs, final long taskTimeout, long totalTimeout) {
-		CustomThreadFactory taskFactory = new CustomThreadFactory(name);
-		CustomThreadFactory timeoutFactory = new CustomThreadFactory("timeout");
-		ExecutorService taskExecutor = Executors.newFixedThreadPool(getInstance().options.getParallelOperationsThreadCount(), taskFactory);
-		final ExecutorService timeoutExecutor = Executors.newFixedThreadPool(getInstance().options.getParallelOperationsThreadCount(), timeoutFactory);
-		for (final Runnable r : rs) {
-			taskExecutor.execute(new Runnable() {
-				@Override
-				public void run() {
-					runWithTimeout(r, taskTimeout, timeoutExecutor);
-				}
-			});
-		}
-		taskExecutor.shutdown();
 		try {
-			taskExecutor.awaitTermination(totalTimeout, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException ex) {
-			taskFactory.setCanceled();
-			taskFactory.interruptAllCreatedThreads();
+			callInParallel(name, ConcurrencyUtils.<Object>toCallables(rs), taskTimeout, totalTimeout);
+		} catch (CanceledException e) {
+			// Swallow, the remaining tasks were already canceled
 		}
-		taskExecutor.shutdownNow();
-		timeoutExecutor.shutdownNow();
 	}
-	
+
+	/**
+	 * Run all the callables on the shared workers.
+	 * @param <T>
+	 * @param name
+	 * @param cs
+	 * @param taskTimeout Timeout for each callable, from the moment it starts running.
+	 * @param totalTimeout Timeout for all the callables together; those not done by then are
+	 * canceled.
+	 * @return The results of all the callables that were succesfully ran, or null if interrupted.
+	 * @throws CanceledException
+	 */
 	public static <T> LinkedList<T> callInParallel(String name, Iterable<? extends Callable<T>> cs, final long taskTimeout, long totalTimeout) throws CanceledException {
-		CustomThreadFactory taskFactory = new CustomThreadFactory(name);
-		CustomThreadFactory timeoutFactory = new CustomThreadFactory(name + "-timeout");
-		ExecutorService taskExecutor = Executors.newFixedThreadPool(getInstance().options.getParallelOperationsThreadCount(), taskFactory);
-		final ExecutorService timeoutExecutor = Executors.newFixedThreadPool(getInstance().options.getParallelOperationsThreadCount(), timeoutFactory);
-		LinkedList<Future<T>> fs = new LinkedList<Future<T>>();
-		for (final Callable<T> c : cs) {
-			fs.addLast(taskExecutor.submit(new Callable<T>() {
-				@Override
-				public T call() throws Exception {
-					return callWithTimeout(c, taskTimeout, timeoutExecutor);
-				}
-			}));
-		}
-		taskExecutor.shutdown();
-		try {
-			taskExecutor.awaitTermination(totalTimeout, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException ex) {
-			return null;
+		long end = System.currentTimeMillis() + totalTimeout;
+		LinkedList<DeadlineTask<T>> tasks = new LinkedList<DeadlineTask<T>>();
+		for (Callable<T> c : cs) {
+			tasks.addLast(submit(c, taskTimeout));
 		}
-		taskExecutor.shutdownNow();
-		
+
 		LinkedList<T> result = new LinkedList<T>();
-		for (Future<T> f : fs) {
-			try {
-				T t = f.get();
-				if (t != null) result.addLast(t);
-				checkState();
-			} catch (InterruptedException e1) {
-				// Swallow but break out of loop
-				break;
-			} catch (ExecutionException e1) {
-				if (e1.getCause() instanceof CanceledException) {
-					throw (CanceledException)e1.getCause();
+		try {
+			for (DeadlineTask<T> task : tasks) {
+				try {
+					T t = task.get(Math.max(end - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+					if (t != null) result.addLast(t);
+					checkState();
+				} catch (InterruptedException e1) {
+					return null;
+				} catch (ExecutionException e1) {
+					if (e1.getCause() instanceof CanceledException) {
+						throw (CanceledException)e1.getCause();
+					}
+					Logger.exception(e1.getCause());
+					// Swallow
+				} catch (CancellationException e1) {
+					// Timed out
+				} catch (TimeoutException e1) {
+					// The entire operation timed out
+					break;
 				}
-				// Swallow
 			}
+		} finally {
+			for (DeadlineTask<T> task : tasks) task.cancel(true);
 		}
-		
-		timeoutExecutor.shutdown();
-		
+
 		return result;
 	}
-	
-	private static void runWithTimeout(final Runnable r, long timeout, ExecutorService timeoutExecutor) {
-		FutureTask<?> task = new FutureTask<Object>(r, null);
-		timeoutExecutor.execute(task);
-		try {
-			task.get(timeout, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e) {
-			task.cancel(true);
-			return;
-		} catch (ExecutionException e) {
-			Logger.exception(e.getCause());
-			return;
-		} catch (TimeoutException e) {
-			task.cancel(true);
+
+	/**
+	 * Wait until the current thread may do CPU-heavy work. Must be matched by a call to
+	 * {@link #leaveCpuBound()}, normally in a finally block. Sections may be nested; only the
+	 * outermost one waits. Does nothing unless {@link Options#useLightweightTaskThreads()}.
+	 * @throws InterruptedException If interrupted while waiting, in which case the section was
+	 * not entered and {@link #leaveCpuBound()} should not be called.
+	 */
+	public static void enterCpuBound() throws InterruptedException {
+		Semaphore s = cpuBound;
+		CpuBoundSections sections = cpuBoundSections.get();
+		if (sections == null) {
+			if (s == null) return;
+			sections = new CpuBoundSections();
+		}
+		if (sections.depth == 0 && sections.suspended == 0 && s != null) {
+			acquire(s);
+			sections.held = s;
+		}
+		sections.depth++;
+		cpuBoundSections.set(sections);
+	}
+
+	/**
+	 * Leave a section entered by {@link #enterCpuBound()}.
+	 */
+	public static void leaveCpuBound() {
+		CpuBoundSections sections = cpuBoundSections.get();
+		if (sections == null || sections.depth == 0) return;
+		sections.depth--;
+		if (sections.depth > 0) return;
+		sections.release();
+		if (sections.suspended == 0) cpuBoundSections.remove();
+	}
+
+	/**
+	 * Give up the processor while the current thread blocks, e.g. while a method called from a
+	 * CPU-bound section loads a body. Must be matched by a call to {@link #resumeCpuBound()},
+	 * normally in a finally block. Sections entered in the meantime do not wait for a permit.
+	 * Does nothing unless the current thread is in a CPU-bound section.
+	 */
+	public static void suspendCpuBound() {
+		CpuBoundSections sections = cpuBoundSections.get();
+		if (sections == null) return;
+		sections.suspended++;
+		sections.release();
+	}
+
+	/**
+	 * Resume the sections suspended by {@link #suspendCpuBound()}, waiting for a permit again.
+	 * @throws InterruptedException If interrupted while waiting. The sections are still resumed,
+	 * but without a permit.
+	 */
+	public static void resumeCpuBound() throws InterruptedException {
+		CpuBoundSections sections = cpuBoundSections.get();
+		if (sections == null || sections.suspended == 0) return;
+		sections.suspended--;
+		if (sections.suspended > 0) return;
+		if (sections.depth == 0) {
+			cpuBoundSections.remove();
 			return;
 		}
+		Semaphore s = cpuBound;
+		if (s == null) return;
+		acquire(s);
+		sections.held = s;
 	}
-	
-	private static <T> T callWithTimeout(final Callable<T> c, long timeout, ExecutorService timeoutExecutor) throws InterruptedException, ExecutionException, TimeoutException {
-		FutureTask<T> task = new FutureTask<T>(c);
-		timeoutExecutor.execute(task);
-		return task.get(timeout, TimeUnit.MILLISECONDS);
+
+	/**
+	 * Take a permit. The time spent waiting for it is not counted towards the timeout of the
+	 * current task.
+	 * @param s
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private static void acquire(Semaphore s) throws InterruptedException {
+		// Unlike tryAcquire(), respects the fairness of the semaphore
+		if (s.tryAcquire(0, TimeUnit.MILLISECONDS)) return;
+		DeadlineTask<?> task = currentTask.get();
+		if (task != null) task.pause();
+		long start = System.currentTimeMillis();
+		try {
+			s.acquire();
+		} finally {
+			if (task != null) task.resume(System.currentTimeMillis() - start);
+		}
 	}
-	
+
+	/**
+	 * @throws InterruptedException If the current thread was interrupted, or if it is running a
+	 * task whose timeout has passed.
+	 * @throws CanceledException If the user canceled the operation.
+	 */
 	public static void checkState() throws InterruptedException, CanceledException {
 		if (instance != null && getInstance().options.isMonitoredByEclipse()) {
 			IProgressMonitor m = ((EclipseOptions)getInstance().options).getEclipseMonitor();
@@ -266,5 +472,9 @@ public class ConcurrencyUtils {
 		if (Thread.interrupted()) {
 			throw new InterruptedException();
 		}
+		DeadlineTask<?> task = currentTask.get();
+		if (task != null && System.currentTimeMillis() > task.deadline) {
+			throw new InterruptedException();
+		}
 	}
 }
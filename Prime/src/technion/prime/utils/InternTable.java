@@ -0,0 +1,64 @@
+package technion.prime.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense integer ids to items, in the order they are first seen. Items are never removed,
+ * so a table should only be used for as long as its items are relevant.
+ * Thread-safe; looking up an existing item does not lock.
+ *
+ * @param <T> Item type. Must correctly implement hashCode() and equals().
+ */
+public class InternTable<T> implements Serializable {
+	private static final long serialVersionUID = 4470923815036518217L;
+
+	private final ConcurrentHashMap<T, Integer> ids = new ConcurrentHashMap<T, Integer>();
+	// Items by id. Replaced with a larger copy when full.
+	private volatile Object[] items = new Object[16];
+	private int size;
+
+	/**
+	 * @param item
+	 * @return The id of the item, or -1 if it was never interned.
+	 */
+	public int getId(T item) {
+		Integer id = ids.get(item);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param item
+	 * @return The id of the item, which is assigned a new id if it was never interned.
+	 */
+	public int intern(T item) {
+		Integer id = ids.get(item);
+		if (id != null) return id;
+		synchronized (this) {
+			id = ids.get(item);
+			if (id != null) return id;
+			if (size == items.length) items = Arrays.copyOf(items, size * 2);
+			items[size] = item;
+			// Only published once the item is in place, so whoever gets the id can get the item
+			ids.put(item, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * @param id An id returned by {@link #intern(Object)}.
+	 * @return The item with this id.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int id) {
+		return (T) items[id];
+	}
+
+	/**
+	 * @return Number of interned items.
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
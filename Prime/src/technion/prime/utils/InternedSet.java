@@ -0,0 +1,182 @@
+package technion.prime.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of items from an {@link InternTable}, stored as a bitset of their ids.
+ * Operations which change the set return a new set, so a set may be freely shared.
+ *
+ * Sets from different tables may be compared, but this is slower than comparing sets from the
+ * same table, since it is done item by item. The hash code agrees with that of
+ * {@link java.util.Set}.
+ *
+ * @param <T> Item type.
+ */
+public final class InternedSet<T> implements Iterable<T>, Serializable {
+	private static final long serialVersionUID = -2243307683637578161L;
+	private static final long[] NO_WORDS = new long[0];
+
+	private final InternTable<T> table;
+	// Bit i is set iff the item of id i is in the set; no trailing zero words
+	private final long[] words;
+	private final int size;
+	private final int hash;
+
+	private InternedSet(InternTable<T> table, long[] words, int size, int hash) {
+		this.table = table;
+		this.words = words;
+		this.size = size;
+		this.hash = hash;
+	}
+
+	/**
+	 * @param table
+	 * @return An empty set of items from the table.
+	 */
+	public static <T> InternedSet<T> empty(InternTable<T> table) {
+		return new InternedSet<T>(table, NO_WORDS, 0, 0);
+	}
+
+	private boolean hasId(int id) {
+		int word = id >>> 6;
+		return id >= 0 && word < words.length && (words[word] & (1L << id)) != 0;
+	}
+
+	public boolean contains(T item) {
+		return hasId(table.getId(item));
+	}
+
+	/**
+	 * @param other
+	 * @return True iff every item of <code>other</code> is in this set.
+	 */
+	public boolean containsAll(InternedSet<T> other) {
+		if (other.size > size) return false;
+		if (other.table == table) {
+			if (other.words.length > words.length) return false;
+			for (int i = 0; i < other.words.length; i++) {
+				if ((other.words[i] & ~words[i]) != 0) return false;
+			}
+			return true;
+		}
+		for (T item : other) {
+			if (contains(item) == false) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param item
+	 * @return A set with the items of this set and <code>item</code>.
+	 */
+	public InternedSet<T> with(T item) {
+		int id = table.intern(item);
+		if (hasId(id)) return this;
+		long[] newWords = Arrays.copyOf(words, Math.max(words.length, (id >>> 6) + 1));
+		newWords[id >>> 6] |= 1L << id;
+		return new InternedSet<T>(table, newWords, size + 1, hash + item.hashCode());
+	}
+
+	/**
+	 * @param items
+	 * @return A set with the items of this set and <code>items</code>.
+	 */
+	public InternedSet<T> withAll(Iterable<? extends T> items) {
+		InternedSet<T> result = this;
+		for (T item : items) result = result.with(item);
+		return result;
+	}
+
+	/**
+	 * @param item
+	 * @return A set with the items of this set except for <code>item</code>.
+	 */
+	public InternedSet<T> without(T item) {
+		int id = table.getId(item);
+		if (hasId(id) == false) return this;
+		long[] newWords = Arrays.copyOf(words, words.length);
+		newWords[id >>> 6] &= ~(1L << id);
+		int length = newWords.length;
+		while (length > 0 && newWords[length - 1] == 0) length--;
+		if (length < newWords.length) newWords = Arrays.copyOf(newWords, length);
+		return new InternedSet<T>(table, newWords, size - 1, hash - item.hashCode());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			private int next = nextId(0);
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public T next() {
+				if (next < 0) throw new NoSuchElementException();
+				T result = table.get(next);
+				next = nextId(next + 1);
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param from
+	 * @return The smallest id in the set which is at least <code>from</code>, or -1 if there is
+	 * none.
+	 */
+	private int nextId(int from) {
+		int word = from >>> 6;
+		if (word >= words.length) return -1;
+		long bits = words[word] & (-1L << from);
+		while (bits == 0) {
+			if (++word == words.length) return -1;
+			bits = words[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (obj instanceof InternedSet == false) return false;
+		InternedSet<T> other = (InternedSet<T>) obj;
+		if (size != other.size || hash != other.hash) return false;
+		if (table == other.table) return Arrays.equals(words, other.words);
+		return containsAll(other);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (T item : this) {
+			if (sb.length() > 1) sb.append(", ");
+			sb.append(item);
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -2,6 +2,7 @@ package technion.prime.utils;
 
 import java.io.PrintStream;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -35,6 +36,7 @@ public class Logger {
 		private final long startTime;
 		private final int workTotal;
 		private final int eclipseWeightForThisStage;
+		private final Thread owner = Thread.currentThread();
 
 		private long endTime = -1;
 		private int workDone;
@@ -54,6 +56,7 @@ public class Logger {
 		}
 		
 		private void eclipseProgress() {
+			if (workTotal <= 0) return;
 			double workFraction = (double)workDone / workTotal;
 			int whatEclipseShouldShow = (int)(workFraction * eclipseWeightForThisStage);
 			if (whatEclipseShouldShow > workReportedToEclipse) {
@@ -78,6 +81,57 @@ public class Logger {
 		}
 	}
 
+	/**
+	 * A stage which runs at the same time as other stages, for instance in a pipeline. Unlike the
+	 * stages started with {@link Logger#startStage(Stage, int)}, it is not nested in the current
+	 * stage, and it periodically reports its throughput. May be used from several threads.
+	 */
+	public static class ConcurrentStage {
+		private static final long REPORT_INTERVAL = 10000;
+
+		private final ProcessStage stage;
+		private int done;
+		private long lastReport;
+
+		private ConcurrentStage(ProcessStage stage) {
+			this.stage = stage;
+			lastReport = stage.startTime;
+		}
+
+		/**
+		 * Report that another unit of work is done.
+		 * @throws InterruptedException
+		 * @throws CanceledException
+		 */
+		public synchronized void progress() throws InterruptedException, CanceledException {
+			done++;
+			long now = System.currentTimeMillis();
+			if (now - lastReport >= REPORT_INTERVAL) {
+				lastReport = now;
+				getLogger().internalDebug(String.format("%s: %d done, %s",
+						stage.getName(), done, formattedThroughput(now)));
+			}
+			stage.progress();
+		}
+
+		/**
+		 * @param message Summary of what the stage did.
+		 */
+		public synchronized void end(String message) {
+			stage.end();
+			getLogger().internalDebug(String.format("%s stage complete in %s. %s (%s)",
+					stage.getName(),
+					formattedDuration(stage.getDurationMillis()),
+					message,
+					formattedThroughput(stage.endTime)));
+		}
+
+		private String formattedThroughput(long now) {
+			double seconds = Math.max(now - stage.startTime, 1) / 1000.0;
+			return String.format("%.1f per second", done / seconds);
+		}
+	}
+
 	private static final String INDENT = "  ";
 	private static Logger instance;
 	
@@ -102,6 +156,15 @@ public class Logger {
 	public static void endStage(String message) {
 		getLogger().internalEndStage(message);
 	}
+
+	/**
+	 * @param stageType
+	 * @param work Expected units of work, or 0 if unknown.
+	 * @return A new stage running at the same time as the current one.
+	 */
+	public static ConcurrentStage startConcurrentStage(Stage stageType, int work) {
+		return getLogger().internalStartConcurrentStage(stageType, work);
+	}
 	
 	public static void skipStage(Stage stageType, String message) {
 		getLogger().internalSkipStage(stageType, message);
@@ -153,7 +216,7 @@ public class Logger {
 			boolean endOnNewline,
 			boolean addTimestamp,
 			boolean indent) {
-		PrintStream out = problem ? System.err : System.out;
+		PrintStream out = problem ? System.err : OutputHider.getVisibleOut();
 		if (startOnNewline) out.println();
 		if (addTimestamp) out.print(formattedTime() + " | ");
 		if (indent) out.print(getIndent());
@@ -166,7 +229,8 @@ public class Logger {
 	 * @param s
 	 */
 	private void internalLog(String s) {
-		println(System.out, s);
+		// Output hidden from libraries in one thread should not hide what happens in others
+		println(OutputHider.getVisibleOut(), s);
 	}
 	
 	/**
@@ -175,7 +239,7 @@ public class Logger {
 	 * @param s
 	 */
 	private void internalDebug(String s) {
-		if (showDebug) println(System.out, s);
+		if (showDebug) println(OutputHider.getVisibleOut(), s);
 	}
 	
 	/**
@@ -224,18 +288,46 @@ public class Logger {
 	}
 
 	private void internalProgress() throws InterruptedException, CanceledException {
-		if (stages.isEmpty()) return;
-		stages.getLast().progress();
+		ProcessStage s;
+		synchronized (stages) {
+			if (stages.isEmpty()) return;
+			s = getCurrentStage();
+		}
+		s.progress();
+	}
+
+	/**
+	 * Stages may be started from several threads at once, so the current stage is the last one
+	 * started by the current thread. Threads which did not start a stage, such as the workers of
+	 * a parallel operation, work on behalf of the last stage started.
+	 */
+	private ProcessStage getCurrentStage() {
+		for (Iterator<ProcessStage> it = stages.descendingIterator(); it.hasNext(); ) {
+			ProcessStage s = it.next();
+			if (s.owner == Thread.currentThread()) return s;
+		}
+		return stages.getLast();
 	}
 	
 	private void internalStartStage(Stage stageType, int work) {
 		internalDebug("starting " + stageType.getName() + " stage...");
 		if (monitoredByEclipse()) getEclipseMonitor().subTask("Current stage: " + stageType.getName());
-		stages.add(new ProcessStage(stageType, work));
+		synchronized (stages) {
+			stages.add(new ProcessStage(stageType, work));
+		}
+	}
+
+	private ConcurrentStage internalStartConcurrentStage(Stage stageType, int work) {
+		internalDebug("starting " + stageType.getName() + " stage...");
+		return new ConcurrentStage(new ProcessStage(stageType, work));
 	}
 	
 	private void internalEndStage(String message) {
-		ProcessStage s = stages.pop();
+		ProcessStage s;
+		synchronized (stages) {
+			s = getCurrentStage();
+			stages.remove(s);
+		}
 		s.end();
 		long duration = s.getDurationMillis();
 		internalDebug(s.getName() + " stage complete in " + formattedDuration(duration) + ". " + message);
@@ -12,6 +12,8 @@ import java.util.Set;
 /**
  * Maps a single key to a set of values.
  * Not thread-safe. Does not support null values.
+ * Cloning is shallow: value sets are shared with the clone, and are only copied once they are
+ * modified.
  * @author amishne
  *
  * @param <K> Key type. Must correctly implement hashCode().
@@ -21,6 +23,9 @@ public class MultiMap<K extends Serializable, V extends Serializable> implements
 	private static final long serialVersionUID = -6981370535692644211L;
 	
 	private final Map<K, Set<V>> data;
+	// If not null, value sets may be shared with other maps, except for the sets of these keys.
+	// Serialized, since shared sets remain shared when read back from the same stream.
+	private Set<K> ownedKeys;
 	
 	public MultiMap() {
 		data = new HashMap<K, Set<V>>();
@@ -30,6 +35,21 @@ public class MultiMap<K extends Serializable, V extends Serializable> implements
 		return new HashSet<V>();
 	}
 	
+	/**
+	 * @param key
+	 * @return The set of values for the key, safe for modification, or null if the key does not
+	 * exist.
+	 */
+	@SuppressWarnings("unchecked")
+	private Set<V> getOwned(K key) {
+		Set<V> values = data.get(key);
+		if (values == null || ownedKeys == null || ownedKeys.contains(key)) return values;
+		values = (Set<V>) ((HashSet<V>)values).clone();
+		data.put(key, values);
+		ownedKeys.add(key);
+		return values;
+	}
+	
 	/**
 	 * Add a value to the items associated with a key. If the key
 	 * does not yet exist, creates it. If an equal value is
@@ -40,8 +60,13 @@ public class MultiMap<K extends Serializable, V extends Serializable> implements
 	 */
 	public void put(K key, V value) {
 		if (value == null) throw new IllegalArgumentException("cannot use null as value");
-		if (data.containsKey(key) == false) data.put(key, createSet());
-		data.get(key).add(value);
+		Set<V> values = getOwned(key);
+		if (values == null) {
+			values = createSet();
+			data.put(key, values);
+			if (ownedKeys != null) ownedKeys.add(key);
+		}
+		values.add(value);
 	}
 	
 	/**
@@ -75,6 +100,7 @@ public class MultiMap<K extends Serializable, V extends Serializable> implements
 	 */
 	public void clear() {
 		data.clear();
+		ownedKeys = null;
 	}
 	
 	/**
@@ -127,6 +153,7 @@ public class MultiMap<K extends Serializable, V extends Serializable> implements
 	 */
 	public void removeKey(K k) {
 		data.remove(k);
+		if (ownedKeys != null) ownedKeys.remove(k);
 	}
 	
 	/**
@@ -140,16 +167,15 @@ public class MultiMap<K extends Serializable, V extends Serializable> implements
 		Set<V> set = data.get(k);
 		if (set == null) return;
 		if (set.size() == 1) removeKey(k);
-		else set.remove(v);
+		else getOwned(k).remove(v);
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public MultiMap<K, V> clone() {
 		MultiMap<K, V> result = new MultiMap<K, V>();
-		for (Map.Entry<K, Set<V>> e : data.entrySet()) {
-			result.data.put(e.getKey(), (Set<V>) ((HashSet<V>)e.getValue()).clone());
-		}
+		result.data.putAll(data);
+		result.ownedKeys = new HashSet<K>();
+		ownedKeys = new HashSet<K>();
 		return result;
 	}
 
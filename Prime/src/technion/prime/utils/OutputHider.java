@@ -3,19 +3,43 @@ package technion.prime.utils;
 import java.io.OutputStream;
 import java.io.PrintStream;
 
+/**
+ * Hides anything printed to the standard output until released. Hiders may overlap, also in
+ * different threads; the output is only restored once all of them were released.
+ */
 public class OutputHider {
 	private static final PrintStream nullOutputStream = new PrintStream(new OutputStream() {
 		@Override public void write(int b) {}
 	});
 	
-	private final PrintStream s;
+	private static int numHiding;
+	private static PrintStream s;
+	
+	private boolean released;
 	
 	public OutputHider() {
-		s = System.out;
-		System.setOut(nullOutputStream);
+		synchronized (OutputHider.class) {
+			if (numHiding++ == 0) {
+				s = System.out;
+				System.setOut(nullOutputStream);
+			}
+		}
 	}
 	
 	public void release() {
-		System.setOut(s);
+		synchronized (OutputHider.class) {
+			if (released) return;
+			released = true;
+			if (--numHiding == 0) System.setOut(s);
+		}
+	}
+	
+	/**
+	 * @return The standard output as it was before any current hider started hiding it.
+	 */
+	public static PrintStream getVisibleOut() {
+		synchronized (OutputHider.class) {
+			return numHiding == 0 ? System.out : s;
+		}
 	}
 }
@@ -9,6 +9,7 @@ public enum Stage {
 	COMPILING("compiling", 5),
 	LOADING("loading", 1),
 	ANALYZING("analyzing", 10),
+	MERGING("merging", 1),
 	CLUSTERING("clustering", 5),
 	COLLECTING_STATISTICS("collecting statistics", 1);
 	
@@ -0,0 +1,77 @@
+package technion.prime.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps keys to canonical instances, without keeping the instances alive: once an instance is no
+ * longer referenced elsewhere it is collected, and its entry is removed on a later call to
+ * {@link #intern(Object, Object)}. The table therefore only grows with the number of live
+ * instances.
+ * Thread-safe; looking up an existing instance does not lock.
+ *
+ * @param <K> Key type. Must correctly implement hashCode() and equals().
+ * @param <V> Instance type.
+ */
+public class WeakInternTable<K, V> {
+	private static class KeyedReference<K, V> extends WeakReference<V> {
+		final K key;
+
+		KeyedReference(K key, V value, ReferenceQueue<V> queue) {
+			super(value, queue);
+			this.key = key;
+		}
+	}
+
+	private final ConcurrentMap<K, KeyedReference<K, V>> instances =
+			new ConcurrentHashMap<K, KeyedReference<K, V>>();
+	private final ReferenceQueue<V> collected = new ReferenceQueue<V>();
+
+	/**
+	 * @param key
+	 * @return The live instance with that key, or null if there is none.
+	 */
+	public V get(K key) {
+		KeyedReference<K, V> ref = instances.get(key);
+		return ref == null ? null : ref.get();
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return The live instance with that key if there is one, or else <code>value</code>, which
+	 * becomes the instance with that key.
+	 */
+	public V intern(K key, V value) {
+		purge();
+		KeyedReference<K, V> ref = new KeyedReference<K, V>(key, value, collected);
+		while (true) {
+			KeyedReference<K, V> existing = instances.putIfAbsent(key, ref);
+			if (existing == null) return value;
+			V result = existing.get();
+			if (result != null) return result;
+			// The previous instance was collected, but its entry is still here
+			if (instances.replace(key, existing, ref)) return value;
+		}
+	}
+
+	/**
+	 * @return The number of entries in the table, some of which may have been collected already.
+	 */
+	public int size() {
+		purge();
+		return instances.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void purge() {
+		Reference<? extends V> r;
+		while ((r = collected.poll()) != null) {
+			KeyedReference<K, V> ref = (KeyedReference<K, V>) r;
+			instances.remove(ref.key, ref);
+		}
+	}
+}
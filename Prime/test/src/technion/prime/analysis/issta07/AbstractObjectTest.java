@@ -20,6 +20,7 @@ import technion.prime.analysis.Label;
 import technion.prime.dom.AppObject;
 import technion.prime.dom.dummy.DummyAppType;
 import technion.prime.dom.dummy.DummyAppObject;
+import technion.prime.dom.UnknownMethod;
 
 public class AbstractObjectTest {
 	
@@ -32,6 +33,7 @@ public class AbstractObjectTest {
 	private Collection<AbstractObject> objs;
 	private int abstractObjectCount = 0;
 	private Options options;
+	private ObjectTables tables;
 	
 	class AbstractObjectBuilder {
 		Collection<String> must = new LinkedList<String>();
@@ -47,6 +49,7 @@ public class AbstractObjectTest {
 		AbstractObject build(boolean unique, boolean may) {
 			AbstractObject result = new AbstractObject(
 					options,
+					tables,
 					new Label(abstractObjectCount++),
 					temp,
 					false,
@@ -79,6 +82,7 @@ public class AbstractObjectTest {
 	@Before
 	public void setUp() {
 		options = new DefaultOptions();
+		tables = new ObjectTables();
 		objs = new LinkedList<AbstractObject>();
 		for (int combination = 0 ; combination < Math.pow(3, aps.length) ; combination++) {
 			AbstractObjectBuilder b = new AbstractObjectBuilder();
@@ -117,6 +121,19 @@ public class AbstractObjectTest {
 		}
 	}
 	
+	@Test
+	public void testContentHashWithoutHistory() throws InterruptedException, CanceledException {
+		for (AbstractObject obj : objs) {
+			AbstractObject after = obj.clone();
+			after.getHistory().extendWithMethodCall(new UnknownMethod(t, null), 1);
+			after.setHistory(after.getHistory());
+			assertTrue(obj.sameContentWithoutHistory(after));
+			assertTrue(obj.contentHashCodeWithoutHistory() == after.contentHashCodeWithoutHistory());
+			after.setMay(!after.getMay());
+			assertFalse(obj.sameContentWithoutHistory(after));
+		}
+	}
+	
 	@Test
 	public void testAssignmentToNull() throws InterruptedException, CanceledException {
 		AppObject x = createDummyObject("x");
@@ -129,6 +146,17 @@ public class AbstractObjectTest {
 		}
 	}
 	
+	@Test
+	public void testAssignmentWithoutEffect() throws InterruptedException, CanceledException {
+		AppObject x = createDummyObject("x");
+		for (AbstractObject obj : objs) {
+			AbstractObject newObj = obj.assignment(x, null);
+			AbstractObject sameObj = newObj.assignment(x, null);
+			assertTrue(sameObj == newObj);
+			assertTrue(sameObj.mustNotBe(x));
+		}
+	}
+	
 	@Test
 	public void testAssignmentNoFields() throws InterruptedException, CanceledException {
 		AppObject x = createDummyObject("x");
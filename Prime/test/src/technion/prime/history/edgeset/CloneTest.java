@@ -0,0 +1,159 @@
+package technion.prime.history.edgeset;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import technion.prime.DefaultOptions;
+import technion.prime.utils.Logger;
+import technion.prime.utils.Logger.CanceledException;
+
+public class CloneTest {
+	private DefaultOptions options;
+
+	@Before
+	public void setUp() {
+		options = new DefaultOptions() {
+			private static final long serialVersionUID = -2749203655921187214L;
+
+			@Override
+			public boolean useHistoryInvariant() {
+				return true;
+			}
+		};
+		Logger.setup(options, false);
+	}
+
+	private EdgeHistoryBuilder b() {
+		return new EdgeHistoryBuilder(options);
+	}
+
+	private EdgeHistory buildABC() {
+		// a*4 (b*1 | c*3)
+		return b()
+				.withEdge().fromRoot().to("H1").name("a").weight(4).buildEdge()
+				.withEdge().from("H1").to("H2").name("b").weight(1).buildEdge()
+				.withEdge().from("H1").to("H3").name("c").weight(3).buildEdge()
+				.buildHistory();
+	}
+
+	private EdgeHistory buildD() {
+		// d*1
+		return b()
+				.withEdge().fromRoot().to("H1").name("d").weight(1).buildEdge()
+				.buildHistory();
+	}
+
+	@Test
+	public void testModifyClone() throws InterruptedException, CanceledException {
+		EdgeHistory h = buildABC();
+		EdgeHistory clone = h.clone();
+		clone.filterLowWeightEdges(2);
+		assertFalse(buildABC().equalContent(clone));
+		assertTrue(buildABC().equalContent(h));
+	}
+
+	@Test
+	public void testZeroSamplingRateDisablesInvariant() throws InterruptedException,
+			CanceledException {
+		options = new DefaultOptions() {
+			private static final long serialVersionUID = 6619187205530276443L;
+
+			@Override
+			public boolean useHistoryInvariant() {
+				return true;
+			}
+
+			@Override
+			public int getHistoryInvariantSamplingRate() {
+				return 0;
+			}
+		};
+		EdgeHistory h = buildABC();
+		h.joinFrom(buildD());
+		assertFalse(buildABC().equalContent(h));
+	}
+
+	@Test
+	public void testModifyOriginal() throws InterruptedException, CanceledException {
+		EdgeHistory h = buildABC();
+		EdgeHistory clone = h.clone();
+		h.joinFrom(buildD());
+		assertFalse(buildABC().equalContent(h));
+		assertTrue(buildABC().equalContent(clone));
+	}
+
+	@Test
+	public void testModifyCloneOfClone() throws InterruptedException, CanceledException {
+		EdgeHistory h = buildABC();
+		EdgeHistory clone1 = h.clone();
+		EdgeHistory clone2 = clone1.clone();
+		clone1.joinFrom(buildD());
+		clone2.filterLowWeightEdges(2);
+		assertTrue(buildABC().equalContent(h));
+		EdgeHistory expected1 = buildABC();
+		expected1.joinFrom(buildD());
+		assertTrue(expected1.equalContent(clone1));
+		EdgeHistory expected2 = buildABC();
+		expected2.filterLowWeightEdges(2);
+		assertTrue(expected2.equalContent(clone2));
+	}
+
+	@Test
+	public void testModifyAfterSerialization() throws IOException, ClassNotFoundException,
+			InterruptedException, CanceledException {
+		EdgeHistory h = buildABC();
+		EdgeHistory clone = h.clone();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(h);
+		out.writeObject(clone);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		EdgeHistory loaded = (EdgeHistory) in.readObject();
+		EdgeHistory loadedClone = (EdgeHistory) in.readObject();
+		loaded.recursivelySetOptions(options);
+		loadedClone.recursivelySetOptions(options);
+		loadedClone.joinFrom(buildD());
+		assertTrue(buildABC().equalContent(loaded));
+	}
+
+	@Test
+	public void testConcurrentClones() throws InterruptedException, CanceledException {
+		final EdgeHistory h = buildABC();
+		final List<EdgeHistory> clones = Collections.synchronizedList(new ArrayList<EdgeHistory>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						EdgeHistory clone = h.clone();
+						clone.filterLowWeightEdges(2);
+						clones.add(clone);
+					}
+				}
+			});
+		}
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		assertTrue(buildABC().equalContent(h));
+		EdgeHistory expected = buildABC();
+		expected.filterLowWeightEdges(2);
+		for (EdgeHistory clone : clones) {
+			assertTrue(expected.equalContent(clone));
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package technion.prime.history.edgeset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import technion.prime.DefaultOptions;
+import technion.prime.history.History;
+import technion.prime.utils.Logger;
+import technion.prime.utils.Logger.CanceledException;
+
+public class CompactEdgeHistoryTest {
+	private DefaultOptions options;
+
+	@Before
+	public void setUp() {
+		options = new DefaultOptions() {
+			private static final long serialVersionUID = 3871694471893316705L;
+
+			@Override
+			public boolean useHistoryInvariant() {
+				return true;
+			}
+
+			@Override
+			public boolean useCompactHistories() {
+				return true;
+			}
+		};
+		Logger.setup(options, false);
+	}
+
+	private EdgeHistoryBuilder b() {
+		return new EdgeHistoryBuilder(options);
+	}
+
+	private CompactEdgeHistory buildABC() {
+		// a*4 (b*2 | c*3) ?
+		return (CompactEdgeHistory) b()
+				.withEdge().fromRoot().to("H1").name("a").weight(4).buildEdge()
+				.withEdge().from("H1").to("H2").name("b").weight(2).buildEdge()
+				.withEdge().from("H1").to("H3").name("c").weight(3).buildEdge()
+				.withEdge().from("H3").to("H4").buildEdge()
+				.buildHistory();
+	}
+
+	@Test
+	public void testCompactPreservesContent() throws InterruptedException, CanceledException {
+		CompactEdgeHistory expected = buildABC();
+		CompactEdgeHistory h = buildABC();
+		h.compact();
+		assertTrue(h.isCompact());
+		assertTrue(expected.equalContent(h));
+		assertTrue(h.equalContent(expected));
+	}
+
+	@Test
+	public void testCompactQueries() {
+		CompactEdgeHistory expected = buildABC();
+		CompactEdgeHistory h = buildABC();
+		h.compact();
+		assertEquals(expected.getNumNodes(), h.getNumNodes());
+		assertEquals(expected.getNumEdges(), h.getNumEdges());
+		assertEquals(expected.getNumUnknownEdges(), h.getNumUnknownEdges());
+		assertEquals(expected.getMaxDegree(), h.getMaxDegree());
+		assertEquals(expected.getAllParticipatingMethods(), h.getAllParticipatingMethods());
+		assertEquals(expected.getAllParticipatingTypes(), h.getAllParticipatingTypes());
+		assertEquals(expected.getNumParticipatingTypes(), h.getNumParticipatingTypes());
+		assertFalse(h.containsOnlyRoot());
+		assertTrue(h.isCompact());
+	}
+
+	@Test
+	public void testCloneOfCompactIsIndependent() throws InterruptedException, CanceledException {
+		CompactEdgeHistory h = buildABC();
+		h.compact();
+		assertTrue(((CompactEdgeHistory) h.clone()).isCompact());
+		// normalize() works on a clone
+		EdgeHistory normalized = h.normalize();
+		assertTrue(h.isCompact());
+		assertTrue(buildABC().equalContent(h));
+		assertTrue(buildABC().normalize().equalContent(normalized));
+	}
+
+	@Test
+	public void testSerializationOfCompact() throws IOException, ClassNotFoundException,
+			InterruptedException, CanceledException {
+		CompactEdgeHistory h = buildABC();
+		h.compact();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(h);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		History loaded = (History) in.readObject();
+		loaded.recursivelySetOptions(options);
+		assertTrue(((CompactEdgeHistory) loaded).isCompact());
+		assertTrue(buildABC().equalContent(loaded));
+	}
+
+	@Test
+	public void testInclusionOfCompact() throws InterruptedException, CanceledException {
+		CompactEdgeHistory including = buildABC();
+		including.compact();
+		// a b
+		CompactEdgeHistory included = (CompactEdgeHistory) b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.buildHistory();
+		included.compact();
+		assertTrue(including.includes(included));
+		assertFalse(included.includes(including));
+		assertTrue(including.isCompact());
+		assertTrue(included.isCompact());
+	}
+
+	@Test
+	public void testCollectionRecompacts() throws InterruptedException, CanceledException {
+		CompactEdgeHistoryCollection hc = new CompactEdgeHistoryCollection(options);
+		CompactEdgeHistory h = buildABC();
+		hc.addHistory(h);
+		assertTrue(h.isCompact());
+		h.joinFrom(buildABC());
+		assertFalse(h.isCompact());
+		hc.compact();
+		assertTrue(h.isCompact());
+		assertTrue(buildABC().equalContent(h));
+	}
+}
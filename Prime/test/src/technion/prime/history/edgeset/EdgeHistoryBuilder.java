@@ -149,7 +149,7 @@ public class EdgeHistoryBuilder {
 	private final EdgeSequence sequence = new EdgeSequence();
 	
 	public EdgeHistoryBuilder(Options options) {
-		h = new EdgeHistory(options);
+		h = (EdgeHistory)options.newHistory();
 	}
 	
 	public EdgeBuilder withEdge() {
@@ -0,0 +1,126 @@
+package technion.prime.history.edgeset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import technion.prime.DefaultOptions;
+import technion.prime.utils.Logger.CanceledException;
+
+public class FingerprintTest {
+	private DefaultOptions options;
+
+	@Before
+	public void setUp() {
+		options = new DefaultOptions();
+	}
+
+	private EdgeHistoryBuilder b() {
+		return new EdgeHistoryBuilder(options);
+	}
+
+	@Test
+	public void testSameStructure() {
+		// a (b | c)
+		EdgeHistory h1 = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.withEdge().from("H1").to("H3").name("c").buildEdge()
+				.buildHistory();
+		EdgeHistory h2 = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H5").name("c").buildEdge()
+				.withEdge().from("H0").to("H4").name("b").buildEdge()
+				.buildHistory();
+		assertEquals(h1.getFingerprint(true), h2.getFingerprint(true));
+		assertEquals(h1.getFingerprint(true), h1.clone().getFingerprint(true));
+	}
+
+	@Test
+	public void testDifferentStructureSameMethods() throws InterruptedException,
+			CanceledException {
+		// a b c
+		EdgeHistory h1 = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.withEdge().from("H2").to("H3").name("c").buildEdge()
+				.buildHistory();
+		// a c b
+		EdgeHistory h2 = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("c").buildEdge()
+				.withEdge().from("H2").to("H3").name("b").buildEdge()
+				.buildHistory();
+		assertFalse(h1.getFingerprint(true) == h2.getFingerprint(true));
+		assertFalse(h1.equalContent(h2));
+	}
+
+	@Test
+	public void testWeights() throws InterruptedException, CanceledException {
+		EdgeHistory h1 = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(1).buildEdge()
+				.buildHistory();
+		EdgeHistory h2 = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(2).buildEdge()
+				.buildHistory();
+		assertFalse(h1.getFingerprint(true) == h2.getFingerprint(true));
+		assertEquals(h1.getFingerprint(false), h2.getFingerprint(false));
+		assertTrue(h1.cloneWeightless().equalContent(h2.cloneWeightless()));
+	}
+
+	@Test
+	public void testModificationInvalidates() throws InterruptedException, CanceledException {
+		EdgeHistory h1 = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(1).buildEdge()
+				.buildHistory();
+		long before = h1.getFingerprint(true);
+		h1.joinFrom(b()
+				.withEdge().fromRoot().to("H1").name("b").weight(1).buildEdge()
+				.buildHistory());
+		assertFalse(before == h1.getFingerprint(true));
+	}
+
+	@Test
+	public void testWeightlessView() throws InterruptedException, CanceledException {
+		EdgeHistory h = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(1).buildEdge()
+				.buildHistory();
+		EdgeHistory view = (EdgeHistory) h.cloneWeightless();
+		assertTrue(view.edges() == h.edges());
+		assertEquals(h.getFingerprint(false), view.getFingerprint(true));
+		// The view does not take a share, so h is still modified in place
+		assertTrue(h.ownsGraph());
+
+		// The view follows changes to the viewed history
+		h.joinFrom(b()
+				.withEdge().fromRoot().to("H1").name("b").weight(1).buildEdge()
+				.buildHistory());
+		assertEquals(h.getNumEdges(), view.getNumEdges());
+		assertEquals(h.getFingerprint(false), view.getFingerprint(true));
+		assertTrue(view.edges() == h.edges());
+
+		// Changing the view does not change the viewed history
+		int numEdges = h.getNumEdges();
+		view.joinFrom(b()
+				.withEdge().fromRoot().to("H1").name("c").weight(1).buildEdge()
+				.buildHistory());
+		assertEquals(numEdges, h.getNumEdges());
+		assertFalse(h.getFingerprint(false) == view.getFingerprint(true));
+	}
+
+	@Test
+	public void testWeightlessViewEqualsWeighted() throws InterruptedException, CanceledException {
+		EdgeHistory h1 = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(1).buildEdge()
+				.buildHistory();
+		EdgeHistory h2 = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(2).buildEdge()
+				.buildHistory();
+		assertTrue(h1.cloneWeightless().equalContent(h2));
+		assertTrue(h2.equalContent(h1.cloneWeightless()));
+		assertFalse(h1.equalContent(h2));
+	}
+}
@@ -0,0 +1,141 @@
+package technion.prime.history.edgeset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import technion.prime.DefaultOptions;
+import technion.prime.history.History;
+import technion.prime.history.HistoryCollection;
+import technion.prime.history.HistorySpiller;
+import technion.prime.history.HistoryTestUtils;
+import technion.prime.utils.Logger;
+import technion.prime.utils.Logger.CanceledException;
+
+public class HistorySpillerTest {
+	private DefaultOptions options;
+	private File folder;
+	private long budget;
+
+	@Before
+	public void setUp() {
+		folder = new File(System.getProperty("java.io.tmpdir"), "prime-spiller-test");
+		budget = Long.MAX_VALUE;
+		options = new DefaultOptions() {
+			private static final long serialVersionUID = 2915580911573413625L;
+
+			@Override
+			public long getHistoryMemoryBudget() {
+				return budget;
+			}
+		};
+		Logger.setup(options, false);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(folder);
+	}
+
+	private EdgeHistoryBuilder b() {
+		return new EdgeHistoryBuilder(options);
+	}
+
+	private History ab(double weight) {
+		return b()
+				.withEdge().fromRoot().to("H1").name("a").weight(weight).buildEdge()
+				.withEdge().from("H1").to("H2").name("b").weight(weight).buildEdge()
+				.buildHistory();
+	}
+
+	private History ac(double weight) {
+		return b()
+				.withEdge().fromRoot().to("H1").name("a").weight(weight).buildEdge()
+				.withEdge().from("H1").to("H2").name("c").weight(weight).buildEdge()
+				.buildHistory();
+	}
+
+	private HistorySpiller spiller() {
+		return new HistorySpiller(options, new File(folder, "test").getPath());
+	}
+
+	private void add(HistorySpiller spiller, HistoryCollection hc, History... histories)
+			throws InterruptedException, CanceledException {
+		HistoryCollection added = options.newHistoryCollection();
+		for (History h : histories) added.addHistory(h);
+		hc.unionFrom(added);
+		spiller.spillIfNeeded(hc, added);
+	}
+
+	@Test
+	public void testNoSpill() throws InterruptedException, CanceledException {
+		HistorySpiller spiller = spiller();
+		HistoryCollection hc = options.newHistoryCollection();
+		add(spiller, hc, ab(1), ab(1));
+		assertFalse(spiller.hasSpilled());
+		assertEquals(2, hc.getNumHistories());
+		assertSame(hc, spiller.finish(hc));
+	}
+
+	@Test
+	public void testFootprintOfAddedHistories() throws InterruptedException, CanceledException {
+		HistorySpiller spiller = spiller();
+		HistoryCollection one = options.newHistoryCollection();
+		one.addHistory(ab(1));
+		budget = HistorySpiller.estimateFootprint(one) * 3 / 2;
+		HistoryCollection hc = options.newHistoryCollection();
+		add(spiller, hc, ab(1));
+		assertFalse(spiller.hasSpilled());
+		add(spiller, hc, ac(1));
+		assertTrue(spiller.hasSpilled());
+		assertTrue(hc.isEmpty());
+		// Counting starts over after a spill
+		add(spiller, hc, ab(1));
+		assertEquals(1, hc.getNumHistories());
+	}
+
+	@Test
+	public void testSpillAndMerge() throws InterruptedException, CanceledException {
+		HistorySpiller spiller = spiller();
+		budget = 0;
+		HistoryCollection hc = options.newHistoryCollection();
+		add(spiller, hc, ab(1), ac(1));
+		assertTrue(spiller.hasSpilled());
+		assertTrue(hc.isEmpty());
+		add(spiller, hc, ab(2));
+		budget = Long.MAX_VALUE;
+		add(spiller, hc, ac(1));
+		assertEquals(1, hc.getNumHistories());
+
+		HistoryCollection result = spiller.finish(hc);
+		assertFalse(spiller.hasSpilled());
+		assertEquals(0, folder.list().length);
+		for (History h : result.getHistories()) assertFalse(h.isFromClustering());
+		HistoryTestUtils.assertEqualContentHistories(result, ab(3), ac(2));
+	}
+
+	@Test
+	public void testMergeKeepsSources() throws InterruptedException, CanceledException {
+		HistorySpiller spiller = spiller();
+		budget = 0;
+		HistoryCollection hc = options.newHistoryCollection();
+		// A clone has the history it was cloned from as its source
+		add(spiller, hc, ab(1).clone());
+		add(spiller, hc, ab(2).clone());
+		assertTrue(spiller.hasSpilled());
+
+		HistoryCollection result = spiller.finish(hc);
+		assertEquals(1, result.getNumHistories());
+		History merged = result.getHistories().iterator().next();
+		// Only the history merged into it is dropped from its sources
+		assertEquals(1, merged.getSources().size());
+	}
+}
@@ -203,4 +203,94 @@ public class InclusionNoUnknownTest {
 		assertTrue(including.includesWithUnknown(included));
 	}
 	
+	@Test
+	public void testIncludes1() {
+		// a < ab
+		EdgeHistory including = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("b").buildEdge()
+				.buildHistory();
+		EdgeHistory included = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.buildHistory();
+		assertTrue(including.includes(included));
+		assertFalse(included.includes(including));
+	}
+	
+	@Test
+	public void testIncludes2() {
+		// bc < abc
+		EdgeHistory including = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("b").buildEdge()
+				.withEdge().from("H1").to("H2").name("c").buildEdge()
+				.buildHistory();
+		EdgeHistory included = b()
+				.withEdge().fromRoot().to("H0").name("b").buildEdge()
+				.withEdge().from("H0").to("H1").name("c").buildEdge()
+				.buildHistory();
+		assertTrue(including.includes(included));
+	}
+	
+	@Test
+	public void testIncludes3() {
+		// ab|ac /< a(b|c), ab|ad /< a(b|c):
+		// a single node of a(b|c) cannot be matched with both nodes following a in ab|ac
+		EdgeHistory including = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("b").buildEdge()
+				.withEdge().from("H0").to("H2").name("c").buildEdge()
+				.buildHistory();
+		EdgeHistory included1 = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H0").to("H2").name("b").buildEdge()
+				.withEdge().from("H1").to("H3").name("c").buildEdge()
+				.buildHistory();
+		EdgeHistory included2 = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H0").to("H2").name("b").buildEdge()
+				.withEdge().from("H1").to("H3").name("d").buildEdge()
+				.buildHistory();
+		assertFalse(including.includes(included1));
+		assertFalse(including.includes(included2));
+	}
+	
+	@Test
+	public void testIncludes4() {
+		// aab /< a*b:
+		// the node following a in a*b cannot be matched with both nodes following a in aab
+		EdgeHistory including = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("b").buildEdge()
+				.buildHistory();
+		EdgeHistory included = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.buildHistory();
+		assertFalse(including.includes(included));
+		assertFalse(included.includes(including));
+	}
+	
+	@Test
+	public void testIncludes5() {
+		// ab|c < a(b|d)|c
+		EdgeHistory including = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("b").buildEdge()
+				.withEdge().from("H0").to("H2").name("d").buildEdge()
+				.withEdge().fromRoot().to("H3").name("c").buildEdge()
+				.buildHistory();
+		EdgeHistory included = b()
+				.withEdge().fromRoot().to("H0").name("a").buildEdge()
+				.withEdge().from("H0").to("H1").name("b").buildEdge()
+				.withEdge().fromRoot().to("H2").name("c").buildEdge()
+				.buildHistory();
+		assertTrue(including.includes(included));
+		assertFalse(included.includes(including));
+	}
+	
 }
@@ -2,9 +2,13 @@ package technion.prime.history.edgeset;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.Before;
@@ -255,4 +259,57 @@ public class MethodSequenceTest {
 		assertEquivalentSequenceCollections(expected, result);
 	}
 
+	private static double score(EdgeSequence s) {
+		double result = 1;
+		for (Edge e : s) result *= e.getWeight();
+		return result;
+	}
+	
+	private static final Comparator<EdgeSequence> BY_SCORE = new Comparator<EdgeSequence>() {
+		@Override
+		public int compare(EdgeSequence s1, EdgeSequence s2) {
+			return Double.compare(score(s1), score(s2));
+		}
+	};
+	
+	private static final SequenceScorer WEIGHT_PRODUCT = new SequenceScorer() {
+		@Override
+		public double getEmptyScore() {
+			return 1;
+		}
+		
+		@Override
+		public double extend(double prefixScore, Edge e) {
+			return prefixScore * e.getWeight();
+		}
+	};
+	
+	@Test
+	public void testBestFirst() throws InterruptedException, CanceledException {
+		// input: a (b c)* (d | e), normalized
+		EdgeHistory input = b()
+				.withEdge().fromRoot().to("H1").name("a").weight(1).buildEdge()
+				.withEdge().from("H1").to("H2").name("b").weight(2).buildEdge()
+				.withEdge().from("H2").to("H1").name("c").weight(1).buildEdge()
+				.withEdge().from("H1").to("H3").name("d").weight(5).buildEdge()
+				.withEdge().from("H1").to("H4").name("e").weight(3).buildEdge()
+				.buildHistory()
+				.normalize();
+		List<EdgeSequence> all = new ArrayList<EdgeSequence>();
+		for (EdgeSequence s : input.buildMethodSequences(-1, 2, null)) all.add(s);
+		Collections.sort(all, Collections.reverseOrder(BY_SCORE));
+		
+		List<EdgeSequence> best = new ArrayList<EdgeSequence>();
+		for (EdgeSequence s : input.buildBestMethodSequences(-1, 2, null, WEIGHT_PRODUCT)) best.add(s);
+		assertEquivalentSequenceCollections(all, best);
+		for (int i = 0; i < all.size(); i++) {
+			assertEquals(score(all.get(i)), score(best.get(i)), 0.0001);
+		}
+		
+		Iterator<EdgeSequence> top = input.getTopEdgeSequences(3, 2, WEIGHT_PRODUCT).iterator();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(score(all.get(i)), score(top.next()), 0.0001);
+		}
+		assertFalse(top.hasNext());
+	}
 }
@@ -0,0 +1,82 @@
+package technion.prime.history.edgeset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import technion.prime.dom.AppMethodRef;
+import technion.prime.dom.dummy.DummyAppMethodRef;
+import technion.prime.dom.dummy.DummyAppType;
+
+public class MethodSetTest {
+	private final DummyAppType type = new DummyAppType("T");
+	private final AppMethodRef a = new DummyAppMethodRef(type, type, "a");
+	private final AppMethodRef b = new DummyAppMethodRef(type, type, "b");
+
+	private Set<AppMethodRef> setOf(AppMethodRef... methods) {
+		Set<AppMethodRef> result = new HashSet<AppMethodRef>();
+		for (AppMethodRef m : methods) result.add(m);
+		return result;
+	}
+
+	@Test
+	public void testInterning() {
+		assertSame(MethodSet.of(setOf(a, b)), MethodSet.of(setOf(b, a)));
+		assertSame(MethodSet.of(a), MethodSet.of(setOf(a)));
+		assertSame(MethodSet.of(setOf(a, b)), MethodSet.union(MethodSet.of(a), setOf(b)));
+		assertEquals(MethodSet.of(a).getId(), MethodSetTable.getId(setOf(a)));
+	}
+
+	@Test
+	public void testEqualsPlainSet() {
+		assertEquals(setOf(a, b), MethodSet.of(setOf(a, b)));
+		assertEquals(MethodSet.of(setOf(a, b)), setOf(a, b));
+		assertEquals(setOf(a, b).hashCode(), MethodSet.of(setOf(a, b)).hashCode());
+		assertTrue(MethodSet.of(setOf(a, b)).equals(MethodSet.of(setOf(a))) == false);
+	}
+
+	@Test
+	public void testContains() {
+		Set<AppMethodRef> all = new HashSet<AppMethodRef>();
+		Set<AppMethodRef> even = new HashSet<AppMethodRef>();
+		for (int i = 0; i < 50; i++) {
+			AppMethodRef m = new DummyAppMethodRef(type, type, "m" + i);
+			all.add(m);
+			if (i % 2 == 0) even.add(m);
+		}
+		MethodSet s = MethodSet.of(all);
+		MethodSet e = MethodSet.of(even);
+		for (AppMethodRef m : all) {
+			assertTrue(s.contains(m));
+			assertEquals(even.contains(m), e.contains(m));
+		}
+		assertFalse(s.contains(a));
+		assertTrue(s.containsAll(e));
+		assertTrue(s.containsAll(even));
+		assertFalse(e.containsAll(s));
+		assertFalse(s.containsAll(MethodSet.union(e, setOf(a))));
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		MethodSet s = MethodSet.of(setOf(a, b));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(s);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		assertSame(s, in.readObject());
+	}
+}
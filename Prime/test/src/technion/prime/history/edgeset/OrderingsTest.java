@@ -0,0 +1,164 @@
+package technion.prime.history.edgeset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import technion.prime.DefaultOptions;
+import technion.prime.dom.AppMethodRef;
+import technion.prime.history.Ordering;
+
+public class OrderingsTest {
+	private DefaultOptions options;
+
+	@Before
+	public void setUp() {
+		options = new DefaultOptions();
+	}
+
+	private EdgeHistoryBuilder b() {
+		return new EdgeHistoryBuilder(options);
+	}
+
+	/**
+	 * Straightforward calculation: every method on every edge, paired with every method on every
+	 * edge reachable from its end.
+	 */
+	private Set<Ordering> naiveOrderings(EdgeHistory h) {
+		Set<Ordering> result = new HashSet<Ordering>();
+		for (Edge e : h.edges()) {
+			Set<EdgeNode> seen = new HashSet<EdgeNode>();
+			Set<EdgeNode> front = new HashSet<EdgeNode>(Arrays.asList(e.getTo()));
+			while (front.isEmpty() == false) {
+				Set<EdgeNode> newFront = new HashSet<EdgeNode>();
+				for (EdgeNode n : front) {
+					if (seen.add(n) == false) continue;
+					for (Edge reachable : h.getOutgoingEdges(n)) {
+						for (AppMethodRef m1 : e.getMethods()) {
+							for (AppMethodRef m2 : reachable.getMethods()) {
+								result.add(new Ordering(m1, m2));
+							}
+						}
+						newFront.add(reachable.getTo());
+					}
+				}
+				front = newFront;
+			}
+		}
+		return result;
+	}
+
+	private Set<String> names(Set<Ordering> orderings) {
+		Set<String> result = new HashSet<String>();
+		for (Ordering o : orderings) {
+			result.add(o.first.getShortName() + "<" + o.second.getShortName());
+		}
+		return result;
+	}
+
+	@Test
+	public void testSequence() {
+		// a b c
+		EdgeHistory h = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.withEdge().from("H2").to("H3").name("c").buildEdge()
+				.buildHistory();
+		assertEquals(new HashSet<String>(Arrays.asList("a<b", "a<c", "b<c")),
+				names(h.getOrderings()));
+		assertEquals(naiveOrderings(h), h.getOrderings());
+		assertEquals(3, h.getOrderingIds().length);
+		Set<Ordering> decoded = new HashSet<Ordering>();
+		for (long pair : h.getOrderingIds()) {
+			decoded.add(new Ordering(
+					h.getOrderingMethod((int) (pair >>> 32)), h.getOrderingMethod((int) pair)));
+		}
+		assertEquals(h.getOrderings(), decoded);
+	}
+
+	@Test
+	public void testLoopAndBranch() {
+		// a (b c)* (d | e)
+		EdgeHistory h = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.withEdge().from("H2").to("H1").name("c").buildEdge()
+				.withEdge().from("H1").to("H3").name("d").buildEdge()
+				.withEdge().from("H1").to("H4").name("e").buildEdge()
+				.buildHistory();
+		Set<Ordering> orderings = h.getOrderings();
+		assertEquals(naiveOrderings(h), orderings);
+		assertTrue(names(orderings).contains("c<b"));
+		assertTrue(names(orderings).contains("b<b"));
+		assertFalse(names(orderings).contains("d<e"));
+	}
+
+	@Test
+	public void testCacheInvalidated() throws Exception {
+		EdgeHistory h = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.buildHistory();
+		assertTrue(h.getOrderings().isEmpty());
+		h.joinFrom(b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.buildHistory());
+		assertEquals(naiveOrderings(h), h.getOrderings());
+		assertEquals(1, h.getOrderings().size());
+	}
+
+	@Test
+	public void testReachability() {
+		// a (b c)* (d | e)
+		EdgeHistory h = b()
+				.withEdge().fromRoot().to("H1").name("a").buildEdge()
+				.withEdge().from("H1").to("H2").name("b").buildEdge()
+				.withEdge().from("H2").to("H1").name("c").buildEdge()
+				.withEdge().from("H1").to("H3").name("d").buildEdge()
+				.withEdge().from("H1").to("H4").name("e").buildEdge()
+				.buildHistory();
+		ReachabilityIndex index = h.getReachabilityIndex();
+		for (EdgeNode start : h.nodes()) {
+			Set<Edge> naiveEdges = new HashSet<Edge>();
+			Set<EdgeNode> naiveNodes = new HashSet<EdgeNode>();
+			Set<EdgeNode> front = new HashSet<EdgeNode>(Arrays.asList(start));
+			while (front.isEmpty() == false) {
+				Set<EdgeNode> newFront = new HashSet<EdgeNode>();
+				for (EdgeNode n : front) {
+					for (Edge e : h.getOutgoingEdges(n)) {
+						naiveEdges.add(e);
+						if (naiveNodes.add(e.getTo())) newFront.add(e.getTo());
+					}
+				}
+				front = newFront;
+			}
+			assertEquals(naiveEdges, index.edgesReachableFrom(h, start));
+			assertEquals(naiveNodes, index.nodesReachableFrom(h, start));
+			for (EdgeNode end : h.nodes()) {
+				assertEquals(naiveNodes.contains(end), index.reaches(h, start, end));
+			}
+
+			Set<Edge> naiveEdgesTo = new HashSet<Edge>();
+			Set<EdgeNode> seen = new HashSet<EdgeNode>();
+			front = new HashSet<EdgeNode>(Arrays.asList(start));
+			while (front.isEmpty() == false) {
+				Set<EdgeNode> newFront = new HashSet<EdgeNode>();
+				for (EdgeNode n : front) {
+					for (Edge e : h.getIngoingEdges(n)) {
+						naiveEdgesTo.add(e);
+						if (seen.add(e.getFrom())) newFront.add(e.getFrom());
+					}
+				}
+				front = newFront;
+			}
+			assertEquals(naiveEdgesTo, index.edgesReachableTo(h, start));
+		}
+	}
+}
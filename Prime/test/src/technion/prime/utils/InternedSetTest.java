@@ -0,0 +1,78 @@
+package technion.prime.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InternedSetTest {
+	private InternTable<String> table;
+	private InternedSet<String> empty;
+
+	@Before
+	public void setUp() {
+		table = new InternTable<String>();
+		empty = InternedSet.empty(table);
+	}
+
+	@Test
+	public void testWithAndWithout() {
+		InternedSet<String> ab = empty.with("a").with("b");
+		assertTrue(ab.contains("a"));
+		assertTrue(ab.contains("b"));
+		assertFalse(ab.contains("c"));
+		assertEquals(2, ab.size());
+		assertSame(ab, ab.with("a"));
+		assertSame(ab, ab.without("c"));
+
+		InternedSet<String> b = ab.without("a");
+		assertFalse(b.contains("a"));
+		assertTrue(ab.contains("a"));
+		assertEquals(empty, b.without("b"));
+	}
+
+	@Test
+	public void testManyItems() {
+		Set<String> expected = new HashSet<String>();
+		InternedSet<String> s = empty;
+		for (int i = 0; i < 200; i += 3) {
+			s = s.with("item" + i);
+			expected.add("item" + i);
+		}
+		assertEquals(expected.size(), s.size());
+		assertEquals(expected.hashCode(), s.hashCode());
+		Set<String> actual = new HashSet<String>();
+		for (String item : s) actual.add(item);
+		assertEquals(expected, actual);
+		for (String item : expected) s = s.without(item);
+		assertEquals(empty, s);
+		assertEquals(0, s.hashCode());
+	}
+
+	@Test
+	public void testContainsAll() {
+		InternedSet<String> abc = empty.withAll(Arrays.asList("a", "b", "c"));
+		InternedSet<String> ac = empty.with("c").with("a");
+		assertTrue(abc.containsAll(ac));
+		assertFalse(ac.containsAll(abc));
+		assertTrue(ac.containsAll(empty));
+	}
+
+	@Test
+	public void testDifferentTables() {
+		InternedSet<String> other = InternedSet.empty(new InternTable<String>())
+				.with("x").with("b").with("a");
+		InternedSet<String> ab = empty.with("a").with("b");
+		assertFalse(ab.equals(other));
+		assertEquals(ab, other.without("x"));
+		assertEquals(ab.hashCode(), other.without("x").hashCode());
+		assertTrue(other.containsAll(ab));
+	}
+}
@@ -0,0 +1,22 @@
+package technion.prime.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class WeakInternTableTest {
+	@Test
+	public void testIntern() {
+		WeakInternTable<String, Object> table = new WeakInternTable<String, Object>();
+		Object first = new Object();
+		assertNull(table.get("a"));
+		assertSame(first, table.intern("a", first));
+		assertSame(first, table.intern("a", new Object()));
+		assertSame(first, table.get("a"));
+		Object second = new Object();
+		assertSame(second, table.intern("b", second));
+		assertEquals(2, table.size());
+	}
+}